@@ -0,0 +1,45 @@
+package name.falgout.jeffrey.proto.fieldmask.benchmarks;
+
+import java.io.IOException;
+import org.openjdk.jmh.Main;
+import org.openjdk.jmh.profile.GCProfiler;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.RunnerException;
+import org.openjdk.jmh.runner.options.CommandLineOptionException;
+import org.openjdk.jmh.runner.options.CommandLineOptions;
+import org.openjdk.jmh.runner.options.Options;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+/**
+ * Runs the benchmarks with the same arguments as {@link org.openjdk.jmh.Main}, and always reports
+ * the allocation rate of each benchmark as if by {@code -prof gc}. Options which don't run anything,
+ * such as {@code -h}, {@code -l} and {@code -lp}, are handled by {@code Main} itself.
+ *
+ * <pre>
+ * mvn package -P benchmarks -pl field-mask-common,field-mask-benchmarks
+ * java -jar field-mask-benchmarks/target/benchmarks.jar [JMH options] [benchmark regexps]
+ * </pre>
+ */
+public final class BenchmarkMain {
+  private BenchmarkMain() {}
+
+  public static void main(String[] args)
+      throws CommandLineOptionException, IOException, RunnerException {
+    CommandLineOptions commandLineOptions = new CommandLineOptions(args);
+    if (commandLineOptions.shouldHelp()
+        || commandLineOptions.shouldList()
+        || commandLineOptions.shouldListWithParams()
+        || commandLineOptions.shouldListProfilers()
+        || commandLineOptions.shouldListResultFormats()) {
+      Main.main(args);
+      return;
+    }
+
+    Options options =
+        new OptionsBuilder()
+            .parent(commandLineOptions)
+            .addProfiler(GCProfiler.class)
+            .build();
+    new Runner(options).run();
+  }
+}
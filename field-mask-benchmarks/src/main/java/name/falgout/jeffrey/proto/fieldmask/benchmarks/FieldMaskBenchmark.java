@@ -0,0 +1,81 @@
+package name.falgout.jeffrey.proto.fieldmask.benchmarks;
+
+import com.google.protobuf.Message;
+import java.util.Optional;
+import java.util.concurrent.TimeUnit;
+import name.falgout.jeffrey.proto.fieldmask.FieldMask;
+import name.falgout.jeffrey.proto.fieldmask.FieldPath;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Warmup;
+
+/** Benchmarks the operations of a {@link FieldMask} over {@link Schema}s of each size. */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class FieldMaskBenchmark {
+  @Benchmark
+  public FieldMask<Message> build(Schema schema) {
+    FieldMask.Builder<Message> builder = FieldMask.newBuilder(schema.descriptor);
+    for (FieldPath<Message> path : schema.paths) {
+      builder.addFieldPath(path);
+    }
+    return builder.build();
+  }
+
+  @Benchmark
+  public boolean containsString(Schema schema) {
+    return schema.mask.contains(schema.deepestPathString);
+  }
+
+  @Benchmark
+  public boolean containsString_excluded(Schema schema) {
+    return schema.mask.contains(schema.excludedPathString);
+  }
+
+  @Benchmark
+  public boolean containsFieldPath(Schema schema) {
+    return schema.mask.contains(schema.deepestPath);
+  }
+
+  @Benchmark
+  public boolean containsFieldPath_excluded(Schema schema) {
+    return schema.mask.contains(schema.excludedPath);
+  }
+
+  @Benchmark
+  public boolean containsAll(Schema schema) {
+    return schema.mask.containsAll(schema.subset);
+  }
+
+  @Benchmark
+  public FieldMask<?> getSubFieldMask(Schema schema) {
+    return schema.mask.getSubFieldMask(schema.lastLevelPath);
+  }
+
+  @Benchmark
+  public Optional<com.google.protobuf.FieldMask> toProto(Schema schema) {
+    return schema.mask.toProto();
+  }
+
+  @Benchmark
+  public FieldMask<Message> fromProto(Schema schema) {
+    return FieldMask.fromProto(schema.descriptor, schema.proto);
+  }
+
+  @Benchmark
+  public int hashCode(Schema schema) {
+    return schema.mask.hashCode();
+  }
+
+  @Benchmark
+  public boolean equals(Schema schema) {
+    return schema.mask.equals(schema.equalMask);
+  }
+}
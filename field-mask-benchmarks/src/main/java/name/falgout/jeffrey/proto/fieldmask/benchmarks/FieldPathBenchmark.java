@@ -0,0 +1,52 @@
+package name.falgout.jeffrey.proto.fieldmask.benchmarks;
+
+import com.google.protobuf.Descriptors.FieldDescriptor;
+import com.google.protobuf.Message;
+import java.util.concurrent.TimeUnit;
+import name.falgout.jeffrey.proto.fieldmask.FieldPath;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+/** Benchmarks creating and comparing {@link FieldPath}s over {@link Schema}s of each size. */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class FieldPathBenchmark {
+  @Benchmark
+  public FieldPath<Message> createFromString(Schema schema) {
+    return FieldPath.create(schema.descriptor, schema.deepestPathString);
+  }
+
+  /** Parses every path of {@link Schema#mask}. */
+  @Benchmark
+  public void createFromString_all(Schema schema, Blackhole blackhole) {
+    for (String pathString : schema.pathStrings) {
+      blackhole.consume(FieldPath.create(schema.descriptor, pathString));
+    }
+  }
+
+  @Benchmark
+  public void createFromFields_all(Schema schema, Blackhole blackhole) {
+    for (FieldDescriptor[] fields : schema.pathFields) {
+      blackhole.consume(FieldPath.create(schema.descriptor, fields));
+    }
+  }
+
+  @Benchmark
+  public int hashCode(Schema schema) {
+    return schema.deepestPath.hashCode();
+  }
+
+  @Benchmark
+  public boolean equals(Schema schema) {
+    return schema.deepestPath.equals(schema.equalDeepestPath);
+  }
+}
@@ -0,0 +1,151 @@
+package name.falgout.jeffrey.proto.fieldmask.benchmarks;
+
+import com.google.protobuf.DescriptorProtos.DescriptorProto;
+import com.google.protobuf.DescriptorProtos.FieldDescriptorProto;
+import com.google.protobuf.DescriptorProtos.FileDescriptorProto;
+import com.google.protobuf.Descriptors.DescriptorValidationException;
+import com.google.protobuf.Descriptors.FieldDescriptor;
+import com.google.protobuf.Descriptors.FileDescriptor;
+import com.google.protobuf.Message;
+import java.util.ArrayList;
+import java.util.List;
+import name.falgout.jeffrey.proto.ProtoDescriptor;
+import name.falgout.jeffrey.proto.fieldmask.FieldMask;
+import name.falgout.jeffrey.proto.fieldmask.FieldPath;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+/**
+ * A generated message type, and the {@code FieldMask}s and paths which the benchmarks operate on.
+ *
+ * <p>The type is a chain of {@link #depth} messages, {@code Level0} through {@code Level<depth -
+ * 1>}. Each of them has {@link #width} scalar fields, {@code field_1} through {@code
+ * field_<width>}, and all but the last have a {@code child} field of the next type.
+ *
+ * <p>{@link #mask} includes every odd-numbered scalar field of every level.
+ */
+@State(Scope.Benchmark)
+public class Schema {
+  @Param({"8", "64", "256"})
+  public int width;
+
+  @Param({"1", "4", "16"})
+  public int depth;
+
+  ProtoDescriptor<Message> descriptor;
+
+  /** The paths of {@link #mask}, as strings. */
+  List<String> pathStrings;
+  List<FieldPath<Message>> paths;
+  List<FieldDescriptor[]> pathFields;
+
+  FieldMask<Message> mask;
+  /** Equal to {@link #mask}, but a different instance. */
+  FieldMask<Message> equalMask;
+  /** The paths of {@link #mask} in its first half of levels. */
+  FieldMask<Message> subset;
+  com.google.protobuf.FieldMask proto;
+
+  /** A path in {@link #mask} which ends in the last level. */
+  String deepestPathString;
+  FieldPath<Message> deepestPath;
+  /** Equal to {@link #deepestPath}, but a different instance. */
+  FieldPath<Message> equalDeepestPath;
+  /** A path to a field of the last level which isn't in {@link #mask}. */
+  String excludedPathString;
+  FieldPath<Message> excludedPath;
+  /** The path to the last level. */
+  FieldPath<Message> lastLevelPath;
+
+  @Setup(Level.Trial)
+  public void setUp() {
+    descriptor = createType(width, depth);
+
+    pathStrings = new ArrayList<>();
+    paths = new ArrayList<>();
+    pathFields = new ArrayList<>();
+    FieldMask.Builder<Message> subsetBuilder = FieldMask.newBuilder(descriptor);
+
+    String prefix = "";
+    for (int level = 0; level < depth; level++) {
+      for (int i = 1; i <= width; i += 2) {
+        String pathString = prefix + "field_" + i;
+        FieldPath<Message> path = FieldPath.create(descriptor, pathString);
+
+        pathStrings.add(pathString);
+        paths.add(path);
+        pathFields.add(path.getPath().toArray(new FieldDescriptor[0]));
+        if (level < (depth + 1) / 2) {
+          subsetBuilder.addFieldPath(path);
+        }
+      }
+      prefix += "child.";
+    }
+
+    mask = buildMask();
+    equalMask = buildMask();
+    subset = subsetBuilder.build();
+    proto = mask.toProto().get();
+
+    String lastLevel = prefix.substring(0, prefix.length() - "child.".length());
+    deepestPathString = pathStrings.get(pathStrings.size() - 1);
+    deepestPath = paths.get(paths.size() - 1);
+    equalDeepestPath = FieldPath.create(descriptor, deepestPathString);
+    excludedPathString = lastLevel + "field_2";
+    excludedPath = FieldPath.create(descriptor, excludedPathString);
+    lastLevelPath =
+        lastLevel.isEmpty()
+            ? FieldPath.create(descriptor)
+            : FieldPath.create(descriptor, lastLevel.substring(0, lastLevel.length() - 1));
+  }
+
+  FieldMask<Message> buildMask() {
+    FieldMask.Builder<Message> builder = FieldMask.newBuilder(descriptor);
+    for (FieldPath<Message> path : paths) {
+      builder.addFieldPath(path);
+    }
+    return builder.build();
+  }
+
+  private static ProtoDescriptor<Message> createType(int width, int depth) {
+    FileDescriptorProto.Builder file =
+        FileDescriptorProto.newBuilder().setName("schema_" + width + "_" + depth + ".proto");
+
+    for (int level = 0; level < depth; level++) {
+      DescriptorProto.Builder type = file.addMessageTypeBuilder().setName("Level" + level);
+      for (int i = 1; i <= width; i++) {
+        type.addField(
+            FieldDescriptorProto.newBuilder()
+                .setName("field_" + i)
+                .setNumber(i)
+                .setLabel(FieldDescriptorProto.Label.LABEL_OPTIONAL)
+                .setType(FieldDescriptorProto.Type.TYPE_INT32));
+      }
+
+      if (level + 1 < depth) {
+        type.addField(
+            FieldDescriptorProto.newBuilder()
+                .setName("child")
+                .setNumber(width + 1)
+                .setLabel(FieldDescriptorProto.Label.LABEL_OPTIONAL)
+                .setType(FieldDescriptorProto.Type.TYPE_MESSAGE)
+                .setTypeName(".Level" + (level + 1)));
+      }
+    }
+
+    try {
+      FileDescriptor fileDescriptor = FileDescriptor.buildFrom(file.build(), new FileDescriptor[0]);
+
+      @SuppressWarnings("unchecked")
+      ProtoDescriptor<Message> descriptor =
+          (ProtoDescriptor<Message>)
+              ProtoDescriptor.create(fileDescriptor.findMessageTypeByName("Level0"));
+      return descriptor;
+    } catch (DescriptorValidationException e) {
+      throw new AssertionError(e);
+    }
+  }
+}
@@ -2,26 +2,210 @@ package name.falgout.jeffrey.proto;
 
 import com.google.auto.value.AutoValue;
 import com.google.common.base.Preconditions;
+import com.google.common.cache.CacheBuilder;
+import com.google.protobuf.DescriptorProtos.FileOptions;
 import com.google.protobuf.Descriptors.Descriptor;
+import com.google.protobuf.Descriptors.FieldDescriptor;
+import com.google.protobuf.Descriptors.FieldDescriptor.JavaType;
+import com.google.protobuf.Descriptors.FileDescriptor;
+import com.google.protobuf.DynamicMessage;
 import com.google.protobuf.Internal;
 import com.google.protobuf.Message;
+import java.util.ArrayDeque;
+import java.util.Arrays;
+import java.util.Deque;
+import java.util.concurrent.ConcurrentMap;
+import javax.annotation.Nullable;
 
-/** A type-safe {@link Descriptor}. */
+/**
+ * A type-safe {@link Descriptor}.
+ *
+ * {@code ProtoDescriptor}s are canonicalized, so there's only ever one {@code ProtoDescriptor} for
+ * each {@code Descriptor}, whether it was created from a {@code Class} or a {@code Descriptor}.
+ */
 @AutoValue
 public abstract class ProtoDescriptor<M extends Message> {
+  /**
+   * Each generated class's {@code ProtoDescriptor}, which is stored by the class itself, so it lives
+   * exactly as long as the class does. Like any {@code ClassValue}, that pins this library's class
+   * loader for as long as the generated class lives, which only matters if this library was loaded
+   * by a child of the loader which loaded the generated class.
+   */
+  private static final ClassValue<ProtoDescriptor<?>> BY_CLASS =
+      new ClassValue<ProtoDescriptor<?>>() {
+        @Override
+        protected ProtoDescriptor<?> computeValue(Class<?> type) {
+          Message defaultInstance = Internal.getDefaultInstance(type.asSubclass(Message.class));
+          ProtoDescriptor<?> descriptor =
+              BY_DESCRIPTOR.computeIfAbsent(
+                  defaultInstance.getDescriptorForType(), AutoValue_ProtoDescriptor::new);
+          // The descriptor may have been created before its generated class could be found.
+          descriptor.setGeneratedDefaultInstance(defaultInstance);
+          return descriptor;
+        }
+      };
+
+  /**
+   * Values are weakly held so that dynamically built {@code Descriptor}s can be collected. Generated
+   * types are kept alive by {@link #BY_CLASS}.
+   */
+  private static final ConcurrentMap<Descriptor, ProtoDescriptor<?>> BY_DESCRIPTOR =
+      CacheBuilder.newBuilder().weakKeys().weakValues().<Descriptor, ProtoDescriptor<?>>build()
+          .asMap();
+
   public static <M extends Message> ProtoDescriptor<M> create(Class<M> type) {
-    return new AutoValue_ProtoDescriptor<>(
-        Internal.getDefaultInstance(type).getDescriptorForType());
+    @SuppressWarnings("unchecked") // BY_CLASS always computes a ProtoDescriptor for type.
+    ProtoDescriptor<M> descriptor = (ProtoDescriptor<M>) BY_CLASS.get(type);
+    return descriptor;
   }
 
+  /**
+   * Returns the {@code ProtoDescriptor} for {@code descriptor}.
+   *
+   * If {@code descriptor} belongs to a generated class, which is visible to the context class loader
+   * or this class's loader, this is the same as {@linkplain #create(Class) creating} it from that
+   * class. Otherwise, its default instance is a {@link DynamicMessage} until it's created from its
+   * class.
+   */
   public static ProtoDescriptor<?> create(Descriptor descriptor) {
-    return new AutoValue_ProtoDescriptor<>(descriptor);
+    ProtoDescriptor<?> existing = BY_DESCRIPTOR.get(descriptor);
+    if (existing != null) {
+      return existing;
+    }
+
+    Class<? extends Message> generatedClass = findGeneratedClass(descriptor);
+    if (generatedClass != null) {
+      return create(generatedClass);
+    }
+    return BY_DESCRIPTOR.computeIfAbsent(descriptor, AutoValue_ProtoDescriptor::new);
   }
 
+  /** The class protoc generated for {@code descriptor}, or {@code null} if it can't be found. */
+  @Nullable
+  private static Class<? extends Message> findGeneratedClass(Descriptor descriptor) {
+    String className = getGeneratedClassName(descriptor);
+    for (ClassLoader loader :
+        Arrays.asList(
+            Thread.currentThread().getContextClassLoader(),
+            ProtoDescriptor.class.getClassLoader())) {
+      try {
+        Class<? extends Message> type =
+            Class.forName(className, false, loader).asSubclass(Message.class);
+        // Make sure it's the same type, and not just a class with the same name.
+        if (Internal.getDefaultInstance(type).getDescriptorForType() == descriptor) {
+          return type;
+        }
+      } catch (ClassNotFoundException | RuntimeException | LinkageError e) {
+        // Try the next loader.
+      }
+    }
+    return null;
+  }
+
+  /** The binary name protoc's Java generator gives the class for {@code descriptor}. */
+  private static String getGeneratedClassName(Descriptor descriptor) {
+    FileDescriptor file = descriptor.getFile();
+    FileOptions options = file.getOptions();
+
+    StringBuilder className = new StringBuilder();
+    String javaPackage = options.hasJavaPackage() ? options.getJavaPackage() : file.getPackage();
+    if (!javaPackage.isEmpty()) {
+      className.append(javaPackage).append('.');
+    }
+    if (!options.getJavaMultipleFiles()) {
+      className.append(getOuterClassName(file)).append('$');
+    }
+
+    Deque<String> names = new ArrayDeque<>();
+    for (Descriptor type = descriptor; type != null; type = type.getContainingType()) {
+      names.addFirst(type.getName());
+    }
+    return className.append(String.join("$", names)).toString();
+  }
+
+  private static String getOuterClassName(FileDescriptor file) {
+    if (file.getOptions().hasJavaOuterClassname()) {
+      return file.getOptions().getJavaOuterClassname();
+    }
+
+    String fileName = file.getName();
+    fileName = fileName.substring(fileName.lastIndexOf('/') + 1);
+    if (fileName.endsWith(".proto")) {
+      fileName = fileName.substring(0, fileName.length() - ".proto".length());
+    }
+
+    // Capitalize the first letter, and every letter after a digit or any other character.
+    StringBuilder outerClassName = new StringBuilder();
+    boolean capitalizeNext = true;
+    for (char c : fileName.toCharArray()) {
+      if ('a' <= c && c <= 'z') {
+        outerClassName.append(capitalizeNext ? Character.toUpperCase(c) : c);
+        capitalizeNext = false;
+      } else if ('A' <= c && c <= 'Z') {
+        outerClassName.append(c);
+        capitalizeNext = false;
+      } else if ('0' <= c && c <= '9') {
+        outerClassName.append(c);
+        capitalizeNext = true;
+      } else {
+        capitalizeNext = true;
+      }
+    }
+
+    String name = outerClassName.toString();
+    return hasConflictingClassName(file, name) ? name + "OuterClass" : name;
+  }
+
+  private static boolean hasConflictingClassName(FileDescriptor file, String name) {
+    return file.getEnumTypes().stream().anyMatch(type -> type.getName().equals(name))
+        || file.getServices().stream().anyMatch(service -> service.getName().equals(name))
+        || file.getMessageTypes().stream().anyMatch(type -> hasConflictingClassName(type, name));
+  }
+
+  private static boolean hasConflictingClassName(Descriptor type, String name) {
+    return type.getName().equals(name)
+        || type.getEnumTypes().stream().anyMatch(nested -> nested.getName().equals(name))
+        || type.getNestedTypes().stream().anyMatch(nested -> hasConflictingClassName(nested, name));
+  }
+
+  /**
+   * The generated default instance of {@code M}, or {@code null} if this hasn't been associated with
+   * a generated class.
+   */
+  @Nullable private volatile M generatedDefaultInstance;
+
   ProtoDescriptor() {}
 
   public abstract Descriptor getDescriptorForType();
 
+  @Nullable
+  M getGeneratedDefaultInstance() {
+    return generatedDefaultInstance;
+  }
+
+  private void setGeneratedDefaultInstance(Message defaultInstance) {
+    @SuppressWarnings("unchecked") // It has the same descriptor, so it must be an M.
+    M generated = (M) defaultInstance;
+    generatedDefaultInstance = generated;
+  }
+
+  /**
+   * The default instance of {@code M}.
+   *
+   * If this {@code ProtoDescriptor} isn't associated with a generated class, the default instance is
+   * a {@link DynamicMessage}.
+   */
+  public final M getDefaultInstanceForType() {
+    M defaultInstance = getGeneratedDefaultInstance();
+    if (defaultInstance != null) {
+      return defaultInstance;
+    }
+
+    @SuppressWarnings("unchecked")
+    M dynamicDefaultInstance = (M) DynamicMessage.getDefaultInstance(getDescriptorForType());
+    return dynamicDefaultInstance;
+  }
+
   /**
    * Safely casts this {@code ProtoDescriptor} to the specified {@code type}.
    *
@@ -39,9 +223,39 @@ public abstract class ProtoDescriptor<M extends Message> {
    * parameter.
    */
   public final <N extends Message> ProtoDescriptor<N> castTo(ProtoDescriptor<N> descriptor) {
+    if (descriptor == this) {
+      return descriptor;
+    }
     return castTo(descriptor.getDescriptorForType());
   }
 
+  /**
+   * The {@code ProtoDescriptor} for the type of a message {@code field} in {@code M}.
+   *
+   * If this {@code ProtoDescriptor} knows {@code M}'s generated default instance, the returned
+   * {@code ProtoDescriptor} knows the field type's generated default instance too.
+   *
+   * @throws IllegalArgumentException if {@code field} isn't a message field of {@code M}
+   */
+  public final ProtoDescriptor<?> getMessageFieldType(FieldDescriptor field) {
+    Preconditions.checkArgument(
+        field.getContainingType() == getDescriptorForType()
+            && field.getJavaType() == JavaType.MESSAGE,
+        "%s is not a message field of %s",
+        field.getFullName(),
+        getDescriptorForType().getFullName());
+
+    ProtoDescriptor<?> fieldType = create(field.getMessageType());
+    M defaultInstance = getGeneratedDefaultInstance();
+    if (fieldType.getGeneratedDefaultInstance() != null || defaultInstance == null) {
+      return fieldType;
+    }
+
+    Message fieldDefaultInstance =
+        defaultInstance.newBuilderForType().newBuilderForField(field).getDefaultInstanceForType();
+    return create(fieldDefaultInstance.getClass());
+  }
+
   private <N extends Message> ProtoDescriptor<N> castTo(Descriptor descriptor) {
     Preconditions.checkArgument(
         descriptor.equals(getDescriptorForType()), // N == M
@@ -54,6 +268,24 @@ public abstract class ProtoDescriptor<M extends Message> {
     return result;
   }
 
+  /** {@code ProtoDescriptor}s are equal if they have the same {@link Descriptor}. */
+  @Override
+  public final boolean equals(Object o) {
+    if (this == o) {
+      return true;
+    }
+    if (!(o instanceof ProtoDescriptor)) {
+      return false;
+    }
+    ProtoDescriptor<?> that = (ProtoDescriptor<?>) o;
+    return getDescriptorForType().equals(that.getDescriptorForType());
+  }
+
+  @Override
+  public final int hashCode() {
+    return getDescriptorForType().hashCode();
+  }
+
   @Override
   public String toString() {
     return "ProtoDescriptor{"
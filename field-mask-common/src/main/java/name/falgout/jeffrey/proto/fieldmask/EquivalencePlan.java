@@ -0,0 +1,404 @@
+package name.falgout.jeffrey.proto.fieldmask;
+
+import com.google.common.base.Preconditions;
+import com.google.protobuf.ByteString;
+import com.google.protobuf.Descriptors.Descriptor;
+import com.google.protobuf.Descriptors.EnumValueDescriptor;
+import com.google.protobuf.Descriptors.FieldDescriptor;
+import com.google.protobuf.Descriptors.FieldDescriptor.JavaType;
+import com.google.protobuf.Message;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import name.falgout.jeffrey.proto.fieldmask.FieldMask.Node;
+
+/**
+ * A {@link FieldMask.Node} compiled against a {@link Descriptor} so that messages can be compared
+ * by the fields in the mask, without {@linkplain ProjectionPlan projecting} them first.
+ *
+ * <p>Two messages are {@linkplain #equivalent(Message, Message) equivalent} exactly when their
+ * projections are equal, and {@linkplain #hash64(Message) hashes} and {@linkplain
+ * #compare(Message, Message) comparisons} are consistent with that, except that comparisons ignore
+ * the unknown fields of fully included sub-messages.
+ */
+final class EquivalencePlan {
+  private static final FieldDescriptor[] NO_FIELDS = new FieldDescriptor[0];
+  private static final EquivalencePlan[] NO_PLANS = new EquivalencePlan[0];
+
+  static EquivalencePlan compile(Descriptor descriptor, Node node) {
+    if (node.isAll()) {
+      return new EquivalencePlan(descriptor, true, NO_FIELDS, NO_PLANS);
+    }
+
+    List<FieldDescriptor> fields = new ArrayList<>();
+    List<EquivalencePlan> subPlans = new ArrayList<>();
+    for (int i = 0; i < node.size(); i++) {
+      FieldDescriptor field = node.getField(i);
+      Node child = node.getChild(i);
+
+      fields.add(field);
+      if (child.isAll()) {
+        subPlans.add(null);
+      } else {
+        Preconditions.checkState(field.getJavaType() == JavaType.MESSAGE);
+        subPlans.add(compile(field.getMessageType(), child));
+      }
+    }
+
+    return new EquivalencePlan(
+        descriptor, false, fields.toArray(NO_FIELDS), subPlans.toArray(NO_PLANS));
+  }
+
+  private final Descriptor descriptor;
+  private final boolean includesAll;
+  /** The masked fields, in field number order. */
+  private final FieldDescriptor[] fields;
+  /**
+   * The plan for each partially included field, or {@code null} if it's fully included. The plan
+   * of a repeated field applies to each of its elements.
+   */
+  private final EquivalencePlan[] subPlans;
+
+  private EquivalencePlan(
+      Descriptor descriptor,
+      boolean includesAll,
+      FieldDescriptor[] fields,
+      EquivalencePlan[] subPlans) {
+    this.descriptor = descriptor;
+    this.includesAll = includesAll;
+    this.fields = fields;
+    this.subPlans = subPlans;
+  }
+
+  boolean equivalent(Message a, Message b) {
+    checkType(a);
+    checkType(b);
+    return equivalentFields(a, b);
+  }
+
+  long hash64(Message message) {
+    checkType(message);
+    return Fingerprints.mix(hashFields(message));
+  }
+
+  int compare(Message a, Message b) {
+    checkType(a);
+    checkType(b);
+    return compareFields(a, b);
+  }
+
+  private void checkType(Message message) {
+    Preconditions.checkArgument(
+        message.getDescriptorForType() == descriptor,
+        "Type mismatch. %s != %s",
+        message.getDescriptorForType().getFullName(),
+        descriptor.getFullName());
+  }
+
+  private boolean equivalentFields(Message a, Message b) {
+    if (a == b) {
+      return true;
+    }
+    if (includesAll) {
+      return a.equals(b);
+    }
+
+    for (int i = 0; i < fields.length; i++) {
+      FieldDescriptor field = fields[i];
+      boolean isSet = isSet(a, field);
+      if (isSet != isSet(b, field)) {
+        return false;
+      }
+      if (!isSet) {
+        continue;
+      }
+
+      EquivalencePlan subPlan = subPlans[i];
+      if (subPlan != null && field.isRepeated()) {
+        if (!subPlan.equivalentElements((List<?>) a.getField(field), (List<?>) b.getField(field))) {
+          return false;
+        }
+      } else if (subPlan != null) {
+        if (!subPlan.equivalentFields(
+            (Message) a.getField(field), (Message) b.getField(field))) {
+          return false;
+        }
+      } else if (field.isMapField()) {
+        if (!toMap(field, a.getField(field)).equals(toMap(field, b.getField(field)))) {
+          return false;
+        }
+      } else if (!Objects.equals(a.getField(field), b.getField(field))) {
+        return false;
+      }
+    }
+
+    return true;
+  }
+
+  private boolean equivalentElements(List<?> a, List<?> b) {
+    if (a.size() != b.size()) {
+      return false;
+    }
+    for (int i = 0; i < a.size(); i++) {
+      if (!equivalentFields((Message) a.get(i), (Message) b.get(i))) {
+        return false;
+      }
+    }
+    return true;
+  }
+
+  private long hashFields(Message message) {
+    if (includesAll) {
+      return hashMessage(message);
+    }
+
+    long hash = 0;
+    for (int i = 0; i < fields.length; i++) {
+      FieldDescriptor field = fields[i];
+      if (!isSet(message, field)) {
+        continue;
+      }
+
+      EquivalencePlan subPlan = subPlans[i];
+      long fieldHash;
+      if (subPlan == null) {
+        fieldHash = hashField(field, message.getField(field));
+      } else if (field.isRepeated()) {
+        fieldHash = subPlan.hashElements((List<?>) message.getField(field));
+      } else {
+        fieldHash = subPlan.hashFields((Message) message.getField(field));
+      }
+      hash = Fingerprints.combine(hash, field.getNumber(), fieldHash);
+    }
+    return hash;
+  }
+
+  private long hashElements(List<?> elements) {
+    long hash = 0;
+    for (Object element : elements) {
+      hash = Fingerprints.append(hash, hashFields((Message) element));
+    }
+    return hash;
+  }
+
+  private int compareFields(Message a, Message b) {
+    if (a == b) {
+      return 0;
+    }
+    if (includesAll) {
+      return compareMessages(a, b);
+    }
+
+    for (int i = 0; i < fields.length; i++) {
+      FieldDescriptor field = fields[i];
+      EquivalencePlan subPlan = subPlans[i];
+      int result;
+      if (subPlan == null) {
+        result = compareField(field, a, b);
+      } else if (field.isRepeated()) {
+        result = compareElements(field, a, b, subPlan::compareFields);
+      } else {
+        result = compareSubMessages(field, a, b, subPlan::compareFields);
+      }
+      if (result != 0) {
+        return result;
+      }
+    }
+    return 0;
+  }
+
+  private static boolean isSet(Message message, FieldDescriptor field) {
+    return field.isRepeated() ? message.getRepeatedFieldCount(field) > 0 : message.hasField(field);
+  }
+
+  /** Converts the entries of a map field to a {@link Map}, which is equal regardless of order. */
+  static Map<Object, Object> toMap(FieldDescriptor mapField, Object entries) {
+    FieldDescriptor key = mapField.getMessageType().findFieldByNumber(1);
+    FieldDescriptor value = mapField.getMessageType().findFieldByNumber(2);
+
+    Map<Object, Object> map = new HashMap<>();
+    for (Object entry : (List<?>) entries) {
+      Message message = (Message) entry;
+      map.put(message.getField(key), message.getField(value));
+    }
+    return map;
+  }
+
+  /* Hashing */
+
+  private static long hashMessage(Message message) {
+    long hash = 0;
+    for (FieldDescriptor field :
+        FieldTable.forDescriptor(message.getDescriptorForType()).getFieldsByNumber()) {
+      if (isSet(message, field)) {
+        long fieldHash = hashField(field, message.getField(field));
+        hash = Fingerprints.combine(hash, field.getNumber(), fieldHash);
+      }
+    }
+    return hash;
+  }
+
+  private static long hashField(FieldDescriptor field, Object value) {
+    if (!field.isRepeated()) {
+      return hashValue(field, value);
+    }
+
+    long hash = 0;
+    for (Object element : (List<?>) value) {
+      long elementHash = hashValue(field, element);
+      // Map entries can be in any order, so their hashes are combined commutatively.
+      hash =
+          field.isMapField()
+              ? hash + Fingerprints.mix(elementHash)
+              : Fingerprints.append(hash, elementHash);
+    }
+    return hash;
+  }
+
+  private static long hashValue(FieldDescriptor field, Object value) {
+    switch (field.getJavaType()) {
+      case INT:
+        return (Integer) value;
+      case LONG:
+        return (Long) value;
+      case FLOAT:
+        return Float.floatToIntBits((Float) value);
+      case DOUBLE:
+        return Double.doubleToLongBits((Double) value);
+      case BOOLEAN:
+        return (Boolean) value ? 1 : 0;
+      case STRING:
+        return Fingerprints.ofString((String) value);
+      case BYTE_STRING:
+        return Fingerprints.ofBytes((ByteString) value);
+      case ENUM:
+        return ((EnumValueDescriptor) value).getNumber();
+      case MESSAGE:
+        return hashMessage((Message) value);
+      default:
+        throw new AssertionError(field.getJavaType());
+    }
+  }
+
+  /* Comparison */
+
+  @FunctionalInterface
+  private interface MessageComparator {
+    int compare(Message a, Message b);
+  }
+
+  /** Orders messages by each of their fields, in field number order. */
+  private static int compareMessages(Message a, Message b) {
+    for (FieldDescriptor field :
+        FieldTable.forDescriptor(a.getDescriptorForType()).getFieldsByNumber()) {
+      int result = compareField(field, a, b);
+      if (result != 0) {
+        return result;
+      }
+    }
+    return 0;
+  }
+
+  /** Orders unset fields first, and then by value. */
+  private static int compareField(FieldDescriptor field, Message a, Message b) {
+    if (!field.isRepeated()) {
+      boolean isSet = a.hasField(field);
+      if (isSet != b.hasField(field)) {
+        return isSet ? 1 : -1;
+      }
+      return isSet ? compareValues(field, a.getField(field), b.getField(field)) : 0;
+    }
+
+    List<?> listA = (List<?>) a.getField(field);
+    List<?> listB = (List<?>) b.getField(field);
+    if (field.isMapField()) {
+      listA = sortEntries(field, listA);
+      listB = sortEntries(field, listB);
+    }
+
+    int size = Math.min(listA.size(), listB.size());
+    for (int i = 0; i < size; i++) {
+      int result = compareValues(field, listA.get(i), listB.get(i));
+      if (result != 0) {
+        return result;
+      }
+    }
+    return Integer.compare(listA.size(), listB.size());
+  }
+
+  private static int compareSubMessages(
+      FieldDescriptor field, Message a, Message b, MessageComparator comparator) {
+    boolean isSet = a.hasField(field);
+    if (isSet != b.hasField(field)) {
+      return isSet ? 1 : -1;
+    }
+    return isSet
+        ? comparator.compare((Message) a.getField(field), (Message) b.getField(field))
+        : 0;
+  }
+
+  /** Orders the elements of a repeated message field lexicographically. */
+  private static int compareElements(
+      FieldDescriptor field, Message a, Message b, MessageComparator comparator) {
+    int countA = a.getRepeatedFieldCount(field);
+    int countB = b.getRepeatedFieldCount(field);
+    int count = Math.min(countA, countB);
+    for (int i = 0; i < count; i++) {
+      int result =
+          comparator.compare(
+              (Message) a.getRepeatedField(field, i), (Message) b.getRepeatedField(field, i));
+      if (result != 0) {
+        return result;
+      }
+    }
+    return Integer.compare(countA, countB);
+  }
+
+  /** Sorts map entries by key, since they can be in any order. */
+  private static List<?> sortEntries(FieldDescriptor mapField, List<?> entries) {
+    FieldDescriptor key = mapField.getMessageType().findFieldByNumber(1);
+
+    List<Message> sorted = new ArrayList<>(entries.size());
+    for (Object entry : entries) {
+      sorted.add((Message) entry);
+    }
+    sorted.sort((x, y) -> compareValues(key, x.getField(key), y.getField(key)));
+    return sorted;
+  }
+
+  @SuppressWarnings("unchecked")
+  private static int compareValues(FieldDescriptor field, Object a, Object b) {
+    switch (field.getJavaType()) {
+      case INT:
+      case LONG:
+      case FLOAT:
+      case DOUBLE:
+      case BOOLEAN:
+      case STRING:
+        return ((Comparable<Object>) a).compareTo(b);
+      case BYTE_STRING:
+        return compareBytes((ByteString) a, (ByteString) b);
+      case ENUM:
+        return Integer.compare(
+            ((EnumValueDescriptor) a).getNumber(), ((EnumValueDescriptor) b).getNumber());
+      case MESSAGE:
+        return compareMessages((Message) a, (Message) b);
+      default:
+        throw new AssertionError(field.getJavaType());
+    }
+  }
+
+  /** Orders bytes lexicographically, treating each byte as unsigned. */
+  private static int compareBytes(ByteString a, ByteString b) {
+    int size = Math.min(a.size(), b.size());
+    for (int i = 0; i < size; i++) {
+      int result = Integer.compare(a.byteAt(i) & 0xff, b.byteAt(i) & 0xff);
+      if (result != 0) {
+        return result;
+      }
+    }
+    return Integer.compare(a.size(), b.size());
+  }
+}
@@ -0,0 +1,363 @@
+package name.falgout.jeffrey.proto.fieldmask;
+
+import com.google.common.primitives.Primitives;
+import com.google.protobuf.ByteString;
+import com.google.protobuf.Descriptors.EnumValueDescriptor;
+import com.google.protobuf.Descriptors.FieldDescriptor;
+import com.google.protobuf.Descriptors.FieldDescriptor.JavaType;
+import com.google.protobuf.Descriptors.FileDescriptor;
+import com.google.protobuf.GeneratedMessageV3;
+import com.google.protobuf.Message;
+import java.lang.invoke.CallSite;
+import java.lang.invoke.LambdaMetafactory;
+import java.lang.invoke.MethodHandle;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.MethodType;
+import java.lang.reflect.Method;
+import java.util.List;
+import java.util.function.BiConsumer;
+import java.util.function.Function;
+import java.util.function.Predicate;
+import java.util.function.ToIntFunction;
+import javax.annotation.Nullable;
+
+/**
+ * Reads a single field of a message, and writes it to an empty builder.
+ *
+ * <p>The fields of generated messages are accessed through their generated accessors, such as
+ * {@code hasFoo()}, {@code getFoo()} and {@code setFoo(...)}, which are bound into lambdas with a
+ * {@link LambdaMetafactory}. Calling those avoids the reflection and boxing that {@link
+ * Message#getField(FieldDescriptor)} goes through. Every other message, including {@link
+ * com.google.protobuf.DynamicMessage}s of a generated type, is accessed through its {@code
+ * FieldDescriptor}s. So is any field whose accessors can't be found, such as map fields and fields
+ * without a {@code has} method.
+ *
+ * <p>The accessor names are derived from the field names the same way protoc derives them,
+ * including the field number protoc appends to fields whose accessors would otherwise conflict,
+ * e.g. {@code getFooCount2()} for a {@code foo_count} field next to a repeated {@code foo} field.
+ * Since a wrong guess could bind a method of another field with the same type, the accessors are
+ * checked against reflection on a message which only has this field set before they're used.
+ */
+final class FieldAccessor {
+  private static final MethodHandles.Lookup LOOKUP = MethodHandles.lookup();
+
+  /**
+   * Creates an accessor for {@code field} of messages of the same type as {@code prototype}.
+   *
+   * <p>The generated accessors are only used when {@code prototype} is a generated message.
+   */
+  static FieldAccessor create(Message prototype, FieldDescriptor field) {
+    if (prototype instanceof GeneratedMessageV3 && !field.isMapField()) {
+      try {
+        FieldAccessor accessor = createGenerated(prototype, field);
+        // This also fails now instead of while projecting if the lambdas can't link.
+        if (accessor.isBoundTo(prototype)) {
+          return accessor;
+        }
+      } catch (ReflectiveOperationException | LinkageError | RuntimeException e) {
+        // Fall back to reflection.
+      }
+    }
+
+    return new FieldAccessor(field, null, null, null, null, null, null);
+  }
+
+  private static FieldAccessor createGenerated(Message prototype, FieldDescriptor field)
+      throws ReflectiveOperationException {
+    Class<?> messageClass = prototype.getClass();
+    Class<?> builderClass = prototype.newBuilderForType().getClass();
+    String name = accessorName(field);
+
+    if (field.isRepeated()) {
+      // A proto3 enum can hold numbers without a constant, which getFooList() reads as
+      // UNRECOGNIZED and addAllFoo(...) rejects, so the numbers are copied instead.
+      String values = isOpenEnum(field) ? name + "Value" : name;
+      return new FieldAccessor(
+          field,
+          messageClass,
+          builderClass,
+          null,
+          count(messageClass.getMethod("get" + name + "Count")),
+          getter(messageClass.getMethod("get" + values + "List")),
+          setter(builderClass.getMethod("addAll" + values, Iterable.class)));
+    }
+
+    Method getter = messageClass.getMethod("get" + name);
+    Class<?> valueType = getter.getReturnType();
+    if (field.getJavaType() == JavaType.MESSAGE && !Message.class.isAssignableFrom(valueType)) {
+      throw new NoSuchMethodException("get" + name);
+    }
+
+    return new FieldAccessor(
+        field,
+        messageClass,
+        builderClass,
+        has(messageClass.getMethod("has" + name)),
+        null,
+        getter(getter),
+        setter(builderClass.getMethod("set" + name, valueType)));
+  }
+
+  /** Whether {@code field} is an enum which keeps numbers that aren't one of its values. */
+  private static boolean isOpenEnum(FieldDescriptor field) {
+    return field.getJavaType() == JavaType.ENUM
+        && field.getFile().getSyntax() == FileDescriptor.Syntax.PROTO3;
+  }
+
+  /**
+   * The name used by the generated accessors of {@code field}, e.g. {@code FooBar}, or {@code
+   * FooBar3} if protoc renamed them because they conflict with another field's accessors.
+   */
+  private static String accessorName(FieldDescriptor field) {
+    String name = camelCase(field.getName());
+    for (FieldDescriptor other : field.getContainingType().getFields()) {
+      if (other != field && conflicts(field, name, other, camelCase(other.getName()))) {
+        return name + field.getNumber();
+      }
+    }
+    return name;
+  }
+
+  /**
+   * Whether protoc considers the accessors of two fields to conflict. Like protoc, this only
+   * checks fields with the same name and a singular field named after the count or list accessor
+   * of a repeated field.
+   */
+  private static boolean conflicts(
+      FieldDescriptor field, String name, FieldDescriptor other, String otherName) {
+    if (name.equals(otherName)) {
+      return true;
+    }
+    if (field.isRepeated() == other.isRepeated()) {
+      return false;
+    }
+
+    String repeatedName = field.isRepeated() ? name : otherName;
+    String singularName = field.isRepeated() ? otherName : name;
+    return singularName.equals(repeatedName + "Count")
+        || singularName.equals(repeatedName + "List");
+  }
+
+  /** Converts a field name to the name used by its generated accessors, e.g. {@code FooBar}. */
+  private static String camelCase(String fieldName) {
+    StringBuilder name = new StringBuilder(fieldName.length());
+    boolean capitalizeNext = true;
+    for (int i = 0; i < fieldName.length(); i++) {
+      char c = fieldName.charAt(i);
+      if ('a' <= c && c <= 'z') {
+        name.append(capitalizeNext ? Character.toUpperCase(c) : c);
+        capitalizeNext = false;
+      } else if ('A' <= c && c <= 'Z') {
+        name.append(c);
+        capitalizeNext = false;
+      } else if ('0' <= c && c <= '9') {
+        name.append(c);
+        capitalizeNext = true;
+      } else {
+        capitalizeNext = true;
+      }
+    }
+    return name.toString();
+  }
+
+  /**
+   * A value for {@code field} which differs from its default value where possible, so that reading
+   * another unset field of the same type gives a different value.
+   */
+  private static Object sampleValue(Message.Builder builder, FieldDescriptor field) {
+    if (field.getJavaType() == JavaType.MESSAGE) {
+      return builder.newBuilderForField(field).getDefaultInstanceForType();
+    }
+    if (field.getJavaType() == JavaType.ENUM) {
+      Object defaultValue = field.isRepeated() ? null : field.getDefaultValue();
+      List<EnumValueDescriptor> values = field.getEnumType().getValues();
+      return values
+          .stream()
+          .filter(value -> value != defaultValue)
+          .findFirst()
+          .orElse(values.get(0));
+    }
+
+    boolean repeated = field.isRepeated();
+    switch (field.getJavaType()) {
+      case INT:
+        return (repeated ? 0 : (Integer) field.getDefaultValue()) + 1;
+      case LONG:
+        return (repeated ? 0L : (Long) field.getDefaultValue()) + 1;
+      case FLOAT:
+        return (repeated ? 0f : (Float) field.getDefaultValue()) + 1;
+      case DOUBLE:
+        return (repeated ? 0d : (Double) field.getDefaultValue()) + 1;
+      case BOOLEAN:
+        return repeated || !(Boolean) field.getDefaultValue();
+      case STRING:
+        return (repeated ? "" : field.getDefaultValue()) + "x";
+      case BYTE_STRING:
+        return (repeated ? ByteString.EMPTY : (ByteString) field.getDefaultValue())
+            .concat(ByteString.copyFromUtf8("x"));
+      default:
+        throw new AssertionError(field.getJavaType());
+    }
+  }
+
+  @SuppressWarnings("unchecked")
+  private static Predicate<Object> has(Method method) throws ReflectiveOperationException {
+    return (Predicate<Object>)
+        spin(Predicate.class, "test", MethodType.methodType(boolean.class, Object.class), method);
+  }
+
+  @SuppressWarnings("unchecked")
+  private static ToIntFunction<Object> count(Method method) throws ReflectiveOperationException {
+    return (ToIntFunction<Object>)
+        spin(
+            ToIntFunction.class,
+            "applyAsInt",
+            MethodType.methodType(int.class, Object.class),
+            method);
+  }
+
+  @SuppressWarnings("unchecked")
+  private static Function<Object, Object> getter(Method method)
+      throws ReflectiveOperationException {
+    return (Function<Object, Object>)
+        spin(Function.class, "apply", MethodType.methodType(Object.class, Object.class), method);
+  }
+
+  @SuppressWarnings("unchecked")
+  private static BiConsumer<Object, Object> setter(Method method)
+      throws ReflectiveOperationException {
+    return (BiConsumer<Object, Object>)
+        spin(
+            BiConsumer.class,
+            "accept",
+            MethodType.methodType(void.class, Object.class, Object.class),
+            method);
+  }
+
+  /** Implements the single abstract method of {@code samType} by calling {@code method}. */
+  private static Object spin(
+      Class<?> samType, String samName, MethodType samMethodType, Method method)
+      throws ReflectiveOperationException {
+    MethodHandle implementation = LOOKUP.unreflect(method);
+    // The receiver and arguments are cast and unboxed to the method's types, and the result is
+    // boxed if the interface returns an Object.
+    MethodType instantiatedMethodType = implementation.type().wrap();
+    if (samMethodType.returnType().isPrimitive()) {
+      instantiatedMethodType =
+          instantiatedMethodType.changeReturnType(
+              Primitives.unwrap(instantiatedMethodType.returnType()));
+    }
+    if (samMethodType.returnType() == void.class) {
+      instantiatedMethodType = instantiatedMethodType.changeReturnType(void.class);
+    }
+
+    try {
+      CallSite site =
+          LambdaMetafactory.metafactory(
+              LOOKUP,
+              samName,
+              MethodType.methodType(samType),
+              samMethodType,
+              implementation,
+              instantiatedMethodType);
+      return site.getTarget().invoke();
+    } catch (ReflectiveOperationException | RuntimeException | Error e) {
+      throw e;
+    } catch (Throwable t) {
+      throw new IllegalStateException(t);
+    }
+  }
+
+  private final FieldDescriptor field;
+  /** The generated message class, or {@code null} if this always uses reflection. */
+  @Nullable private final Class<?> messageClass;
+  @Nullable private final Class<?> builderClass;
+  /** {@code hasFoo()}, for singular fields. */
+  @Nullable private final Predicate<Object> has;
+  /** {@code getFooCount()}, for repeated fields. */
+  @Nullable private final ToIntFunction<Object> count;
+  /**
+   * {@code getFoo()}, or {@code getFooList()} for repeated fields, and {@code getFooValueList()}
+   * for repeated proto3 enums.
+   */
+  @Nullable private final Function<Object, Object> get;
+  /**
+   * {@code setFoo(value)}, or {@code addAllFoo(values)} for repeated fields, and {@code
+   * addAllFooValue(values)} for repeated proto3 enums.
+   */
+  @Nullable private final BiConsumer<Object, Object> set;
+
+  private FieldAccessor(
+      FieldDescriptor field,
+      @Nullable Class<?> messageClass,
+      @Nullable Class<?> builderClass,
+      @Nullable Predicate<Object> has,
+      @Nullable ToIntFunction<Object> count,
+      @Nullable Function<Object, Object> get,
+      @Nullable BiConsumer<Object, Object> set) {
+    this.field = field;
+    this.messageClass = messageClass;
+    this.builderClass = builderClass;
+    this.has = has;
+    this.count = count;
+    this.get = get;
+    this.set = set;
+  }
+
+  /**
+   * Whether the generated accessors read and write {@link #field}, which is checked on a message of
+   * the same type as {@code prototype} which only has that field set.
+   */
+  private boolean isBoundTo(Message prototype) {
+    Message.Builder probeBuilder = prototype.newBuilderForType();
+    Object sample = sampleValue(probeBuilder, field);
+    if (field.isRepeated()) {
+      probeBuilder.addRepeatedField(field, sample);
+    } else {
+      probeBuilder.setField(field, sample);
+    }
+    Message probe = probeBuilder.buildPartial();
+    if (!isSet(probe)) {
+      return false;
+    }
+
+    Message.Builder copy = prototype.newBuilderForType();
+    set(copy, get(probe));
+    return copy.buildPartial().equals(probe);
+  }
+
+  FieldDescriptor getField() {
+    return field;
+  }
+
+  boolean isSet(Message message) {
+    if (message.getClass() != messageClass) {
+      return field.isRepeated()
+          ? message.getRepeatedFieldCount(field) > 0
+          : message.hasField(field);
+    }
+    return field.isRepeated() ? count.applyAsInt(message) > 0 : has.test(message);
+  }
+
+  /**
+   * Gets the value of the field. The value is only meant to be passed to {@link #set}, since its
+   * type depends on how the field is accessed.
+   */
+  Object get(Message message) {
+    return message.getClass() == messageClass ? get.apply(message) : message.getField(field);
+  }
+
+  /**
+   * Sets the field of {@code builder}, which must not have been set yet, to a value from {@link
+   * #get} or a {@code List} of messages for a repeated message field.
+   *
+   * <p>{@code builder} has to be a builder for the same class as the message the value came from.
+   */
+  void set(Message.Builder builder, Object value) {
+    if (builder.getClass() != builderClass) {
+      builder.setField(field, value);
+    } else {
+      set.accept(builder, value);
+    }
+  }
+}
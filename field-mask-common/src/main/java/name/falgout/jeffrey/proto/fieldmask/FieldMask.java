@@ -2,23 +2,44 @@ package name.falgout.jeffrey.proto.fieldmask;
 
 import static java.util.stream.Collectors.toSet;
 
+import com.google.common.base.Equivalence;
 import com.google.common.base.Preconditions;
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.Interner;
+import com.google.common.collect.Interners;
 import com.google.common.collect.Iterables;
 import com.google.common.collect.Lists;
 import com.google.errorprone.annotations.DoNotMock;
+import com.google.protobuf.ByteString;
+import com.google.protobuf.CodedInputStream;
+import com.google.protobuf.CodedOutputStream;
 import com.google.protobuf.Descriptors.Descriptor;
 import com.google.protobuf.Descriptors.FieldDescriptor;
 import com.google.protobuf.Descriptors.FieldDescriptor.JavaType;
+import com.google.protobuf.InvalidProtocolBufferException;
 import com.google.protobuf.Message;
+import com.google.protobuf.util.FieldMaskUtil.MergeOptions;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Comparator;
+import java.util.List;
 import java.util.Map.Entry;
 import java.util.Objects;
 import java.util.Optional;
 import java.util.SortedMap;
+import java.util.Spliterator;
 import java.util.TreeMap;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinTask;
+import java.util.function.Consumer;
+import java.util.function.LongBinaryOperator;
 import java.util.stream.Collector;
 import java.util.stream.Collectors;
 import java.util.stream.Stream;
+import java.util.stream.StreamSupport;
 import javax.annotation.Nullable;
 import javax.annotation.concurrent.Immutable;
 import name.falgout.jeffrey.proto.ProtoDescriptor;
@@ -66,16 +87,83 @@ public final class FieldMask<M extends Message> {
 
   public static <M extends Message> FieldMask<M> fromProto(
       ProtoDescriptor<M> descriptor, com.google.protobuf.FieldMask fieldMask) {
+    FieldMaskListener listener = FieldMaskListeners.current();
+    if (listener == null) {
+      return parse(descriptor, fieldMask);
+    }
+
+    long start = System.nanoTime();
+    FieldMask<M> result = parse(descriptor, fieldMask);
+    listener.onParse(
+        descriptor.getDescriptorForType(), fieldMask.getPathsCount(), System.nanoTime() - start);
+    return result;
+  }
+
+  private static <M extends Message> FieldMask<M> parse(
+      ProtoDescriptor<M> descriptor, com.google.protobuf.FieldMask fieldMask) {
     Builder<M> builder = newBuilder(descriptor);
 
-    fieldMask.getPathsList()
-        .stream()
-        .map(pathString -> FieldPath.create(descriptor, pathString))
-        .forEach(builder::addFieldPath);
+    FieldPathParser parser = new FieldPathParser(descriptor.getDescriptorForType());
+    for (String pathString : fieldMask.getPathsList()) {
+      parser.resolve(pathString);
+      builder.addFields(parser.getFields());
+    }
 
     return builder.build();
   }
 
+  /**
+   * Reads a {@code FieldMask} which was {@linkplain #writeTo(ByteBuffer) written} in the compact
+   * binary encoding, starting at {@code input}'s position. The position is advanced past the
+   * {@code FieldMask}.
+   *
+   * @throws InvalidProtocolBufferException if {@code input} doesn't contain a valid {@code
+   *     FieldMask} for {@code type}
+   */
+  public static <M extends Message> FieldMask<M> readFrom(Class<M> type, ByteBuffer input)
+      throws InvalidProtocolBufferException {
+    return readFrom(ProtoDescriptor.create(type), input);
+  }
+
+  /**
+   * Reads a {@code FieldMask} which was {@linkplain #writeTo(ByteBuffer) written} in the compact
+   * binary encoding, starting at {@code input}'s position. The position is advanced past the
+   * {@code FieldMask}.
+   *
+   * @throws InvalidProtocolBufferException if {@code input} doesn't contain a valid {@code
+   *     FieldMask} for {@code descriptor}
+   */
+  public static <M extends Message> FieldMask<M> readFrom(
+      ProtoDescriptor<M> descriptor, ByteBuffer input) throws InvalidProtocolBufferException {
+    return new FieldMask<>(
+        descriptor, FieldMaskCodec.readFrom(descriptor.getDescriptorForType(), input));
+  }
+
+  /**
+   * Reads a {@code FieldMask} which was {@linkplain #writeTo(CodedOutputStream) written} in the
+   * compact binary encoding.
+   *
+   * @throws InvalidProtocolBufferException if {@code input} doesn't contain a valid {@code
+   *     FieldMask} for {@code type}
+   */
+  public static <M extends Message> FieldMask<M> readFrom(Class<M> type, CodedInputStream input)
+      throws IOException {
+    return readFrom(ProtoDescriptor.create(type), input);
+  }
+
+  /**
+   * Reads a {@code FieldMask} which was {@linkplain #writeTo(CodedOutputStream) written} in the
+   * compact binary encoding.
+   *
+   * @throws InvalidProtocolBufferException if {@code input} doesn't contain a valid {@code
+   *     FieldMask} for {@code descriptor}
+   */
+  public static <M extends Message> FieldMask<M> readFrom(
+      ProtoDescriptor<M> descriptor, CodedInputStream input) throws IOException {
+    return new FieldMask<>(
+        descriptor, FieldMaskCodec.readFrom(descriptor.getDescriptorForType(), input));
+  }
+
   public static <M extends Message> Collector<String, ?, FieldMask<M>> toFieldMask(Class<M> type) {
     return toFieldMask(ProtoDescriptor.create(type));
   }
@@ -89,57 +177,318 @@ public final class FieldMask<M extends Message> {
     return Collectors.collectingAndThen(toSet(), fieldPaths -> new Builder<>(fieldPaths).build());
   }
 
-  private static class Node {
+  /**
+   * An immutable node in the trie that backs a built {@code FieldMask}.
+   *
+   * <p>Children are kept in parallel arrays sorted by field number, so looking up a child is a
+   * binary search over an {@code int[]}. Leaves are the shared {@link #ALL} instance, and an empty
+   * trie is the shared {@link #NONE} instance.
+   *
+   * <p>Nodes for message types with at least {@link #BITSET_MIN_FIELDS} fields also keep bitsets of
+   * which fields they contain, indexed by each field's position in field number order. Looking up a
+   * {@link FieldDescriptor} in these nodes tests a bit instead of searching, and comparing and
+   * combining them works a word at a time instead of a field at a time.
+   */
+  static final class Node {
+    private static final int[] NO_NUMBERS = new int[0];
+    private static final FieldDescriptor[] NO_FIELDS = new FieldDescriptor[0];
+    private static final Node[] NO_CHILDREN = new Node[0];
+
+    /** A node that contains all of its sub-fields. */
+    static final Node ALL = new Node(NO_NUMBERS, NO_FIELDS, NO_CHILDREN, -1);
+    /** A node that contains none of its sub-fields. */
+    static final Node NONE = new Node(NO_NUMBERS, NO_FIELDS, NO_CHILDREN, 0);
+
+    private static final Interner<Node> INTERNER = Interners.newWeakInterner();
+
+    /** The number of fields a message type needs for its nodes to keep bitsets. */
+    static final int BITSET_MIN_FIELDS = 64;
+
+    private final int[] numbers;
+    private final FieldDescriptor[] fields;
+    private final Node[] children;
+    private final long fingerprint;
+
+    /** The fields of this node's type, which rank them by field number, if it has bitsets. */
+    @Nullable private final FieldTable table;
+    /** The fields which have a child. */
+    @Nullable private final long[] presentBits;
+    /** The fields whose child is {@link #ALL}. */
+    @Nullable private final long[] allBits;
+    /** Whether every child is {@link #ALL}. */
+    private final boolean leavesOnly;
+
+    private Node(int[] numbers, FieldDescriptor[] fields, Node[] children) {
+      this(numbers, fields, children, fingerprint(numbers, children));
+    }
+
+    private Node(int[] numbers, FieldDescriptor[] fields, Node[] children, long fingerprint) {
+      this.numbers = numbers;
+      this.fields = fields;
+      this.children = children;
+      this.fingerprint = fingerprint;
+
+      FieldTable table =
+          fields.length > 0 && fields[0].getContainingType().getFields().size() >= BITSET_MIN_FIELDS
+              ? FieldTable.forDescriptor(fields[0].getContainingType())
+              : null;
+      this.table = table;
+      if (table == null) {
+        presentBits = null;
+        allBits = null;
+        leavesOnly = false;
+        return;
+      }
+
+      presentBits = new long[(table.getFieldsByNumber().length + Long.SIZE - 1) / Long.SIZE];
+      allBits = new long[presentBits.length];
+      boolean leavesOnly = true;
+      for (int i = 0; i < fields.length; i++) {
+        int rank = table.getRank(fields[i]);
+        presentBits[rank / Long.SIZE] |= 1L << rank;
+        if (children[i].isAll()) {
+          allBits[rank / Long.SIZE] |= 1L << rank;
+        } else {
+          leavesOnly = false;
+        }
+      }
+      this.leavesOnly = leavesOnly;
+    }
+
+    private static long fingerprint(int[] numbers, Node[] children) {
+      long fingerprint = 1;
+      for (int i = 0; i < numbers.length; i++) {
+        fingerprint = Fingerprints.combine(fingerprint, numbers[i], children[i].fingerprint);
+      }
+      return fingerprint;
+    }
+
     /**
-     * <p>If children == null, then this node contains all sub-fields.
-     * <p>If children.isEmpty, then this node contains none of its sub-fields.
+     * Creates a node from the first {@code size} {@code fields} and their {@code children}, which
+     * must be sorted by field number and must not be {@link #NONE}.
      */
-    @Nullable SortedMap<FieldDescriptor, Node> children =
-        new TreeMap<>(Comparator.comparing(FieldDescriptor::getName));
+    static Node create(FieldDescriptor[] fields, Node[] children, int size) {
+      if (size == 0) {
+        return NONE;
+      }
+
+      int[] numbers = new int[size];
+      for (int i = 0; i < size; i++) {
+        numbers[i] = fields[i].getNumber();
+      }
 
-    Node() {}
+      return new Node(
+          numbers,
+          size == fields.length ? fields : Arrays.copyOf(fields, size),
+          size == children.length ? children : Arrays.copyOf(children, size));
+    }
 
-    Node(Node other) {
-      if (other.children == null) {
-        this.children = null;
-      } else {
-        other.children.forEach((field, node) -> children.put(field, new Node(node)));
+    /** Creates a node which contains every field of {@code type} with all of its sub-fields. */
+    static Node allFieldsOf(Descriptor type) {
+      FieldDescriptor[] fields = FieldTable.forDescriptor(type).getFieldsByNumber();
+      Node[] children = new Node[fields.length];
+      Arrays.fill(children, ALL);
+      return create(fields, children, fields.length);
+    }
+
+    boolean isAll() {
+      return this == ALL;
+    }
+
+    boolean isNone() {
+      return this == NONE;
+    }
+
+    /**
+     * A hash of this node's field numbers and children, which is the same in every JVM. Equal nodes
+     * have the same fingerprint.
+     */
+    long getFingerprint() {
+      return fingerprint;
+    }
+
+    /** The number of fields that have a child node. */
+    int size() {
+      return numbers.length;
+    }
+
+    /** The number of the {@code i}th field, in field number order. */
+    int getFieldNumber(int i) {
+      return numbers[i];
+    }
+
+    /** The {@code i}th field, in field number order. */
+    FieldDescriptor getField(int i) {
+      return fields[i];
+    }
+
+    /** The {@code i}th child, in field number order. */
+    Node getChild(int i) {
+      return children[i];
+    }
+
+    /** Returns the index of the given field number, or a negative number if it has no child. */
+    int indexOf(int fieldNumber) {
+      return Arrays.binarySearch(numbers, fieldNumber);
+    }
+
+    /** Returns the child for the given field number, or {@link #NONE} if there isn't one. */
+    Node get(int fieldNumber) {
+      int i = indexOf(fieldNumber);
+      return i < 0 ? NONE : children[i];
+    }
+
+    /**
+     * Returns the child for {@code field}, which must be a field of this node's type, or {@link
+     * #NONE} if there isn't one.
+     */
+    Node get(FieldDescriptor field) {
+      return presentBits == null ? get(field.getNumber()) : getByRank(table.getRank(field));
+    }
+
+    /** Returns the child for the field with the given rank in a node with bitsets. */
+    private Node getByRank(int rank) {
+      int word = rank / Long.SIZE;
+      long bit = 1L << rank;
+      if ((presentBits[word] & bit) == 0) {
+        return NONE;
+      }
+      if ((allBits[word] & bit) != 0) {
+        return ALL;
       }
+
+      // The child's index is the number of present fields that are ranked before it.
+      int i = Long.bitCount(presentBits[word] & (bit - 1));
+      for (int w = 0; w < word; w++) {
+        i += Long.bitCount(presentBits[w]);
+      }
+      return children[i];
+    }
+
+    /**
+     * Returns the canonical node which is equal to this one. The children of canonical nodes are
+     * canonical too, so equal subtrees of interned nodes are always the same instance.
+     */
+    Node intern() {
+      if (isAll() || isNone()) {
+        return this;
+      }
+
+      Node[] internedChildren = null;
+      for (int i = 0; i < children.length; i++) {
+        Node child = children[i].intern();
+        if (child != children[i]) {
+          if (internedChildren == null) {
+            internedChildren = children.clone();
+          }
+          internedChildren[i] = child;
+        }
+      }
+
+      return INTERNER.intern(
+          internedChildren == null ? this : new Node(numbers, fields, internedChildren));
     }
 
-    <M extends Message> Stream<FieldPath<M>> listFieldPaths(FieldPath<M> prefix) {
-      if (children == null) {
-        return Stream.of(prefix);
+    /** Visits the children of this node, which must not be {@link #ALL}. */
+    void accept(FieldMaskVisitor visitor) {
+      for (int i = 0; i < size(); i++) {
+        FieldDescriptor field = fields[i];
+        if (children[i].isAll()) {
+          visitor.visitLeaf(field);
+        } else {
+          visitor.enterField(field);
+          children[i].accept(visitor);
+          visitor.exitField(field);
+        }
       }
+    }
 
-      return children.entrySet()
-          .stream()
-          .flatMap(entry -> {
-            FieldDescriptor field = entry.getKey();
-            FieldPath<M> nextPrefix = FieldPath.append(prefix, field);
+    /** Whether this node has bitsets, and all of its children are {@link #ALL}. */
+    boolean isBitsetOfLeaves() {
+      return leavesOnly;
+    }
+
+    /**
+     * Combines the bitsets of two {@linkplain #isBitsetOfLeaves() nodes of leaves} of the same type
+     * a word at a time.
+     *
+     * @return {@code a} or {@code b} if the result is the same as either of them
+     */
+    static Node combineLeaves(Node a, Node b, LongBinaryOperator operator) {
+      long[] bits = new long[a.allBits.length];
+      boolean sameAsA = true;
+      boolean sameAsB = true;
+      int size = 0;
+      for (int word = 0; word < bits.length; word++) {
+        bits[word] = operator.applyAsLong(a.allBits[word], b.allBits[word]);
+        sameAsA &= bits[word] == a.allBits[word];
+        sameAsB &= bits[word] == b.allBits[word];
+        size += Long.bitCount(bits[word]);
+      }
 
-            Node subTree = entry.getValue();
+      if (sameAsA) {
+        return a;
+      }
+      if (sameAsB) {
+        return b;
+      }
 
-            return subTree.listFieldPaths(nextPrefix);
-          });
+      FieldDescriptor[] fields = new FieldDescriptor[size];
+      Node[] children = new Node[size];
+      Arrays.fill(children, ALL);
+      int i = 0;
+      for (int word = 0; word < bits.length; word++) {
+        for (long remaining = bits[word]; remaining != 0; remaining &= remaining - 1) {
+          fields[i++] =
+              a.table.getFieldsByNumber()[word * Long.SIZE + Long.numberOfTrailingZeros(remaining)];
+        }
+      }
+      return create(fields, children, size);
     }
 
     boolean containsAll(Node other) {
-      if (children == null) {
+      if (this == other || isAll()) {
         return true;
       }
-      if (other.children == null) {
+      if (other.isAll()) {
         return false;
       }
+      if (presentBits != null && other.presentBits != null) {
+        return containsAllBits(other);
+      }
+
+      int i = 0;
+      for (int j = 0; j < other.numbers.length; j++) {
+        int number = other.numbers[j];
+        while (i < numbers.length && numbers[i] < number) {
+          i++;
+        }
+
+        if (i == numbers.length
+            || numbers[i] != number
+            || !children[i].containsAll(other.children[j])) {
+          return false;
+        }
+      }
 
-      for (Entry<FieldDescriptor, Node> child : other.children.entrySet()) {
-        FieldDescriptor field = child.getKey();
-        Node childNode = child.getValue();
+      return true;
+    }
 
-        if (!children.containsKey(field)
-            || !children.get(field).containsAll(childNode)) {
+    private boolean containsAllBits(Node other) {
+      for (int word = 0; word < presentBits.length; word++) {
+        if ((other.presentBits[word] & ~presentBits[word]) != 0
+            || (other.allBits[word] & ~allBits[word]) != 0) {
           return false;
         }
+
+        // Only the fields which are partially included by both nodes need to be compared further.
+        long partial = other.presentBits[word] & ~other.allBits[word] & ~allBits[word];
+        for (; partial != 0; partial &= partial - 1) {
+          int rank = word * Long.SIZE + Long.numberOfTrailingZeros(partial);
+          if (!getByRank(rank).containsAll(other.getByRank(rank))) {
+            return false;
+          }
+        }
       }
 
       return true;
@@ -154,28 +503,62 @@ public final class FieldMask<M extends Message> {
         return false;
       }
       Node node = (Node) o;
-      return Objects.equals(children, node.children);
+      // Children are compared last, since they're compared recursively.
+      return !isAll()
+          && !node.isAll()
+          && fingerprint == node.fingerprint
+          && Arrays.equals(fields, node.fields)
+          && Arrays.equals(children, node.children);
     }
 
     @Override
     public int hashCode() {
-      return Objects.hash(children);
+      return Long.hashCode(fingerprint);
     }
 
     @Override
     public String toString() {
-      return "Node{" +
-          "children=" + children +
-          '}';
+      if (isAll()) {
+        return "Node{ALL}";
+      }
+
+      StringBuilder sb = new StringBuilder("Node{children={");
+      for (int i = 0; i < size(); i++) {
+        if (i > 0) {
+          sb.append(", ");
+        }
+        sb.append(fields[i].getName()).append('=').append(children[i]);
+      }
+      return sb.append("}}").toString();
     }
   }
 
+  private static final Interner<FieldMask<?>> INTERNER = Interners.newWeakInterner();
+  private static final char FIELD_PATH_SEPARATOR = '.';
+
   private final ProtoDescriptor<M> descriptor;
   private final Node root;
 
+  @Nullable private volatile ProjectionPlan projectionPlan;
+  @Nullable private volatile MergePlan mergePlan;
+  @Nullable private volatile EquivalencePlan equivalencePlan;
+  /**
+   * The number of paths, or {@code -1} until a {@link FieldMaskListener} needs it. It's always
+   * computed to the same value, so it doesn't need to be volatile.
+   */
+  private int size = -1;
+
+  private final long fingerprint;
+
   private FieldMask(ProtoDescriptor<M> descriptor, Node root) {
     this.descriptor = descriptor;
     this.root = root;
+    this.fingerprint =
+        Fingerprints.mix(
+            Fingerprints.combine(
+                Fingerprints.ofString(descriptor.getDescriptorForType().getFullName()),
+                0,
+                root.getFingerprint()));
   }
 
   /** The {@link Descriptor} for {@code M} */
@@ -186,13 +569,59 @@ public final class FieldMask<M extends Message> {
   /**
    * Determines whether the given {@code fieldPath} is included in this {@code FieldMask}.
    *
+   * <p>The path is resolved as the trie is walked, without creating a {@link FieldPath}.
+   *
    * @throws IllegalArgumentException if the {@code fieldPath} is not a valid path for the proto
    *     {@linkplain #getDescriptorForType() type}
    * @see #contains(FieldPath)
    */
   public boolean contains(String fieldPath) {
-    FieldPath<M> path = FieldPath.create(getDescriptorForType(), fieldPath);
-    return contains(path);
+    return contains((CharSequence) fieldPath);
+  }
+
+  /**
+   * Determines whether the given {@code fieldPath} is included in this {@code FieldMask}, the same
+   * as {@link #contains(String)}, without copying it to a {@code String} first.
+   *
+   * @throws IllegalArgumentException if the {@code fieldPath} is not a valid path for the proto
+   *     {@linkplain #getDescriptorForType() type}
+   */
+  public boolean contains(CharSequence fieldPath) {
+    FieldMaskListener listener = FieldMaskListeners.current();
+    if (listener == null) {
+      return doContains(fieldPath);
+    }
+
+    long start = System.nanoTime();
+    boolean contains = doContains(fieldPath);
+    listener.onContains(descriptor.getDescriptorForType(), size(), System.nanoTime() - start);
+    return contains;
+  }
+
+  private boolean doContains(CharSequence fieldPath) {
+    Descriptor type = descriptor.getDescriptorForType();
+    Node node = root;
+
+    int segmentStart = 0;
+    for (int i = 0; ; i++) {
+      if (i == fieldPath.length() || fieldPath.charAt(i) == FIELD_PATH_SEPARATOR) {
+        Preconditions.checkArgument(
+            type != null && i > segmentStart, "Invalid pathString: %s", fieldPath);
+        FieldDescriptor field = FieldTable.forDescriptor(type).find(fieldPath, segmentStart, i);
+        Preconditions.checkArgument(field != null, "Invalid pathString: %s", fieldPath);
+
+        // The rest of the path still has to be validated once the trie reaches a leaf.
+        if (!node.isAll() && !node.isNone()) {
+          node = node.get(field);
+        }
+        if (i == fieldPath.length()) {
+          return !node.isNone();
+        }
+
+        type = FieldPath.getSubFieldType(field);
+        segmentStart = i + 1;
+      }
+    }
   }
 
   /**
@@ -202,24 +631,128 @@ public final class FieldMask<M extends Message> {
    * {@code FieldMask} or any of its sub-fields are contained by this {@code FieldMask}.
    */
   public boolean contains(FieldPath<M> path) {
+    FieldMaskListener listener = FieldMaskListeners.current();
+    if (listener == null) {
+      return doContains(path);
+    }
+
+    long start = System.nanoTime();
+    boolean contains = doContains(path);
+    listener.onContains(descriptor.getDescriptorForType(), size(), System.nanoTime() - start);
+    return contains;
+  }
+
+  private boolean doContains(FieldPath<M> path) {
+    ImmutableList<FieldDescriptor> fields = path.getPath();
+
     Node node = root;
-    for (FieldDescriptor field : path.getPath()) {
-      if (node.children == null) {
+    for (int i = 0; i < fields.size(); i++) {
+      if (node.isAll()) {
         return true;
       }
 
-      if (!node.children.containsKey(field)) {
+      node = node.get(fields.get(i));
+      if (node.isNone()) {
         return false;
       }
-
-      node = node.children.get(field);
     }
 
-    return node.children == null || !node.children.isEmpty();
+    return !node.isNone();
   }
 
   public boolean containsAll(FieldMask<M> other) {
-    return root.containsAll(other.root);
+    FieldMaskListener listener = FieldMaskListeners.current();
+    if (listener == null) {
+      return root.containsAll(other.root);
+    }
+
+    long start = System.nanoTime();
+    boolean containsAll = root.containsAll(other.root);
+    listener.onContains(descriptor.getDescriptorForType(), size(), System.nanoTime() - start);
+    return containsAll;
+  }
+
+  /**
+   * Returns a {@code FieldMask} which contains every path in this {@code FieldMask} or {@code
+   * other}.
+   *
+   * Parts of either {@code FieldMask} which aren't changed by the union are shared with the result,
+   * rather than copied.
+   */
+  public FieldMask<M> union(FieldMask<M> other) {
+    return withRoot(NodeOperations.union(root, other.root), other);
+  }
+
+  /**
+   * Returns a {@code FieldMask} which contains every path in both this {@code FieldMask} and {@code
+   * other}.
+   *
+   * Parts of either {@code FieldMask} which aren't changed by the intersection are shared with the
+   * result, rather than copied.
+   */
+  public FieldMask<M> intersect(FieldMask<M> other) {
+    return withRoot(NodeOperations.intersect(root, other.root), other);
+  }
+
+  /**
+   * Returns a {@code FieldMask} which contains every path in this {@code FieldMask} that isn't in
+   * {@code other}.
+   *
+   * Parts of this {@code FieldMask} which aren't changed by the subtraction are shared with the
+   * result, rather than copied.
+   */
+  public FieldMask<M> subtract(FieldMask<M> other) {
+    return withRoot(
+        NodeOperations.subtract(root, other.root, descriptor.getDescriptorForType()), other);
+  }
+
+  /**
+   * Returns a 64-bit hash of this {@code FieldMask}, which is computed when it's created.
+   *
+   * <p>The fingerprint only depends on the full name of the message type and the field numbers in
+   * this {@code FieldMask}, so it's the same in every JVM and can be used as part of a shared cache
+   * key. Equal {@code FieldMask}s have the same fingerprint.
+   */
+  public long fingerprint() {
+    return fingerprint;
+  }
+
+  /**
+   * Returns the canonical {@code FieldMask} which is equal to this one.
+   *
+   * <p>Interned {@code FieldMask}s share every equal subtree with each other, so holding many
+   * interned {@code FieldMask}s which repeat the same paths only stores those paths once. Equal
+   * interned {@code FieldMask}s are the same instance, and comparing interned {@code FieldMask}s
+   * with {@link #equals(Object)} or {@link #containsAll(FieldMask)} skips any subtrees they share.
+   *
+   * <p>Interned {@code FieldMask}s are only held weakly, and are discarded once they're no longer
+   * used.
+   */
+  public FieldMask<M> intern() {
+    Node internedRoot = root.intern();
+
+    FieldMask<M> candidate =
+        internedRoot == root ? this : new FieldMask<>(descriptor, internedRoot);
+    FieldMask<?> interned = INTERNER.intern(candidate);
+    if (interned.descriptor != descriptor) {
+      // An equal ProtoDescriptor can have a different message class, which this FieldMask's users
+      // rely on.
+      return candidate;
+    }
+
+    @SuppressWarnings("unchecked")
+    FieldMask<M> result = (FieldMask<M>) interned;
+    return result;
+  }
+
+  private FieldMask<M> withRoot(Node newRoot, FieldMask<M> other) {
+    if (newRoot == root) {
+      return this;
+    }
+    if (newRoot == other.root) {
+      return other;
+    }
+    return new FieldMask<>(descriptor, newRoot);
   }
 
   /**
@@ -275,23 +808,424 @@ public final class FieldMask<M extends Message> {
     }
 
     Preconditions.checkArgument(path.getLastField().getJavaType() == JavaType.MESSAGE);
-    ProtoDescriptor<?> subFieldDescriptor =
-        ProtoDescriptor.create(path.getLastField().getMessageType());
+    ImmutableList<FieldDescriptor> fields = path.getPath();
+
+    ProtoDescriptor<?> subFieldDescriptor = descriptor;
+    for (int i = 0; i < fields.size(); i++) {
+      subFieldDescriptor = subFieldDescriptor.getMessageFieldType(fields.get(i));
+    }
 
     Node node = root;
-    for (FieldDescriptor field : path.getPath()) {
-      if (node.children == null) {
-        return new FieldMask<>(subFieldDescriptor, node);
-      }
+    for (int i = 0; i < fields.size() && !node.isAll() && !node.isNone(); i++) {
+      node = node.get(fields.get(i));
+    }
+
+    return new FieldMask<>(subFieldDescriptor, node);
+  }
+
+  /**
+   * Returns a copy of {@code message} which only contains the fields in this {@code FieldMask}.
+   *
+   * <p>Sub-messages whose fields are all included are shared with {@code message} instead of being
+   * copied, and if {@code message} doesn't have any fields outside of this {@code FieldMask},
+   * {@code message} itself is returned. Otherwise, unknown fields are only retained inside of the
+   * sub-messages that are shared.
+   *
+   * <p>Repeated message fields which only include some of their sub-fields are projected element by
+   * element, and their elements are projected in parallel in the {@linkplain
+   * ForkJoinPool#commonPool() common pool} once there are enough of them.
+   *
+   * @throws IllegalArgumentException if {@code message} is not of this {@code FieldMask}'s
+   *     {@linkplain #getDescriptorForType() type}
+   */
+  public M project(M message) {
+    FieldMaskListener listener = FieldMaskListeners.current();
+    long start = listener == null ? 0 : System.nanoTime();
+
+    @SuppressWarnings("unchecked")
+    M projection = (M) getProjectionPlan().project(message);
+
+    if (listener != null) {
+      onProject(listener, message, projection, start);
+    }
+    return projection;
+  }
 
-      if (!node.children.containsKey(field)) {
-        return new FieldMask<>(subFieldDescriptor, new Node());
+  /**
+   * Returns a copy of {@code message} which only contains the fields in this {@code FieldMask}, the
+   * same as {@link #project(Message)}.
+   *
+   * <p>The elements of any repeated field with at least {@code parallelThreshold} elements are
+   * split up and projected in {@code pool}. The order of the elements is always preserved.
+   *
+   * @throws IllegalArgumentException if {@code message} is not of this {@code FieldMask}'s
+   *     {@linkplain #getDescriptorForType() type}, or if {@code parallelThreshold} isn't positive
+   */
+  public M project(M message, ForkJoinPool pool, int parallelThreshold) {
+    FieldMaskListener listener = FieldMaskListeners.current();
+    long start = listener == null ? 0 : System.nanoTime();
+
+    @SuppressWarnings("unchecked")
+    M projection = (M) getProjectionPlan().project(message, pool, parallelThreshold);
+
+    if (listener != null) {
+      onProject(listener, message, projection, start);
+    }
+    return projection;
+  }
+
+  /** Reports a projection which started at {@code start}. */
+  void onProject(FieldMaskListener listener, Message message, Message projection, long start) {
+    long duration = System.nanoTime() - start;
+    listener.onProject(
+        descriptor.getDescriptorForType(),
+        size(),
+        duration,
+        message,
+        projection);
+  }
+
+  /**
+   * Returns a {@link Stream} of the {@linkplain #project(Message) projections} of each of the
+   * {@code messages}.
+   *
+   * <p>The returned stream is lazy, and it is parallel if {@code messages} is. Each thread working
+   * on the stream reuses the same builder for all of the projections it builds, instead of
+   * creating a new builder per message. Closing the returned stream closes {@code messages}.
+   *
+   * @throws IllegalArgumentException when the stream is consumed, if any of the {@code messages}
+   *     is not of this {@code FieldMask}'s {@linkplain #getDescriptorForType() type}
+   */
+  public Stream<M> projectAll(Stream<M> messages) {
+    return StreamSupport.stream(projectAll(messages.spliterator()), messages.isParallel())
+        .onClose(messages::close);
+  }
+
+  /**
+   * Returns a {@link Spliterator} of the {@linkplain #project(Message) projections} of each of the
+   * {@code messages}.
+   *
+   * <p>The returned {@code Spliterator} has the same characteristics as {@code messages}, except
+   * that it is never {@link Spliterator#DISTINCT} or {@link Spliterator#SORTED}. It reuses the
+   * same builder for all of the projections it builds, and each {@code Spliterator} {@linkplain
+   * Spliterator#trySplit() split} from it gets its own builder.
+   */
+  public Spliterator<M> projectAll(Spliterator<M> messages) {
+    return new ProjectingSpliterator<>(
+        messages,
+        this,
+        getProjectionPlan(),
+        ForkJoinPool.commonPool(),
+        ProjectionPlan.DEFAULT_PARALLEL_THRESHOLD);
+  }
+
+  /**
+   * Projects each of the {@code messages} in parallel in {@code pool}, and passes the projections
+   * to {@code action}. Blocks until every message has been projected.
+   *
+   * <p>If {@code ordered} is {@code true}, {@code action} receives the projections one at a time,
+   * in the encounter order of {@code messages}. Otherwise, it receives them as soon as they're
+   * ready, and it may be called from several threads at once.
+   *
+   * @throws IllegalArgumentException if any of the {@code messages} is not of this {@code
+   *     FieldMask}'s {@linkplain #getDescriptorForType() type}
+   */
+  public void projectAll(
+      Stream<M> messages, ForkJoinPool pool, boolean ordered, Consumer<? super M> action) {
+    Stream<M> projections =
+        StreamSupport.stream(
+            new ProjectingSpliterator<>(
+                messages.spliterator(),
+                this,
+                getProjectionPlan(),
+                pool,
+                ProjectionPlan.DEFAULT_PARALLEL_THRESHOLD),
+            true);
+
+    // A parallel stream forks its tasks into the pool that its terminal operation runs in.
+    pool.invoke(
+        ForkJoinTask.adapt(
+            ordered
+                ? () -> projections.forEachOrdered(action)
+                : () -> projections.unordered().forEach(action)));
+  }
+
+  /**
+   * Returns an {@link Equivalence} under which two messages are equivalent when their {@linkplain
+   * #project(Message) projections} are equal.
+   *
+   * <p>Only the fields in this {@code FieldMask} are read, and nothing is projected. The {@link
+   * Equivalence#hash(Object) hash} is derived from {@link #hash64(Message)}.
+   */
+  public Equivalence<M> equivalence() {
+    return new MaskEquivalence<>(this);
+  }
+
+  /**
+   * Returns a 64-bit hash of the fields of {@code message} in this {@code FieldMask}. Messages
+   * which are {@linkplain #equivalence() equivalent} have the same hash.
+   *
+   * @throws IllegalArgumentException if {@code message} is not of this {@code FieldMask}'s
+   *     {@linkplain #getDescriptorForType() type}
+   */
+  public long hash64(M message) {
+    return getEquivalencePlan().hash64(message);
+  }
+
+  /**
+   * Returns a {@link Comparator} which orders messages by the fields in this {@code FieldMask}.
+   *
+   * <p>Fields are compared in field number order, and unset fields come before set ones. Repeated
+   * fields are compared element by element, and map fields by their entries in key order. The
+   * ordering is consistent with {@link #equivalence()}, except that the unknown fields of
+   * sub-messages are ignored.
+   */
+  public Comparator<M> comparator() {
+    EquivalencePlan plan = getEquivalencePlan();
+    return plan::compare;
+  }
+
+  /**
+   * Returns a {@code FieldMask} of the paths in this {@code FieldMask} whose values differ between
+   * {@code before} and {@code after}.
+   *
+   * <p>Sub-messages which are set in both messages are compared field by field, so that only the
+   * sub-fields which changed are included. A field which is only set in one of the messages is
+   * included with all of its paths in this {@code FieldMask}, and repeated and map fields are
+   * included as a whole if any of their elements changed. Unknown fields are ignored, and identical
+   * sub-messages are not compared at all.
+   *
+   * <p>Use {@link #allowAll(Class)} to compare every field.
+   *
+   * @throws IllegalArgumentException if {@code before} or {@code after} are not of this {@code
+   *     FieldMask}'s {@linkplain #getDescriptorForType() type}
+   */
+  public FieldMask<M> diff(M before, M after) {
+    Descriptor type = descriptor.getDescriptorForType();
+    Preconditions.checkArgument(
+        before.getDescriptorForType() == type && after.getDescriptorForType() == type,
+        "Type mismatch. %s and %s != %s",
+        before.getDescriptorForType().getFullName(),
+        after.getDescriptorForType().getFullName(),
+        type.getFullName());
+
+    return new FieldMask<>(descriptor, MessageDiff.diff(root, before, after));
+  }
+
+  /**
+   * Filters a serialized {@code M} down to the fields in this {@code FieldMask} without parsing it.
+   *
+   * <p>Parsing the result is equivalent to {@linkplain #project(Message) projecting} the parsed
+   * {@code serialized} message. Fields which aren't included are skipped without being decoded,
+   * and the tags and values of included fields are copied as-is.
+   *
+   * @throws InvalidProtocolBufferException if {@code serialized} is malformed
+   */
+  public ByteString filter(ByteString serialized) throws InvalidProtocolBufferException {
+    FieldMaskListener listener = FieldMaskListeners.current();
+    if (listener == null) {
+      return WireFilter.filter(root, serialized);
+    }
+
+    long start = System.nanoTime();
+    ByteString filtered = WireFilter.filter(root, serialized);
+    listener.onFilter(
+        descriptor.getDescriptorForType(),
+        size(),
+        System.nanoTime() - start,
+        serialized.size(),
+        filtered.size());
+    return filtered;
+  }
+
+  /**
+   * Filters a serialized {@code M} down to the fields in this {@code FieldMask} without parsing it.
+   *
+   * @throws InvalidProtocolBufferException if {@code serialized} is malformed
+   * @see #filter(ByteString)
+   */
+  public byte[] filter(byte[] serialized) throws InvalidProtocolBufferException {
+    FieldMaskListener listener = FieldMaskListeners.current();
+    if (listener == null) {
+      return WireFilter.filter(root, serialized);
+    }
+
+    long start = System.nanoTime();
+    byte[] filtered = WireFilter.filter(root, serialized);
+    listener.onFilter(
+        descriptor.getDescriptorForType(),
+        size(),
+        System.nanoTime() - start,
+        serialized.length,
+        filtered.length);
+    return filtered;
+  }
+
+  /**
+   * Filters the {@linkplain ByteBuffer#remaining() remaining} bytes of a serialized {@code M} down
+   * to the fields in this {@code FieldMask} without parsing them. The {@code serialized} buffer's
+   * position is left unchanged.
+   *
+   * @throws InvalidProtocolBufferException if {@code serialized} is malformed
+   * @see #filter(ByteString)
+   */
+  public ByteBuffer filter(ByteBuffer serialized) throws InvalidProtocolBufferException {
+    FieldMaskListener listener = FieldMaskListeners.current();
+    if (listener == null) {
+      return WireFilter.filter(root, serialized);
+    }
+
+    long start = System.nanoTime();
+    ByteBuffer filtered = WireFilter.filter(root, serialized);
+    listener.onFilter(
+        descriptor.getDescriptorForType(),
+        size(),
+        System.nanoTime() - start,
+        serialized.remaining(),
+        filtered.remaining());
+    return filtered;
+  }
+
+  /**
+   * Parses a serialized {@code M}, but only decodes the fields in this {@code FieldMask}.
+   *
+   * <p>The result is equivalent to {@linkplain #project(Message) projecting} the fully parsed
+   * message, but fields which aren't included are skipped instead of being decoded. Since
+   * required fields may be excluded, the result is not checked for them.
+   *
+   * <p>If this {@code FieldMask}'s {@linkplain #getDescriptorForType() type} was {@linkplain
+   * ProtoDescriptor#create(Descriptor) created} from a {@code Descriptor}, the result is a {@link
+   * com.google.protobuf.DynamicMessage}.
+   *
+   * @throws InvalidProtocolBufferException if {@code data} is malformed
+   */
+  public M parseFrom(ByteString data) throws InvalidProtocolBufferException {
+    try {
+      return parseFrom(data.newCodedInput());
+    } catch (InvalidProtocolBufferException e) {
+      throw e;
+    } catch (IOException e) {
+      throw new IllegalStateException("Reading from a ByteString shouldn't fail.", e);
+    }
+  }
+
+  /**
+   * Parses a serialized {@code M} from {@code input}, but only decodes the fields in this {@code
+   * FieldMask}.
+   *
+   * @see #parseFrom(ByteString)
+   */
+  public M parseFrom(InputStream input) throws IOException {
+    return parseFrom(CodedInputStream.newInstance(input));
+  }
+
+  /**
+   * Parses a serialized {@code M} from {@code input}, but only decodes the fields in this {@code
+   * FieldMask}.
+   *
+   * @see #parseFrom(ByteString)
+   */
+  public M parseFrom(CodedInputStream input) throws IOException {
+    Message.Builder builder = descriptor.getDefaultInstanceForType().newBuilderForType();
+    MaskedParser.mergeFrom(input, root, builder);
+
+    @SuppressWarnings("unchecked")
+    M message = (M) builder.buildPartial();
+    return message;
+  }
+
+  /**
+   * Merges the fields in this {@code FieldMask} from {@code source} into {@code destination}, using
+   * the default {@link MergeOptions}.
+   *
+   * @throws IllegalArgumentException if {@code source} or {@code destination} are not of this
+   *     {@code FieldMask}'s {@linkplain #getDescriptorForType() type}
+   * @see #merge(Message, Message.Builder, MergeOptions)
+   */
+  public void merge(M source, Message.Builder destination) {
+    merge(source, destination, new MergeOptions());
+  }
+
+  /**
+   * Merges the fields in this {@code FieldMask} from {@code source} into {@code destination}.
+   *
+   * <p>This follows the same rules as {@link
+   * com.google.protobuf.util.FieldMaskUtil#merge(com.google.protobuf.FieldMask, Message,
+   * Message.Builder, MergeOptions)}, except that:
+   *
+   * <ul>
+   *   <li>If this {@code FieldMask} is {@link #allowAll(Class)}, every field is merged.
+   *   <li>Repeated message fields which only include some of their sub-fields are merged like
+   *       other repeated fields, after each of {@code source}'s elements is {@linkplain
+   *       #project(Message) projected}. {@code FieldMaskUtil} doesn't merge them at all, since it
+   *       doesn't allow paths past repeated fields.
+   * </ul>
+   *
+   * <p>The mask is only examined the first time it's used to merge, so merging many messages with
+   * the same {@code FieldMask} doesn't need to look up any fields by name.
+   *
+   * @throws IllegalArgumentException if {@code source} or {@code destination} are not of this
+   *     {@code FieldMask}'s {@linkplain #getDescriptorForType() type}
+   */
+  public void merge(M source, Message.Builder destination, MergeOptions options) {
+    FieldMaskListener listener = FieldMaskListeners.current();
+    if (listener == null) {
+      getMergePlan().merge(source, destination, options);
+      return;
+    }
+
+    long start = System.nanoTime();
+    getMergePlan().merge(source, destination, options);
+    listener.onMerge(descriptor.getDescriptorForType(), size(), System.nanoTime() - start);
+  }
+
+  /** The number of paths in this {@code FieldMask}, counting {@link #allowAll} as one path. */
+  int size() {
+    int size = this.size;
+    if (size < 0) {
+      if (root.isAll()) {
+        size = 1;
+      } else {
+        int[] leaves = new int[1];
+        root.accept(
+            new FieldMaskVisitor() {
+              @Override
+              public void visitLeaf(FieldDescriptor field) {
+                leaves[0]++;
+              }
+            });
+        size = leaves[0];
       }
+      this.size = size;
+    }
+    return size;
+  }
 
-      node = node.children.get(field);
+  private EquivalencePlan getEquivalencePlan() {
+    EquivalencePlan plan = equivalencePlan;
+    if (plan == null) {
+      plan = EquivalencePlan.compile(descriptor.getDescriptorForType(), root);
+      equivalencePlan = plan;
     }
+    return plan;
+  }
 
-    return new FieldMask<>(subFieldDescriptor, node);
+  private MergePlan getMergePlan() {
+    MergePlan plan = mergePlan;
+    if (plan == null) {
+      plan = MergePlan.compile(descriptor.getDescriptorForType(), root);
+      mergePlan = plan;
+    }
+    return plan;
+  }
+
+  private ProjectionPlan getProjectionPlan() {
+    ProjectionPlan plan = projectionPlan;
+    if (plan == null) {
+      plan = ProjectionPlan.compile(descriptor.getDefaultInstanceForType(), root);
+      projectionPlan = plan;
+    }
+    return plan;
   }
 
   /**
@@ -302,16 +1236,78 @@ public final class FieldMask<M extends Message> {
    * Otherwise, the returned value will be present.
    */
   public final Optional<com.google.protobuf.FieldMask> toProto() {
-    if (root.children == null) {
+    if (root.isAll()) {
       return Optional.empty();
     }
 
-    com.google.protobuf.FieldMask.Builder fieldMask = com.google.protobuf.FieldMask.newBuilder();
-    root.listFieldPaths(FieldPath.create(descriptor))
-        .map(FieldPath::toPathString)
-        .forEachOrdered(fieldMask::addPaths);
+    List<String> paths = new ArrayList<>();
+    StringBuilder path = new StringBuilder();
+    root.accept(
+        new FieldMaskVisitor() {
+          @Override
+          public void visitLeaf(FieldDescriptor field) {
+            int length = path.length();
+            paths.add(path.append(field.getName()).toString());
+            path.setLength(length);
+          }
+
+          @Override
+          public void enterField(FieldDescriptor field) {
+            path.append(field.getName()).append(FIELD_PATH_SEPARATOR);
+          }
+
+          @Override
+          public void exitField(FieldDescriptor field) {
+            path.setLength(path.length() - field.getName().length() - 1);
+          }
+        });
+
+    // The trie is ordered by field number, but normalized masks are ordered by path string.
+    paths.sort(null);
+    return Optional.of(com.google.protobuf.FieldMask.newBuilder().addAllPaths(paths).build());
+  }
+
+  /**
+   * Passes the contents of this {@code FieldMask} to {@code visitor}, without creating any {@link
+   * FieldPath}s.
+   *
+   * @see FieldMaskVisitor
+   */
+  public void accept(FieldMaskVisitor visitor) {
+    if (root.isAll()) {
+      visitor.visitAllFields();
+    } else {
+      root.accept(visitor);
+    }
+  }
+
+  /**
+   * Writes this {@code FieldMask} to {@code output} in a compact binary encoding, which can be read
+   * with {@link #readFrom(Class, CodedInputStream)}.
+   *
+   * <p>The encoding identifies fields by their numbers instead of their names, so it's much
+   * smaller than {@link #toProto()} and is decoded without looking up any names. It doesn't
+   * include the message type, which has to be known to read it.
+   */
+  public void writeTo(CodedOutputStream output) throws IOException {
+    FieldMaskCodec.writeTo(root, output);
+  }
+
+  /**
+   * Writes this {@code FieldMask} to {@code output} in a compact binary encoding, starting at
+   * {@code output}'s position. The position is advanced past the {@code FieldMask}.
+   *
+   * @throws java.nio.BufferOverflowException if {@code output} has fewer than {@link
+   *     #getSerializedSize()} bytes remaining
+   * @see #writeTo(CodedOutputStream)
+   */
+  public void writeTo(ByteBuffer output) {
+    FieldMaskCodec.writeTo(root, output);
+  }
 
-    return Optional.of(fieldMask.build());
+  /** The number of bytes in this {@code FieldMask}'s compact binary encoding. */
+  public int getSerializedSize() {
+    return FieldMaskCodec.getSerializedSize(root);
   }
 
   /**
@@ -345,13 +1341,14 @@ public final class FieldMask<M extends Message> {
       return false;
     }
     FieldMask<?> fieldMask = (FieldMask<?>) o;
-    return Objects.equals(descriptor, fieldMask.descriptor) &&
+    return fingerprint == fieldMask.fingerprint &&
+        Objects.equals(descriptor, fieldMask.descriptor) &&
         Objects.equals(root, fieldMask.root);
   }
 
   @Override
   public int hashCode() {
-    return Objects.hash(descriptor, root);
+    return Long.hashCode(fingerprint);
   }
 
   @Override
@@ -362,11 +1359,121 @@ public final class FieldMask<M extends Message> {
         '}';
   }
 
+  private static final class MaskEquivalence<M extends Message> extends Equivalence<M> {
+    private final FieldMask<M> fieldMask;
+
+    MaskEquivalence(FieldMask<M> fieldMask) {
+      this.fieldMask = fieldMask;
+    }
+
+    @Override
+    protected boolean doEquivalent(M a, M b) {
+      return fieldMask.getEquivalencePlan().equivalent(a, b);
+    }
+
+    @Override
+    protected int doHash(M message) {
+      return Long.hashCode(fieldMask.hash64(message));
+    }
+
+    @Override
+    public boolean equals(Object o) {
+      return o instanceof MaskEquivalence && fieldMask.equals(((MaskEquivalence<?>) o).fieldMask);
+    }
+
+    @Override
+    public int hashCode() {
+      return fieldMask.hashCode();
+    }
+
+    @Override
+    public String toString() {
+      return fieldMask + ".equivalence()";
+    }
+  }
+
   /** A builder for {@code FieldMask}s. */
   public final static class Builder<M extends Message> {
+    /**
+     * The mutable counterpart of {@link Node}, which is {@linkplain #freeze() frozen} by {@link
+     * #build()}.
+     *
+     * <p>Each node remembers what it was frozen to until it changes, so building again only
+     * re-freezes the nodes along the paths added since the last build. Everything else is shared
+     * with the {@code FieldMask}s that were already built.
+     *
+     * <p>Re-freezing a node copies its whole level, so a build costs the number of fields included
+     * at each level along the new paths. That's bounded by the number of fields in those message
+     * types, but building after each addition to a single level is still quadratic in its width.
+     */
+    private static final class MutableNode {
+      /**
+       * <p>If children == null, then this node contains all sub-fields.
+       * <p>If children.isEmpty, then this node contains none of its sub-fields.
+       */
+      @Nullable SortedMap<FieldDescriptor, MutableNode> children =
+          new TreeMap<>(Comparator.comparingInt(FieldDescriptor::getNumber));
+      /** The result of the last {@link #freeze()}, or {@code null} if this node has changed. */
+      @Nullable Node frozen;
+
+      /**
+       * Adds the path formed by {@code fields}, starting at {@code depth}.
+       *
+       * @return whether this node changed
+       */
+      boolean add(List<FieldDescriptor> fields, int depth) {
+        if (children == null) {
+          return false;
+        }
+
+        if (depth == fields.size()) {
+          children = null;
+        } else {
+          MutableNode child =
+              children.computeIfAbsent(fields.get(depth), ignored -> new MutableNode());
+          if (!child.add(fields, depth + 1)) {
+            return false;
+          }
+        }
+
+        frozen = null;
+        return true;
+      }
+
+      Node freeze() {
+        if (frozen == null) {
+          frozen = doFreeze();
+        }
+        return frozen;
+      }
+
+      private Node doFreeze() {
+        if (children == null) {
+          return Node.ALL;
+        }
+        if (children.isEmpty()) {
+          return Node.NONE;
+        }
+
+        int[] numbers = new int[children.size()];
+        FieldDescriptor[] fields = new FieldDescriptor[children.size()];
+        Node[] frozenChildren = new Node[children.size()];
+
+        int i = 0;
+        for (Entry<FieldDescriptor, MutableNode> child : children.entrySet()) {
+          numbers[i] = child.getKey().getNumber();
+          fields[i] = child.getKey();
+          frozenChildren[i] = child.getValue().freeze();
+          i++;
+        }
+
+        return new Node(numbers, fields, frozenChildren);
+      }
+    }
+
     private final ProtoDescriptor<M> descriptor;
-    private Node root = new Node();
-    private boolean dirty = false;
+    private final MutableNode root = new MutableNode();
+    @Nullable private FieldMask<M> lastBuilt;
 
     private Builder(ProtoDescriptor<M> descriptor) {
       this.descriptor = descriptor;
@@ -379,15 +1486,6 @@ public final class FieldMask<M extends Message> {
       addAllFieldPaths(paths);
     }
 
-    Node getRoot() {
-      if (dirty) {
-        dirty = false;
-        root = new Node(root);
-      }
-
-      return root;
-    }
-
     /**
      * Add the specified {@code path} to this {@code Builder}.
      *
@@ -399,27 +1497,39 @@ public final class FieldMask<M extends Message> {
      *     {@linkplain FieldMask#getDescriptorForType() type}.
      */
     public Builder<M> addFieldPath(FieldPath<M> path) {
-      Node node = getRoot();
-      for (FieldDescriptor field : path.getPath()) {
-        if (node.children == null) {
-          return this;
-        }
-
-        node = node.children.computeIfAbsent(field, ignored -> new Node());
-      }
-
-      node.children = null;
+      addFields(path.getPath());
       return this;
     }
 
+    /** Adds the path formed by {@code fields}, which must already be validated. */
+    private void addFields(List<FieldDescriptor> fields) {
+      root.add(fields, 0);
+    }
+
     public Builder<M> addAllFieldPaths(Iterable<? extends FieldPath<M>> paths) {
       paths.forEach(this::addFieldPath);
       return this;
     }
 
     public FieldMask<M> build() {
-      dirty = true;
-      return new FieldMask<>(descriptor, root);
+      FieldMaskListener listener = FieldMaskListeners.current();
+      if (listener == null) {
+        return doBuild();
+      }
+
+      long start = System.nanoTime();
+      FieldMask<M> built = doBuild();
+      listener.onBuild(
+          descriptor.getDescriptorForType(), built.size(), System.nanoTime() - start);
+      return built;
+    }
+
+    private FieldMask<M> doBuild() {
+      Node frozenRoot = root.freeze();
+      if (lastBuilt == null || lastBuilt.root != frozenRoot) {
+        lastBuilt = new FieldMask<>(descriptor, frozenRoot);
+      }
+      return lastBuilt;
     }
   }
 }
@@ -0,0 +1,164 @@
+package name.falgout.jeffrey.proto.fieldmask;
+
+import com.google.protobuf.CodedInputStream;
+import com.google.protobuf.CodedOutputStream;
+import com.google.protobuf.Descriptors.Descriptor;
+import com.google.protobuf.Descriptors.FieldDescriptor;
+import com.google.protobuf.InvalidProtocolBufferException;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import javax.annotation.Nullable;
+import name.falgout.jeffrey.proto.fieldmask.FieldMask.Node;
+
+/**
+ * A compact binary encoding of {@link FieldMask.Node}s.
+ *
+ * <p>Each node is written in pre-order as a varint header, which is {@value #NONE} for {@link
+ * Node#NONE}, {@value #ALL} for {@link Node#ALL}, and otherwise one more than the number of
+ * children. The header of a partial node is followed by each of its children, in field number
+ * order, as the varint difference between its field number and the previous one, followed by the
+ * child node itself. Only the root can be {@code NONE}.
+ */
+final class FieldMaskCodec {
+  private static final int NONE = 0;
+  private static final int ALL = 1;
+  private static final int RECURSION_LIMIT = 100;
+
+  @FunctionalInterface
+  private interface VarintOutput {
+    void write(int value) throws IOException;
+  }
+
+  @FunctionalInterface
+  private interface VarintInput {
+    int read() throws IOException;
+  }
+
+  private FieldMaskCodec() {}
+
+  static int getSerializedSize(Node node) {
+    if (node.isNone() || node.isAll()) {
+      return 1;
+    }
+
+    int size = CodedOutputStream.computeUInt32SizeNoTag(node.size() + 1);
+    int previousNumber = 0;
+    for (int i = 0; i < node.size(); i++) {
+      size += CodedOutputStream.computeUInt32SizeNoTag(node.getFieldNumber(i) - previousNumber);
+      size += getSerializedSize(node.getChild(i));
+      previousNumber = node.getFieldNumber(i);
+    }
+    return size;
+  }
+
+  static void writeTo(Node node, CodedOutputStream output) throws IOException {
+    write(node, output::writeUInt32NoTag);
+  }
+
+  static void writeTo(Node node, ByteBuffer output) {
+    try {
+      write(
+          node,
+          value -> {
+            while ((value & ~0x7F) != 0) {
+              output.put((byte) ((value & 0x7F) | 0x80));
+              value >>>= 7;
+            }
+            output.put((byte) value);
+          });
+    } catch (IOException e) {
+      throw new IllegalStateException("Writing to a ByteBuffer shouldn't fail.", e);
+    }
+  }
+
+  private static void write(Node node, VarintOutput output) throws IOException {
+    if (node.isNone()) {
+      output.write(NONE);
+      return;
+    }
+    if (node.isAll()) {
+      output.write(ALL);
+      return;
+    }
+
+    output.write(node.size() + 1);
+    int previousNumber = 0;
+    for (int i = 0; i < node.size(); i++) {
+      output.write(node.getFieldNumber(i) - previousNumber);
+      write(node.getChild(i), output);
+      previousNumber = node.getFieldNumber(i);
+    }
+  }
+
+  static Node readFrom(Descriptor type, CodedInputStream input) throws IOException {
+    return readRoot(type, input::readUInt32);
+  }
+
+  static Node readFrom(Descriptor type, ByteBuffer input) throws InvalidProtocolBufferException {
+    try {
+      return readRoot(type, () -> readVarint(input));
+    } catch (InvalidProtocolBufferException e) {
+      throw e;
+    } catch (IOException e) {
+      throw new IllegalStateException("Reading from a ByteBuffer shouldn't fail.", e);
+    }
+  }
+
+  private static int readVarint(ByteBuffer input) throws InvalidProtocolBufferException {
+    int value = 0;
+    for (int shift = 0; shift < 32; shift += 7) {
+      if (!input.hasRemaining()) {
+        throw new InvalidProtocolBufferException("The FieldMask ended unexpectedly.");
+      }
+
+      byte b = input.get();
+      value |= (b & 0x7F) << shift;
+      if (b >= 0) {
+        return value;
+      }
+    }
+    throw new InvalidProtocolBufferException("The FieldMask contained a malformed varint.");
+  }
+
+  private static Node readRoot(Descriptor type, VarintInput input) throws IOException {
+    int header = input.read();
+    return header == NONE ? Node.NONE : readNode(type, header, input, 0);
+  }
+
+  private static Node readNode(
+      @Nullable Descriptor type, int header, VarintInput input, int depth) throws IOException {
+    if (header == ALL) {
+      return Node.ALL;
+    }
+    // Only the root can be NONE, and a node can't have more children than its type has fields.
+    if (header <= NONE
+        || type == null
+        || header - 1 > type.getFields().size()
+        || depth >= RECURSION_LIMIT) {
+      throw new InvalidProtocolBufferException("Invalid FieldMask encoding.");
+    }
+
+    int size = header - 1;
+    FieldDescriptor[] fields = new FieldDescriptor[size];
+    Node[] children = new Node[size];
+
+    int number = 0;
+    for (int i = 0; i < size; i++) {
+      int delta = input.read();
+      if (delta <= 0) {
+        throw new InvalidProtocolBufferException("Invalid FieldMask encoding.");
+      }
+      number += delta;
+
+      fields[i] = type.findFieldByNumber(number);
+      if (fields[i] == null) {
+        throw new InvalidProtocolBufferException(
+            "Unknown field number " + number + " in " + type.getFullName());
+      }
+      children[i] =
+          readNode(FieldPath.getSubFieldType(fields[i]), input.read(), input, depth + 1);
+    }
+
+    return Node.create(fields, children, size);
+  }
+}
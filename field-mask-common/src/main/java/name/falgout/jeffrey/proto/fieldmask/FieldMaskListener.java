@@ -0,0 +1,65 @@
+package name.falgout.jeffrey.proto.fieldmask;
+
+import com.google.protobuf.Descriptors.Descriptor;
+import com.google.protobuf.Message;
+
+/**
+ * Observes the operations performed with {@link FieldMask}s and {@link FieldPath}s, e.g. to record
+ * how long they take.
+ *
+ * <p>Listeners are {@linkplain FieldMaskListeners#register(FieldMaskListener) registered} with
+ * {@link FieldMaskListeners}, or provided through a {@link java.util.ServiceLoader}. Each method is
+ * called on the thread which performed the operation, right after it finishes, so listeners should
+ * return quickly and must not throw.
+ *
+ * <p>The {@code size} of a {@code FieldMask} is the number of paths in it, the same as the number
+ * of paths in its {@linkplain FieldMask#toProto() proto}. A {@code FieldMask} which includes every
+ * field has a size of 1.
+ */
+public interface FieldMaskListener {
+  /**
+   * Called after paths are parsed, by {@link FieldMask#fromProto(Class,
+   * com.google.protobuf.FieldMask)} or {@link FieldPath#create(Class, String)}.
+   *
+   * @param pathCount the number of paths parsed
+   */
+  default void onParse(Descriptor type, int pathCount, long durationNanos) {}
+
+  /** Called after a {@code FieldMask} is {@linkplain FieldMask.Builder#build() built}. */
+  default void onBuild(Descriptor type, int size, long durationNanos) {}
+
+  /**
+   * Called after a {@code FieldMask} checks whether it {@linkplain FieldMask#contains(FieldPath)
+   * contains} a path or {@linkplain FieldMask#containsAll(FieldMask) another mask}.
+   */
+  default void onContains(Descriptor type, int size, long durationNanos) {}
+
+  /**
+   * Called after a message is {@linkplain FieldMask#project(com.google.protobuf.Message)
+   * projected}.
+   *
+   * <p>The messages are passed instead of their serialized sizes, which take a pass over each
+   * message the first time they're computed, so that only listeners which want them pay for them.
+   *
+   * @param original the message which was projected
+   * @param projection the projection of {@code original}, which may be {@code original} itself
+   */
+  default void onProject(
+      Descriptor type, int size, long durationNanos, Message original, Message projection) {}
+
+  /**
+   * Called after a message is {@linkplain FieldMask#merge(com.google.protobuf.Message,
+   * com.google.protobuf.Message.Builder) merged} into a builder.
+   */
+  default void onMerge(Descriptor type, int size, long durationNanos) {}
+
+  /**
+   * Called after a serialized message is {@linkplain FieldMask#filter(com.google.protobuf.ByteString)
+   * filtered}.
+   *
+   * @param bytesBefore the size of the serialized message
+   * @param bytesAfter the size of the filtered message
+   */
+  default void onFilter(
+      Descriptor type, int size, long durationNanos, long bytesBefore, long bytesAfter) {}
+}
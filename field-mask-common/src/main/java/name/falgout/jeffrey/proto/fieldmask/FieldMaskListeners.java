@@ -0,0 +1,148 @@
+package name.falgout.jeffrey.proto.fieldmask;
+
+import com.google.common.collect.ImmutableList;
+import com.google.protobuf.Descriptors.Descriptor;
+import com.google.protobuf.Message;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Optional;
+import java.util.ServiceLoader;
+import javax.annotation.Nullable;
+
+/**
+ * The {@link FieldMaskListener}s which observe every {@link FieldMask} operation.
+ *
+ * <p>Listeners provided through a {@link ServiceLoader} are registered as soon as this class is
+ * initialized. While no listeners are registered, operations aren't timed at all, so they only
+ * pay for checking whether there are any listeners.
+ */
+public final class FieldMaskListeners {
+  private static final Object LOCK = new Object();
+  private static final String FLIGHT_RECORDER_LISTENER =
+      "name.falgout.jeffrey.proto.fieldmask.FlightRecorderListener";
+
+  /** Every registered listener, in the order they were registered. */
+  private static ImmutableList<FieldMaskListener> listeners = ImmutableList.of();
+  /** The listener which calls all of {@link #listeners}, or {@code null} if there aren't any. */
+  @Nullable private static volatile FieldMaskListener current;
+
+  static {
+    for (FieldMaskListener listener :
+        ServiceLoader.load(FieldMaskListener.class, FieldMaskListener.class.getClassLoader())) {
+      register(listener);
+    }
+  }
+
+  private FieldMaskListeners() {}
+
+  public static void register(FieldMaskListener listener) {
+    synchronized (LOCK) {
+      setListeners(
+          ImmutableList.<FieldMaskListener>builder().addAll(listeners).add(listener).build());
+    }
+  }
+
+  /** Unregisters {@code listener}, if it's registered. */
+  public static void unregister(FieldMaskListener listener) {
+    synchronized (LOCK) {
+      List<FieldMaskListener> remaining = new ArrayList<>(listeners);
+      if (remaining.remove(listener)) {
+        setListeners(ImmutableList.copyOf(remaining));
+      }
+    }
+  }
+
+  private static void setListeners(ImmutableList<FieldMaskListener> newListeners) {
+    listeners = newListeners;
+    switch (newListeners.size()) {
+      case 0:
+        current = null;
+        break;
+      case 1:
+        current = newListeners.get(0);
+        break;
+      default:
+        current = new CompositeListener(newListeners);
+        break;
+    }
+  }
+
+  /**
+   * Returns a listener which records each operation as a JDK Flight Recorder event, or empty if
+   * Flight Recorder isn't available. The listener isn't registered.
+   *
+   * <p>The events are all in the "Protocol Buffers / FieldMask" category, and are named after the
+   * listener method they're recorded by, e.g. {@code name.falgout.jeffrey.proto.fieldmask.Parse}.
+   * The {@code Contains} event is disabled by default, since containment checks are so frequent.
+   *
+   * <p>The listener is only compiled when this library is built with JDK 11 or later, so it's
+   * looked up by name.
+   */
+  public static Optional<FieldMaskListener> flightRecorderListener() {
+    try {
+      Class.forName("jdk.jfr.Event", false, FieldMaskListeners.class.getClassLoader());
+      Class<?> listenerClass = Class.forName(FLIGHT_RECORDER_LISTENER);
+      return Optional.of((FieldMaskListener) listenerClass.getDeclaredField("INSTANCE").get(null));
+    } catch (ReflectiveOperationException | LinkageError e) {
+      return Optional.empty();
+    }
+  }
+
+  /** The listener to call, or {@code null} if operations shouldn't be timed at all. */
+  @Nullable
+  static FieldMaskListener current() {
+    return current;
+  }
+
+  private static final class CompositeListener implements FieldMaskListener {
+    private final FieldMaskListener[] listeners;
+
+    CompositeListener(List<FieldMaskListener> listeners) {
+      this.listeners = listeners.toArray(new FieldMaskListener[0]);
+    }
+
+    @Override
+    public void onParse(Descriptor type, int pathCount, long durationNanos) {
+      for (FieldMaskListener listener : listeners) {
+        listener.onParse(type, pathCount, durationNanos);
+      }
+    }
+
+    @Override
+    public void onBuild(Descriptor type, int size, long durationNanos) {
+      for (FieldMaskListener listener : listeners) {
+        listener.onBuild(type, size, durationNanos);
+      }
+    }
+
+    @Override
+    public void onContains(Descriptor type, int size, long durationNanos) {
+      for (FieldMaskListener listener : listeners) {
+        listener.onContains(type, size, durationNanos);
+      }
+    }
+
+    @Override
+    public void onProject(
+        Descriptor type, int size, long durationNanos, Message original, Message projection) {
+      for (FieldMaskListener listener : listeners) {
+        listener.onProject(type, size, durationNanos, original, projection);
+      }
+    }
+
+    @Override
+    public void onMerge(Descriptor type, int size, long durationNanos) {
+      for (FieldMaskListener listener : listeners) {
+        listener.onMerge(type, size, durationNanos);
+      }
+    }
+
+    @Override
+    public void onFilter(
+        Descriptor type, int size, long durationNanos, long bytesBefore, long bytesAfter) {
+      for (FieldMaskListener listener : listeners) {
+        listener.onFilter(type, size, durationNanos, bytesBefore, bytesAfter);
+      }
+    }
+  }
+}
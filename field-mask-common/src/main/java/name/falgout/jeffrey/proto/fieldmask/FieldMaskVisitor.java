@@ -0,0 +1,30 @@
+package name.falgout.jeffrey.proto.fieldmask;
+
+import com.google.protobuf.Descriptors.FieldDescriptor;
+
+/**
+ * Receives the contents of a {@link FieldMask} from {@link FieldMask#accept(FieldMaskVisitor)}.
+ *
+ * <p>The fields of each message are visited in field number order, depth first. A field which is
+ * included along with all of its sub-fields is a {@linkplain #visitLeaf(FieldDescriptor) leaf}.
+ * Every other field is {@linkplain #enterField(FieldDescriptor) entered}, its included sub-fields
+ * are visited, and then it is {@linkplain #exitField(FieldDescriptor) exited}. The fields between
+ * the enclosing calls to {@code enterField} form the {@link FieldPath} of each leaf, without the
+ * path being created.
+ */
+public interface FieldMaskVisitor {
+  /**
+   * Visits a {@code FieldMask} which includes every field, such as {@link
+   * FieldMask#allowAll(Class)}. Nothing else is visited in that case.
+   */
+  default void visitAllFields() {}
+
+  /** Visits a field which is included along with all of its sub-fields. */
+  default void visitLeaf(FieldDescriptor field) {}
+
+  /** Visits a field which only includes some of its sub-fields, before they're visited. */
+  default void enterField(FieldDescriptor field) {}
+
+  /** Finishes visiting a field which was {@linkplain #enterField(FieldDescriptor) entered}. */
+  default void exitField(FieldDescriptor field) {}
+}
@@ -3,16 +3,15 @@ package name.falgout.jeffrey.proto.fieldmask;
 import static java.util.stream.Collectors.joining;
 
 import com.google.auto.value.AutoValue;
+import com.google.auto.value.extension.memoized.Memoized;
 import com.google.common.base.Preconditions;
-import com.google.common.base.Splitter;
 import com.google.common.collect.ImmutableList;
 import com.google.common.collect.Iterables;
 import com.google.protobuf.Descriptors.Descriptor;
 import com.google.protobuf.Descriptors.FieldDescriptor;
 import com.google.protobuf.Descriptors.FieldDescriptor.JavaType;
 import com.google.protobuf.Message;
-import com.google.protobuf.util.FieldMaskUtil;
-import java.util.stream.Stream;
+import javax.annotation.Nullable;
 import name.falgout.jeffrey.proto.ProtoDescriptor;
 
 /**
@@ -25,7 +24,6 @@ import name.falgout.jeffrey.proto.ProtoDescriptor;
 @AutoValue
 public abstract class FieldPath<M extends Message> {
   private static final String FIELD_PATH_SEPARATOR = ".";
-  private static final Splitter FIELD_PATH_SPLITTER = Splitter.on(FIELD_PATH_SEPARATOR);
 
   /**
    * Creates a new {@code FieldPath} from the given path string.
@@ -44,21 +42,17 @@ public abstract class FieldPath<M extends Message> {
   public static <M extends Message> FieldPath<M> create(
       ProtoDescriptor<M> descriptor,
       String pathString) {
-    Preconditions.checkArgument(
-        FieldMaskUtil.isValid(descriptor.getDescriptorForType(), pathString), "Invalid pathString");
-
-    ImmutableList.Builder<FieldDescriptor> fields = ImmutableList.builder();
-
-    FieldDescriptor lastField = null;
-    for (String fieldName : FIELD_PATH_SPLITTER.split(pathString)) {
-      Descriptor lastDescriptor =
-          lastField == null ? descriptor.getDescriptorForType() : lastField.getMessageType();
-
-      lastField = lastDescriptor.findFieldByName(fieldName);
-      fields.add(lastField);
+    FieldMaskListener listener = FieldMaskListeners.current();
+    if (listener == null) {
+      return create(
+          descriptor, FieldPathParser.parse(descriptor.getDescriptorForType(), pathString));
     }
 
-    return create(descriptor, fields.build());
+    long start = System.nanoTime();
+    FieldPath<M> path =
+        create(descriptor, FieldPathParser.parse(descriptor.getDescriptorForType(), pathString));
+    listener.onParse(descriptor.getDescriptorForType(), 1, System.nanoTime() - start);
+    return path;
   }
 
   /**
@@ -78,15 +72,15 @@ public abstract class FieldPath<M extends Message> {
   public static <M extends Message> FieldPath<M> create(
       ProtoDescriptor<M> descriptor,
       FieldDescriptor... fields) {
-    if (fields.length == 0) {
-      return create(descriptor, ImmutableList.of());
+    Descriptor type = descriptor.getDescriptorForType();
+    for (FieldDescriptor field : fields) {
+      Preconditions.checkArgument(
+          type != null && !field.isExtension() && field.getContainingType() == type,
+          "%s cannot follow the previous field",
+          field.getFullName());
+      type = getSubFieldType(field);
     }
 
-    String pathString =
-        Stream.of(fields).map(FieldDescriptor::getName).collect(joining(FIELD_PATH_SEPARATOR));
-    Preconditions.checkArgument(
-        FieldMaskUtil.isValid(descriptor.getDescriptorForType(), pathString));
-
     return create(descriptor, ImmutableList.copyOf(fields));
   }
 
@@ -104,9 +98,8 @@ public abstract class FieldPath<M extends Message> {
       return create(fieldPath.getDescriptorForType(), tail);
     }
 
-    Preconditions.checkArgument(fieldPath.getLastField().getJavaType() == JavaType.MESSAGE);
-    Preconditions.checkArgument(
-        fieldPath.getLastField().getMessageType().equals(tail.getContainingType()));
+    Descriptor type = getSubFieldType(fieldPath.getLastField());
+    Preconditions.checkArgument(type != null && type.equals(tail.getContainingType()));
 
     ImmutableList.Builder<FieldDescriptor> newPath =
         ImmutableList.builderWithExpectedSize(fieldPath.getPath().size() + 1);
@@ -116,6 +109,21 @@ public abstract class FieldPath<M extends Message> {
     return create(fieldPath.getDescriptorForType(), newPath.build());
   }
 
+  /**
+   * The type of {@code field}'s sub-fields, or {@code null} if a {@code FieldPath} cannot continue
+   * past {@code field}.
+   *
+   * <p>Paths can continue past repeated message fields, in which case they refer to the sub-fields
+   * of every element. Map fields can only be included as a whole, since the entries of a map are
+   * identified by their keys.
+   */
+  @Nullable
+  static Descriptor getSubFieldType(FieldDescriptor field) {
+    return field.getJavaType() == JavaType.MESSAGE && !field.isMapField()
+        ? field.getMessageType()
+        : null;
+  }
+
   FieldPath() {}
 
   /** The descriptor for {@code M}. */
@@ -128,6 +136,42 @@ public abstract class FieldPath<M extends Message> {
     return Iterables.getLast(getPath());
   }
 
+  /**
+   * Returns a 64-bit hash of this {@code FieldPath}.
+   *
+   * <p>The fingerprint only depends on the full name of the message type and the field numbers in
+   * this {@code FieldPath}, so it's the same in every JVM and can be used as part of a shared cache
+   * key. Equal {@code FieldPath}s have the same fingerprint.
+   */
+  @Memoized
+  public long fingerprint() {
+    long fingerprint =
+        Fingerprints.ofString(getDescriptorForType().getDescriptorForType().getFullName());
+    for (FieldDescriptor field : getPath()) {
+      fingerprint = Fingerprints.combine(fingerprint, field.getNumber(), 0);
+    }
+    return Fingerprints.mix(fingerprint);
+  }
+
+  @Override
+  public final boolean equals(Object o) {
+    if (this == o) {
+      return true;
+    }
+    if (!(o instanceof FieldPath)) {
+      return false;
+    }
+    FieldPath<?> fieldPath = (FieldPath<?>) o;
+    return fingerprint() == fieldPath.fingerprint()
+        && getDescriptorForType().equals(fieldPath.getDescriptorForType())
+        && getPath().equals(fieldPath.getPath());
+  }
+
+  @Override
+  public final int hashCode() {
+    return Long.hashCode(fingerprint());
+  }
+
   public final String toPathString() {
     return getPath().stream().map(FieldDescriptor::getName).collect(joining(FIELD_PATH_SEPARATOR));
   }
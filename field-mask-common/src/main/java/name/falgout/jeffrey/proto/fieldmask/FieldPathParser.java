@@ -0,0 +1,120 @@
+package name.falgout.jeffrey.proto.fieldmask;
+
+import com.google.common.base.Preconditions;
+import com.google.common.collect.ImmutableList;
+import com.google.protobuf.Descriptors.Descriptor;
+import com.google.protobuf.Descriptors.FieldDescriptor;
+import java.util.Arrays;
+import java.util.List;
+import javax.annotation.Nullable;
+
+/**
+ * Validates and resolves path strings in a single pass.
+ *
+ * <p>A parser remembers the last path it {@linkplain #resolve(CharSequence) resolved}, and the
+ * fields that the next path shares with it are reused instead of being resolved again. This is
+ * most effective for sorted paths, like those in a {@linkplain
+ * com.google.protobuf.util.FieldMaskUtil#normalize(com.google.protobuf.FieldMask) normalized}
+ * {@link com.google.protobuf.FieldMask}.
+ */
+final class FieldPathParser {
+  private static final char FIELD_PATH_SEPARATOR = '.';
+
+  static ImmutableList<FieldDescriptor> parse(Descriptor descriptor, CharSequence path) {
+    FieldPathParser parser = new FieldPathParser(descriptor);
+    parser.resolve(path);
+    return ImmutableList.copyOf(parser.getFields());
+  }
+
+  private final Descriptor descriptor;
+
+  private FieldDescriptor[] fields = new FieldDescriptor[8];
+  /** The index in {@link #path} where each field's name ends. */
+  private int[] ends = new int[8];
+  private int size = 0;
+  @Nullable private String path = null;
+
+  FieldPathParser(Descriptor descriptor) {
+    this.descriptor = descriptor;
+  }
+
+  /**
+   * Resolves the fields in {@code path}.
+   *
+   * @throws IllegalArgumentException if {@code path} isn't valid for this parser's type
+   */
+  void resolve(CharSequence path) {
+    int shared = sharedSegments(path);
+    // Forget the last path until this one is resolved, in case it turns out to be invalid.
+    this.path = null;
+    size = shared;
+
+    if (shared == 0) {
+      parse(path, 0, descriptor);
+    } else if (ends[shared - 1] < path.length()) {
+      Descriptor type = FieldPath.getSubFieldType(fields[shared - 1]);
+      parse(path, ends[shared - 1] + 1, type);
+    }
+
+    this.path = path.toString();
+  }
+
+  /** The fields of the last {@linkplain #resolve(CharSequence) resolved} path. */
+  List<FieldDescriptor> getFields() {
+    return Arrays.asList(fields).subList(0, size);
+  }
+
+  /** Counts the leading fields that {@code newPath} shares with the last resolved path. */
+  private int sharedSegments(CharSequence newPath) {
+    if (path == null) {
+      return 0;
+    }
+
+    int length = Math.min(path.length(), newPath.length());
+    int mismatch = 0;
+    while (mismatch < length && path.charAt(mismatch) == newPath.charAt(mismatch)) {
+      mismatch++;
+    }
+
+    boolean atBoundary =
+        mismatch == newPath.length() || newPath.charAt(mismatch) == FIELD_PATH_SEPARATOR;
+
+    int shared = 0;
+    while (shared < size
+        && (ends[shared] < mismatch || (ends[shared] == mismatch && atBoundary))) {
+      shared++;
+    }
+    return shared;
+  }
+
+  private void parse(CharSequence path, int start, @Nullable Descriptor type) {
+    int segmentStart = start;
+    for (int i = start; ; i++) {
+      if (i == path.length() || path.charAt(i) == FIELD_PATH_SEPARATOR) {
+        Preconditions.checkArgument(
+            type != null && i > segmentStart, "Invalid pathString: %s", path);
+        FieldDescriptor field = FieldTable.forDescriptor(type).find(path, segmentStart, i);
+        Preconditions.checkArgument(field != null, "Invalid pathString: %s", path);
+
+        add(field, i);
+        if (i == path.length()) {
+          return;
+        }
+
+        type = FieldPath.getSubFieldType(field);
+        segmentStart = i + 1;
+      }
+    }
+  }
+
+  private void add(FieldDescriptor field, int end) {
+    if (size == fields.length) {
+      fields = Arrays.copyOf(fields, 2 * size);
+      ends = Arrays.copyOf(ends, 2 * size);
+    }
+
+    fields[size] = field;
+    ends[size] = end;
+    size++;
+  }
+}
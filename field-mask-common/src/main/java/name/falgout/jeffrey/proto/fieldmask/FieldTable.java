@@ -0,0 +1,107 @@
+package name.falgout.jeffrey.proto.fieldmask;
+
+import com.google.common.cache.CacheBuilder;
+import com.google.common.cache.CacheLoader;
+import com.google.common.cache.LoadingCache;
+import com.google.protobuf.Descriptors.Descriptor;
+import com.google.protobuf.Descriptors.FieldDescriptor;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.List;
+import javax.annotation.Nullable;
+
+/**
+ * A lookup table from names to the fields of a single message type.
+ *
+ * <p>Unlike {@link Descriptor#findFieldByName(String)}, a name can be looked up from any range of a
+ * {@link CharSequence} without allocating.
+ */
+final class FieldTable {
+  private static final LoadingCache<Descriptor, FieldTable> TABLES =
+      CacheBuilder.newBuilder().weakKeys().softValues().build(CacheLoader.from(FieldTable::new));
+
+  static FieldTable forDescriptor(Descriptor descriptor) {
+    return TABLES.getUnchecked(descriptor);
+  }
+
+  /** Open addressing, with linear probing. */
+  private final String[] names;
+  private final FieldDescriptor[] fields;
+  private final int mask;
+
+  private final FieldDescriptor[] fieldsByNumber;
+  /** The position of each field in {@link #fieldsByNumber}, indexed by its declaration order. */
+  private final int[] ranks;
+
+  private FieldTable(Descriptor descriptor) {
+    List<FieldDescriptor> allFields = descriptor.getFields();
+
+    fieldsByNumber = allFields.toArray(new FieldDescriptor[0]);
+    Arrays.sort(fieldsByNumber, Comparator.comparingInt(FieldDescriptor::getNumber));
+    ranks = new int[fieldsByNumber.length];
+    for (int i = 0; i < fieldsByNumber.length; i++) {
+      ranks[fieldsByNumber[i].getIndex()] = i;
+    }
+
+    int capacity = Integer.highestOneBit(Math.max(1, allFields.size()) * 2) * 2;
+    names = new String[capacity];
+    fields = new FieldDescriptor[capacity];
+    mask = capacity - 1;
+
+    for (FieldDescriptor field : allFields) {
+      String name = field.getName();
+
+      int i = hash(name, 0, name.length()) & mask;
+      while (names[i] != null) {
+        i = (i + 1) & mask;
+      }
+
+      names[i] = name;
+      fields[i] = field;
+    }
+  }
+
+  /** Every field, sorted by field number. The returned array must not be modified. */
+  FieldDescriptor[] getFieldsByNumber() {
+    return fieldsByNumber;
+  }
+
+  /** The position of {@code field} in {@link #getFieldsByNumber()}. */
+  int getRank(FieldDescriptor field) {
+    return ranks[field.getIndex()];
+  }
+
+  /** Finds the field named by {@code name.subSequence(start, end)}. */
+  @Nullable
+  FieldDescriptor find(CharSequence name, int start, int end) {
+    for (int i = hash(name, start, end) & mask; names[i] != null; i = (i + 1) & mask) {
+      if (regionMatches(names[i], name, start, end)) {
+        return fields[i];
+      }
+    }
+
+    return null;
+  }
+
+  private static int hash(CharSequence s, int start, int end) {
+    int h = 0;
+    for (int i = start; i < end; i++) {
+      h = 31 * h + s.charAt(i);
+    }
+    return h ^ (h >>> 16);
+  }
+
+  private static boolean regionMatches(String candidate, CharSequence s, int start, int end) {
+    if (candidate.length() != end - start) {
+      return false;
+    }
+
+    for (int i = 0; i < candidate.length(); i++) {
+      if (candidate.charAt(i) != s.charAt(start + i)) {
+        return false;
+      }
+    }
+
+    return true;
+  }
+}
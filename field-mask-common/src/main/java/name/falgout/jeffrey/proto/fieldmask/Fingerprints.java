@@ -0,0 +1,53 @@
+package name.falgout.jeffrey.proto.fieldmask;
+
+import com.google.protobuf.ByteString;
+
+/**
+ * 64-bit hashes which only depend on their inputs, so unlike most {@link Object#hashCode()}s they
+ * are the same in every JVM.
+ */
+final class Fingerprints {
+  private static final long FNV_OFFSET_BASIS = 0xcbf29ce484222325L;
+  private static final long FNV_PRIME = 0x100000001b3L;
+  private static final long GOLDEN_RATIO = 0x9e3779b97f4a7c15L;
+
+  private Fingerprints() {}
+
+  /** The 64-bit FNV-1a hash of the UTF-16 code units of {@code value}. */
+  static long ofString(CharSequence value) {
+    long hash = FNV_OFFSET_BASIS;
+    for (int i = 0; i < value.length(); i++) {
+      hash = (hash ^ value.charAt(i)) * FNV_PRIME;
+    }
+    return hash;
+  }
+
+  /** The 64-bit FNV-1a hash of {@code value}. */
+  static long ofBytes(ByteString value) {
+    long hash = FNV_OFFSET_BASIS;
+    for (int i = 0; i < value.size(); i++) {
+      hash = (hash ^ (value.byteAt(i) & 0xff)) * FNV_PRIME;
+    }
+    return hash;
+  }
+
+  /** Combines {@code hash} with a field number and the hash of that field's value. */
+  static long combine(long hash, int fieldNumber, long fieldHash) {
+    return (hash + fieldNumber) * GOLDEN_RATIO + mix(fieldHash);
+  }
+
+  /** Combines {@code hash} with the next element of a sequence. */
+  static long append(long hash, long element) {
+    return hash * GOLDEN_RATIO + element;
+  }
+
+  /** The finalization mix of MurmurHash3, which spreads each bit of the input across the output. */
+  static long mix(long hash) {
+    hash ^= hash >>> 33;
+    hash *= 0xff51afd7ed558ccdL;
+    hash ^= hash >>> 33;
+    hash *= 0xc4ceb9fe1a85ec53L;
+    hash ^= hash >>> 33;
+    return hash;
+  }
+}
@@ -0,0 +1,150 @@
+package name.falgout.jeffrey.proto.fieldmask;
+
+import com.google.protobuf.ByteString;
+import com.google.protobuf.CodedInputStream;
+import com.google.protobuf.CodedOutputStream;
+import com.google.protobuf.Descriptors.FieldDescriptor;
+import com.google.protobuf.InvalidProtocolBufferException;
+import com.google.protobuf.Message;
+import com.google.protobuf.WireFormat;
+import java.io.IOException;
+import javax.annotation.Nullable;
+import name.falgout.jeffrey.proto.fieldmask.FieldMask.Node;
+
+/**
+ * Parses serialized messages into a {@link Message.Builder}, only decoding the fields in a {@link
+ * FieldMask.Node}.
+ *
+ * <p>The tags and values of fields which are entirely included are gathered as-is and handed to the
+ * builder's own parser in bulk. Sub-messages which are partially included are parsed recursively,
+ * and every other field is skipped without being decoded.
+ */
+final class MaskedParser {
+  private static final int TAG_TYPE_BITS = 3;
+  private static final int INCLUDED_BUFFER_SIZE = 256;
+
+  static void mergeFrom(CodedInputStream input, Node root, Message.Builder builder)
+      throws IOException {
+    if (root.isAll()) {
+      builder.mergeFrom(input);
+    } else {
+      new MaskedParser(input).mergeMessage(root, builder, 0);
+    }
+  }
+
+  private final CodedInputStream input;
+
+  private MaskedParser(CodedInputStream input) {
+    this.input = input;
+  }
+
+  /**
+   * Merges fields into {@code builder} until the end of the current message.
+   *
+   * @param endGroupTag the tag that ends the current group, or {@code 0} if the current message
+   *     isn't a group
+   */
+  private void mergeMessage(Node node, Message.Builder builder, int endGroupTag)
+      throws IOException {
+    IncludedFields included = null;
+
+    while (true) {
+      int tag = input.readTag();
+      if (tag == endGroupTag) {
+        break;
+      }
+      if (tag == 0) {
+        throw new InvalidProtocolBufferException(
+            "While parsing a protocol message, the input ended unexpectedly in the middle of a "
+                + "field.");
+      }
+      if (WireFormat.getTagWireType(tag) == WireFormat.WIRETYPE_END_GROUP) {
+        throw new InvalidProtocolBufferException(
+            "Protocol message end-group tag did not match expected tag.");
+      }
+
+      int fieldNumber = WireFormat.getTagFieldNumber(tag);
+      int i = node.indexOf(fieldNumber);
+      if (i < 0) {
+        input.skipField(tag);
+        continue;
+      }
+
+      if (node.getChild(i).isAll()) {
+        if (included == null) {
+          included = new IncludedFields();
+        }
+        input.skipField(tag, included.output);
+        continue;
+      }
+
+      FieldDescriptor field = node.getField(i);
+      if (field.getContainingOneof() != null && included != null) {
+        // Another member of the oneof may be waiting to be merged, and it has to be merged first
+        // so that this field replaces it.
+        included.mergeTo(builder);
+        included = null;
+      }
+
+      Message subMessage = mergeSubMessage(node.getChild(i), newSubBuilder(builder, field), tag);
+      if (subMessage == null) {
+        continue;
+      }
+
+      if (field.isRepeated()) {
+        builder.addRepeatedField(field, subMessage);
+      } else {
+        builder.setField(field, subMessage);
+      }
+    }
+
+    if (included != null) {
+      included.mergeTo(builder);
+    }
+  }
+
+  /**
+   * Merges the current field's value into {@code subBuilder}.
+   *
+   * @return the merged sub-message, or {@code null} if the field didn't have a message's wire type
+   */
+  @Nullable
+  private Message mergeSubMessage(Node node, Message.Builder subBuilder, int tag)
+      throws IOException {
+    switch (WireFormat.getTagWireType(tag)) {
+      case WireFormat.WIRETYPE_LENGTH_DELIMITED:
+        int length = input.readRawVarint32();
+        int oldLimit = input.pushLimit(length);
+        mergeMessage(node, subBuilder, 0);
+        input.popLimit(oldLimit);
+        return subBuilder.buildPartial();
+      case WireFormat.WIRETYPE_START_GROUP:
+        int endGroupTag =
+            (WireFormat.getTagFieldNumber(tag) << TAG_TYPE_BITS) | WireFormat.WIRETYPE_END_GROUP;
+        mergeMessage(node, subBuilder, endGroupTag);
+        return subBuilder.buildPartial();
+      default:
+        // A parser would treat this as an unknown field, which isn't part of any FieldMask.
+        input.skipField(tag);
+        return null;
+    }
+  }
+
+  private static Message.Builder newSubBuilder(Message.Builder builder, FieldDescriptor field) {
+    if (!field.isRepeated() && builder.hasField(field)) {
+      return ((Message) builder.getField(field)).toBuilder();
+    }
+    return builder.newBuilderForField(field);
+  }
+
+  /** The serialized fields which are entirely included in the current message. */
+  private static final class IncludedFields {
+    final ByteString.Output bytes = ByteString.newOutput();
+    final CodedOutputStream output = CodedOutputStream.newInstance(bytes, INCLUDED_BUFFER_SIZE);
+
+    void mergeTo(Message.Builder builder) throws IOException {
+      output.flush();
+      builder.mergeFrom(bytes.toByteString());
+    }
+  }
+}
@@ -0,0 +1,200 @@
+package name.falgout.jeffrey.proto.fieldmask;
+
+import com.google.common.base.Preconditions;
+import com.google.protobuf.Descriptors.Descriptor;
+import com.google.protobuf.Descriptors.FieldDescriptor;
+import com.google.protobuf.Descriptors.FieldDescriptor.JavaType;
+import com.google.protobuf.GeneratedMessageV3;
+import com.google.protobuf.Message;
+import com.google.protobuf.util.FieldMaskUtil.MergeOptions;
+import java.util.ArrayList;
+import java.util.List;
+import name.falgout.jeffrey.proto.fieldmask.FieldMask.Node;
+
+/**
+ * A {@link FieldMask.Node} compiled against a {@link Descriptor} so that messages can be
+ * {@linkplain #merge(Message, Message.Builder, MergeOptions) merged} without re-examining the mask.
+ *
+ * <p>Merging follows the same rules as {@link
+ * com.google.protobuf.util.FieldMaskUtil#merge(com.google.protobuf.FieldMask, Message,
+ * Message.Builder, MergeOptions)}, except for repeated message fields which only include some of
+ * their sub-fields, which {@code FieldMaskUtil} skips. They're merged like other repeated fields,
+ * except that each of the source's elements is {@linkplain ProjectionPlan projected} first.
+ */
+final class MergePlan {
+  private static final FieldDescriptor[] NO_FIELDS = new FieldDescriptor[0];
+  private static final MergePlan[] NO_PLANS = new MergePlan[0];
+  private static final ProjectionPlan[] NO_PROJECTIONS = new ProjectionPlan[0];
+
+  static MergePlan compile(Descriptor descriptor, Node node) {
+    if (node.isAll()) {
+      node = Node.allFieldsOf(descriptor);
+    }
+
+    List<FieldDescriptor> repeated = new ArrayList<>();
+    List<FieldDescriptor> messages = new ArrayList<>();
+    List<FieldDescriptor> primitives = new ArrayList<>();
+    List<FieldDescriptor> partial = new ArrayList<>();
+    List<MergePlan> partialPlans = new ArrayList<>();
+    List<FieldDescriptor> partialRepeated = new ArrayList<>();
+    List<ProjectionPlan> partialRepeatedPlans = new ArrayList<>();
+
+    for (int i = 0; i < node.size(); i++) {
+      FieldDescriptor field = node.getField(i);
+      Node child = node.getChild(i);
+      if (!child.isAll()) {
+        Preconditions.checkState(field.getJavaType() == JavaType.MESSAGE);
+        if (field.isRepeated()) {
+          partialRepeated.add(field);
+          partialRepeatedPlans.add(ProjectionPlan.compile(field.getMessageType(), child));
+        } else {
+          partial.add(field);
+          partialPlans.add(compile(field.getMessageType(), child));
+        }
+      } else if (field.isRepeated()) {
+        repeated.add(field);
+      } else if (field.getJavaType() == JavaType.MESSAGE) {
+        messages.add(field);
+      } else {
+        primitives.add(field);
+      }
+    }
+
+    return new MergePlan(
+        descriptor,
+        repeated.toArray(NO_FIELDS),
+        messages.toArray(NO_FIELDS),
+        primitives.toArray(NO_FIELDS),
+        partial.toArray(NO_FIELDS),
+        partialPlans.toArray(NO_PLANS),
+        partialRepeated.toArray(NO_FIELDS),
+        partialRepeatedPlans.toArray(NO_PROJECTIONS));
+  }
+
+  private final Descriptor descriptor;
+  /** Repeated fields which are included along with all of their sub-fields. */
+  private final FieldDescriptor[] repeated;
+  /** Singular message fields which are included along with all of their sub-fields. */
+  private final FieldDescriptor[] messages;
+  /** Singular fields which aren't messages. */
+  private final FieldDescriptor[] primitives;
+  /** Singular message fields which only include some of their sub-fields. */
+  private final FieldDescriptor[] partial;
+  private final MergePlan[] partialPlans;
+  /** Repeated message fields which only include some of their sub-fields. */
+  private final FieldDescriptor[] partialRepeated;
+  private final ProjectionPlan[] partialRepeatedPlans;
+
+  private MergePlan(
+      Descriptor descriptor,
+      FieldDescriptor[] repeated,
+      FieldDescriptor[] messages,
+      FieldDescriptor[] primitives,
+      FieldDescriptor[] partial,
+      MergePlan[] partialPlans,
+      FieldDescriptor[] partialRepeated,
+      ProjectionPlan[] partialRepeatedPlans) {
+    this.descriptor = descriptor;
+    this.repeated = repeated;
+    this.messages = messages;
+    this.primitives = primitives;
+    this.partial = partial;
+    this.partialPlans = partialPlans;
+    this.partialRepeated = partialRepeated;
+    this.partialRepeatedPlans = partialRepeatedPlans;
+  }
+
+  /** Merges the fields in this plan from {@code source} into {@code destination}. */
+  void merge(Message source, Message.Builder destination, MergeOptions options) {
+    Preconditions.checkArgument(
+        source.getDescriptorForType() == descriptor,
+        "Type mismatch. %s != %s",
+        source.getDescriptorForType().getFullName(),
+        descriptor.getFullName());
+    Preconditions.checkArgument(
+        destination.getDescriptorForType() == descriptor,
+        "Type mismatch. %s != %s",
+        destination.getDescriptorForType().getFullName(),
+        descriptor.getFullName());
+
+    mergeFields(source, destination, options);
+  }
+
+  private void mergeFields(Message source, Message.Builder destination, MergeOptions options) {
+    for (FieldDescriptor field : repeated) {
+      if (options.replaceRepeatedFields()) {
+        destination.setField(field, source.getField(field));
+      } else {
+        int count = source.getRepeatedFieldCount(field);
+        for (int i = 0; i < count; i++) {
+          destination.addRepeatedField(field, source.getRepeatedField(field, i));
+        }
+      }
+    }
+
+    for (FieldDescriptor field : messages) {
+      if (!source.hasField(field)) {
+        if (options.replaceMessageFields()) {
+          destination.clearField(field);
+        }
+      } else if (options.replaceMessageFields() || !destination.hasField(field)) {
+        destination.setField(field, source.getField(field));
+      } else {
+        Message value = (Message) source.getField(field);
+        mergeSubMessage(destination, field, (subDestination) -> subDestination.mergeFrom(value));
+      }
+    }
+
+    for (FieldDescriptor field : primitives) {
+      if (source.hasField(field) || !options.replacePrimitiveFields()) {
+        destination.setField(field, source.getField(field));
+      } else {
+        destination.clearField(field);
+      }
+    }
+
+    for (int i = 0; i < partial.length; i++) {
+      FieldDescriptor field = partial[i];
+      if (!source.hasField(field) && !destination.hasField(field)) {
+        // Don't create an empty sub-message that neither message had.
+        continue;
+      }
+
+      Message value = (Message) source.getField(field);
+      MergePlan plan = partialPlans[i];
+      mergeSubMessage(
+          destination, field, (subDestination) -> plan.mergeFields(value, subDestination, options));
+    }
+
+    for (int i = 0; i < partialRepeated.length; i++) {
+      FieldDescriptor field = partialRepeated[i];
+      if (options.replaceRepeatedFields()) {
+        destination.clearField(field);
+      }
+
+      int count = source.getRepeatedFieldCount(field);
+      for (int j = 0; j < count; j++) {
+        Message element = (Message) source.getRepeatedField(field, j);
+        destination.addRepeatedField(field, partialRepeatedPlans[i].project(element));
+      }
+    }
+  }
+
+  @FunctionalInterface
+  private interface SubMessageMerger {
+    void mergeInto(Message.Builder subDestination);
+  }
+
+  /** Merges into the sub-message builder for {@code field} of {@code destination}. */
+  private static void mergeSubMessage(
+      Message.Builder destination, FieldDescriptor field, SubMessageMerger merger) {
+    if (destination instanceof GeneratedMessageV3.Builder) {
+      // Generated builders can be modified in place.
+      merger.mergeInto(destination.getFieldBuilder(field));
+    } else {
+      Message.Builder subDestination = ((Message) destination.getField(field)).toBuilder();
+      merger.mergeInto(subDestination);
+      destination.setField(field, subDestination.buildPartial());
+    }
+  }
+}
@@ -0,0 +1,90 @@
+package name.falgout.jeffrey.proto.fieldmask;
+
+import com.google.protobuf.Descriptors.FieldDescriptor;
+import com.google.protobuf.Descriptors.FieldDescriptor.JavaType;
+import com.google.protobuf.Message;
+import name.falgout.jeffrey.proto.fieldmask.FieldMask.Node;
+
+/**
+ * Finds the fields that differ between two messages, within the fields of a {@link FieldMask.Node}.
+ *
+ * <p>Sub-messages which are set in both messages are compared field by field, so the result is as
+ * specific as possible. A field which is only set in one of the messages differs in every path
+ * under it. Repeated fields differ as a whole, unless only some of their elements' sub-fields are
+ * watched, in which case the elements of lists with the same size are compared one by one.
+ */
+final class MessageDiff {
+  private MessageDiff() {}
+
+  static Node diff(Node watch, Message before, Message after) {
+    if (before == after || watch.isNone()) {
+      return Node.NONE;
+    }
+
+    FieldDescriptor[] fields =
+        watch.isAll()
+            ? FieldTable.forDescriptor(before.getDescriptorForType()).getFieldsByNumber()
+            : null;
+    int size = fields != null ? fields.length : watch.size();
+
+    FieldDescriptor[] changed = new FieldDescriptor[size];
+    Node[] children = new Node[size];
+    int changedSize = 0;
+    for (int i = 0; i < size; i++) {
+      FieldDescriptor field = fields != null ? fields[i] : watch.getField(i);
+      Node child = fields != null ? Node.ALL : watch.getChild(i);
+
+      Node difference = diffField(field, child, before, after);
+      if (!difference.isNone()) {
+        changed[changedSize] = field;
+        children[changedSize] = difference;
+        changedSize++;
+      }
+    }
+
+    return Node.create(changed, children, changedSize);
+  }
+
+  private static Node diffField(FieldDescriptor field, Node watch, Message before, Message after) {
+    if (field.isRepeated() && !watch.isAll()) {
+      int count = before.getRepeatedFieldCount(field);
+      if (count != after.getRepeatedFieldCount(field)) {
+        return watch;
+      }
+
+      Node difference = Node.NONE;
+      for (int i = 0; i < count && difference != watch; i++) {
+        Message elementBefore = (Message) before.getRepeatedField(field, i);
+        Message elementAfter = (Message) after.getRepeatedField(field, i);
+        difference = NodeOperations.union(difference, diff(watch, elementBefore, elementAfter));
+      }
+      return difference;
+    }
+    if (field.isRepeated()) {
+      Object valueBefore = before.getField(field);
+      Object valueAfter = after.getField(field);
+
+      boolean equal =
+          field.isMapField()
+              ? EquivalencePlan.toMap(field, valueBefore)
+                  .equals(EquivalencePlan.toMap(field, valueAfter))
+              : valueBefore.equals(valueAfter);
+      return equal ? Node.NONE : watch;
+    }
+
+    boolean isSet = before.hasField(field);
+    if (isSet != after.hasField(field)) {
+      return watch;
+    }
+    if (!isSet) {
+      return Node.NONE;
+    }
+
+    Object valueBefore = before.getField(field);
+    Object valueAfter = after.getField(field);
+    if (field.getJavaType() == JavaType.MESSAGE) {
+      return diff(watch, (Message) valueBefore, (Message) valueAfter);
+    }
+    return valueBefore.equals(valueAfter) ? Node.NONE : watch;
+  }
+}
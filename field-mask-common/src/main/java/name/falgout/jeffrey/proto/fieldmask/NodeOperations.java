@@ -0,0 +1,170 @@
+package name.falgout.jeffrey.proto.fieldmask;
+
+import com.google.protobuf.Descriptors.Descriptor;
+import com.google.protobuf.Descriptors.FieldDescriptor;
+import com.google.protobuf.Descriptors.FieldDescriptor.JavaType;
+import java.util.stream.IntStream;
+import javax.annotation.Nullable;
+import name.falgout.jeffrey.proto.fieldmask.FieldMask.Node;
+
+/**
+ * Set operations over {@link FieldMask.Node}s.
+ *
+ * <p>Each operation walks both nodes' fields in field number order at the same time, so it runs in
+ * time linear in the number of nodes. Nodes of wide message types which only contain leaves are
+ * combined a word of their bitsets at a time instead. Any sub-node which the operation leaves
+ * unchanged is shared with the result instead of being copied.
+ */
+final class NodeOperations {
+  /**
+   * The number of top-level fields at which the fields of the root nodes are processed in parallel.
+   */
+  static final int PARALLEL_THRESHOLD = 1 << 10;
+
+  private NodeOperations() {}
+
+  /** Combines the sub-nodes of a single field. Either node may be {@link Node#NONE}. */
+  @FunctionalInterface
+  private interface FieldOperation {
+    Node apply(FieldDescriptor field, Node a, Node b);
+  }
+
+  static Node union(Node a, Node b) {
+    return union(a, b, true);
+  }
+
+  private static Node union(Node a, Node b, boolean parallel) {
+    if (a == b || a.isAll() || b.isNone()) {
+      return a;
+    }
+    if (b.isAll() || a.isNone()) {
+      return b;
+    }
+    if (a.isBitsetOfLeaves() && b.isBitsetOfLeaves()) {
+      return Node.combineLeaves(a, b, (bitsA, bitsB) -> bitsA | bitsB);
+    }
+
+    return merge(a, b, (field, childA, childB) -> union(childA, childB, false), parallel);
+  }
+
+  static Node intersect(Node a, Node b) {
+    return intersect(a, b, true);
+  }
+
+  private static Node intersect(Node a, Node b, boolean parallel) {
+    if (a == b || b.isAll() || a.isNone()) {
+      return a;
+    }
+    if (a.isAll() || b.isNone()) {
+      return b;
+    }
+    if (a.isBitsetOfLeaves() && b.isBitsetOfLeaves()) {
+      return Node.combineLeaves(a, b, (bitsA, bitsB) -> bitsA & bitsB);
+    }
+
+    return merge(a, b, (field, childA, childB) -> intersect(childA, childB, false), parallel);
+  }
+
+  /**
+   * Removes the paths in {@code b} from {@code a}.
+   *
+   * @param type the message type of {@code a}, which is needed to find the remaining fields when
+   *     only some sub-fields are removed from {@link Node#ALL}
+   */
+  static Node subtract(Node a, Node b, Descriptor type) {
+    return subtract(a, b, type, true);
+  }
+
+  private static Node subtract(Node a, Node b, @Nullable Descriptor type, boolean parallel) {
+    if (a.isNone() || b.isNone()) {
+      return a;
+    }
+    if (b.isAll()) {
+      return Node.NONE;
+    }
+    if (a.isAll()) {
+      a = Node.allFieldsOf(type);
+    }
+    if (a.isBitsetOfLeaves() && b.isBitsetOfLeaves()) {
+      return Node.combineLeaves(a, b, (bitsA, bitsB) -> bitsA & ~bitsB);
+    }
+
+    return merge(
+        a,
+        b,
+        (field, childA, childB) -> subtract(childA, childB, getMessageType(field), false),
+        parallel);
+  }
+
+  @Nullable
+  private static Descriptor getMessageType(FieldDescriptor field) {
+    return field.getJavaType() == JavaType.MESSAGE ? field.getMessageType() : null;
+  }
+
+  /**
+   * Applies {@code operation} to each field in either {@code a} or {@code b}, neither of which may
+   * be {@link Node#ALL} or {@link Node#NONE}.
+   *
+   * @return {@code a} or {@code b} if the result is the same as either of them
+   */
+  private static Node merge(Node a, Node b, FieldOperation operation, boolean parallel) {
+    int maxSize = a.size() + b.size();
+    FieldDescriptor[] fields = new FieldDescriptor[maxSize];
+    Node[] childrenA = new Node[maxSize];
+    Node[] childrenB = new Node[maxSize];
+
+    int size = 0;
+    for (int i = 0, j = 0; i < a.size() || j < b.size(); size++) {
+      int numberA = i < a.size() ? a.getFieldNumber(i) : Integer.MAX_VALUE;
+      int numberB = j < b.size() ? b.getFieldNumber(j) : Integer.MAX_VALUE;
+
+      if (numberA <= numberB) {
+        fields[size] = a.getField(i);
+        childrenA[size] = a.getChild(i++);
+      } else {
+        childrenA[size] = Node.NONE;
+      }
+      if (numberB <= numberA) {
+        fields[size] = b.getField(j);
+        childrenB[size] = b.getChild(j++);
+      } else {
+        childrenB[size] = Node.NONE;
+      }
+    }
+
+    Node[] results = new Node[size];
+    if (parallel && size >= PARALLEL_THRESHOLD) {
+      IntStream.range(0, size)
+          .parallel()
+          .forEach(k -> results[k] = operation.apply(fields[k], childrenA[k], childrenB[k]));
+    } else {
+      for (int k = 0; k < size; k++) {
+        results[k] = operation.apply(fields[k], childrenA[k], childrenB[k]);
+      }
+    }
+
+    boolean sameAsA = true;
+    boolean sameAsB = true;
+    int resultSize = 0;
+    for (int k = 0; k < size; k++) {
+      Node result = results[k];
+      sameAsA &= result == childrenA[k];
+      sameAsB &= result == childrenB[k];
+
+      // Children are never NONE, so fields which end up with nothing are dropped.
+      if (!result.isNone()) {
+        fields[resultSize] = fields[k];
+        results[resultSize] = result;
+        resultSize++;
+      }
+    }
+
+    if (sameAsA) {
+      return a;
+    }
+    if (sameAsB) {
+      return b;
+    }
+    return Node.create(fields, results, resultSize);
+  }
+}
@@ -0,0 +1,99 @@
+package name.falgout.jeffrey.proto.fieldmask;
+
+import com.google.protobuf.Message;
+import java.util.Comparator;
+import java.util.Spliterator;
+import java.util.concurrent.ForkJoinPool;
+import java.util.function.Consumer;
+import javax.annotation.Nullable;
+
+/**
+ * A {@link Spliterator} which {@linkplain ProjectionPlan projects} each of the messages of another
+ * {@code Spliterator}.
+ *
+ * <p>A {@code Spliterator} is only ever traversed by one thread at a time, so each one keeps a
+ * scratch builder which is reused for every projection it builds. Splitting it gives the new
+ * {@code Spliterator} a builder of its own.
+ */
+final class ProjectingSpliterator<M extends Message> implements Spliterator<M> {
+  /** Projections can be equal even if the original messages aren't, and aren't sorted the same. */
+  private static final int REMOVED_CHARACTERISTICS = DISTINCT | SORTED;
+
+  private final Spliterator<M> source;
+  private final FieldMask<M> fieldMask;
+  private final ProjectionPlan plan;
+  private final ForkJoinPool pool;
+  private final int parallelThreshold;
+
+  @Nullable private Message.Builder scratch;
+
+  ProjectingSpliterator(
+      Spliterator<M> source,
+      FieldMask<M> fieldMask,
+      ProjectionPlan plan,
+      ForkJoinPool pool,
+      int parallelThreshold) {
+    this.source = source;
+    this.fieldMask = fieldMask;
+    this.plan = plan;
+    this.pool = pool;
+    this.parallelThreshold = parallelThreshold;
+  }
+
+  private M project(M message) {
+    if (scratch == null || scratch.getDefaultInstanceForType().getClass() != message.getClass()) {
+      // A generated message and a DynamicMessage of the same type need different builders.
+      scratch = message.newBuilderForType();
+    }
+
+    FieldMaskListener listener = FieldMaskListeners.current();
+    long start = listener == null ? 0 : System.nanoTime();
+
+    @SuppressWarnings("unchecked")
+    M projection = (M) plan.project(message, pool, parallelThreshold, scratch);
+
+    if (listener != null) {
+      fieldMask.onProject(listener, message, projection, start);
+    }
+    return projection;
+  }
+
+  @Override
+  public boolean tryAdvance(Consumer<? super M> action) {
+    return source.tryAdvance(message -> action.accept(project(message)));
+  }
+
+  @Override
+  public void forEachRemaining(Consumer<? super M> action) {
+    source.forEachRemaining(message -> action.accept(project(message)));
+  }
+
+  @Override
+  @Nullable
+  public Spliterator<M> trySplit() {
+    Spliterator<M> prefix = source.trySplit();
+    return prefix == null
+        ? null
+        : new ProjectingSpliterator<>(prefix, fieldMask, plan, pool, parallelThreshold);
+  }
+
+  @Override
+  public long estimateSize() {
+    return source.estimateSize();
+  }
+
+  @Override
+  public long getExactSizeIfKnown() {
+    return source.getExactSizeIfKnown();
+  }
+
+  @Override
+  public int characteristics() {
+    return source.characteristics() & ~REMOVED_CHARACTERISTICS;
+  }
+
+  @Override
+  public Comparator<? super M> getComparator() {
+    throw new IllegalStateException();
+  }
+}
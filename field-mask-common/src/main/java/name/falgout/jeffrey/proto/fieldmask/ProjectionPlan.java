@@ -0,0 +1,275 @@
+package name.falgout.jeffrey.proto.fieldmask;
+
+import com.google.common.base.Preconditions;
+import com.google.protobuf.Descriptors.Descriptor;
+import com.google.protobuf.Descriptors.FieldDescriptor;
+import com.google.protobuf.Descriptors.FieldDescriptor.JavaType;
+import com.google.protobuf.DynamicMessage;
+import com.google.protobuf.Message;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinTask;
+import java.util.concurrent.RecursiveAction;
+import javax.annotation.Nullable;
+import name.falgout.jeffrey.proto.fieldmask.FieldMask.Node;
+
+/**
+ * A {@link FieldMask.Node} compiled against a {@link Descriptor} so that messages can be
+ * {@linkplain #project(Message) projected} without re-examining the mask.
+ *
+ * <p>The elements of repeated fields which only include some of their sub-fields are projected one
+ * at a time, and lists with at least a threshold number of elements are split up across a {@link
+ * ForkJoinPool}.
+ */
+final class ProjectionPlan {
+  /** The number of elements at which a repeated field is projected in parallel by default. */
+  static final int DEFAULT_PARALLEL_THRESHOLD = 1 << 12;
+
+  private static final FieldAccessor[] NO_FIELDS = new FieldAccessor[0];
+  private static final ProjectionPlan[] NO_PLANS = new ProjectionPlan[0];
+
+  /** Compiles a plan which accesses every field through its {@link FieldDescriptor}. */
+  static ProjectionPlan compile(Descriptor descriptor, Node node) {
+    return compile(DynamicMessage.getDefaultInstance(descriptor), node);
+  }
+
+  /**
+   * Compiles a plan for messages of the same type as {@code prototype}. If it's a generated
+   * message, the plan uses its generated accessors.
+   */
+  static ProjectionPlan compile(Message prototype, Node node) {
+    Descriptor descriptor = prototype.getDescriptorForType();
+    if (node.isAll()) {
+      return new ProjectionPlan(descriptor, true, NO_FIELDS, NO_FIELDS, NO_PLANS, NO_FIELDS);
+    }
+
+    List<FieldAccessor> included = new ArrayList<>();
+    List<FieldAccessor> partial = new ArrayList<>();
+    List<ProjectionPlan> partialPlans = new ArrayList<>();
+    List<FieldAccessor> excluded = new ArrayList<>();
+
+    for (FieldDescriptor field : descriptor.getFields()) {
+      Node child = node.get(field);
+      if (child.isAll()) {
+        included.add(FieldAccessor.create(prototype, field));
+      } else if (child.isNone()) {
+        excluded.add(FieldAccessor.create(prototype, field));
+      } else {
+        Preconditions.checkState(field.getJavaType() == JavaType.MESSAGE);
+        Message subPrototype =
+            prototype.newBuilderForType().newBuilderForField(field).getDefaultInstanceForType();
+        partial.add(FieldAccessor.create(prototype, field));
+        partialPlans.add(compile(subPrototype, child));
+      }
+    }
+
+    return new ProjectionPlan(
+        descriptor,
+        false,
+        included.toArray(NO_FIELDS),
+        partial.toArray(NO_FIELDS),
+        partialPlans.toArray(NO_PLANS),
+        excluded.toArray(NO_FIELDS));
+  }
+
+  private final Descriptor descriptor;
+  private final boolean includesAll;
+  /** Fields which are included along with all of their sub-fields. */
+  private final FieldAccessor[] included;
+  /** Message fields, possibly repeated, which only include some of their sub-fields. */
+  private final FieldAccessor[] partial;
+  private final ProjectionPlan[] partialPlans;
+  /** Fields which are not included at all. */
+  private final FieldAccessor[] excluded;
+
+  private ProjectionPlan(
+      Descriptor descriptor,
+      boolean includesAll,
+      FieldAccessor[] included,
+      FieldAccessor[] partial,
+      ProjectionPlan[] partialPlans,
+      FieldAccessor[] excluded) {
+    this.descriptor = descriptor;
+    this.includesAll = includesAll;
+    this.included = included;
+    this.partial = partial;
+    this.partialPlans = partialPlans;
+    this.excluded = excluded;
+  }
+
+  /**
+   * Projects {@code message} onto this plan, using the {@linkplain ForkJoinPool#commonPool() common
+   * pool} for large repeated fields.
+   *
+   * @return {@code message} itself if it has no fields outside of this plan
+   */
+  Message project(Message message) {
+    return project(message, ForkJoinPool.commonPool(), DEFAULT_PARALLEL_THRESHOLD);
+  }
+
+  /**
+   * Projects {@code message} onto this plan.
+   *
+   * @param pool the pool which projects the elements of large repeated fields
+   * @param parallelThreshold the number of elements at which a repeated field is projected in
+   *     parallel
+   * @return {@code message} itself if it has no fields outside of this plan
+   */
+  Message project(Message message, ForkJoinPool pool, int parallelThreshold) {
+    return project(message, pool, parallelThreshold, null);
+  }
+
+  /**
+   * Projects {@code message} onto this plan.
+   *
+   * @param scratch a builder of the same class as {@code message.newBuilderForType()}, which is
+   *     {@linkplain Message.Builder#clear() cleared} and reused to build the projection instead of
+   *     creating a new builder. It must not be used by anything else at the same time.
+   * @return {@code message} itself if it has no fields outside of this plan
+   */
+  Message project(
+      Message message,
+      ForkJoinPool pool,
+      int parallelThreshold,
+      @Nullable Message.Builder scratch) {
+    Preconditions.checkArgument(
+        message.getDescriptorForType() == descriptor,
+        "Type mismatch. %s != %s",
+        message.getDescriptorForType().getFullName(),
+        descriptor.getFullName());
+    Preconditions.checkArgument(
+        parallelThreshold > 0, "parallelThreshold must be positive: %s", parallelThreshold);
+    return projectFields(message, pool, parallelThreshold, scratch);
+  }
+
+  private Message projectFields(
+      Message message,
+      ForkJoinPool pool,
+      int parallelThreshold,
+      @Nullable Message.Builder scratch) {
+    if (includesAll) {
+      return message;
+    }
+
+    boolean unchanged = message.getUnknownFields().asMap().isEmpty();
+    for (int i = 0; unchanged && i < excluded.length; i++) {
+      unchanged = !excluded[i].isSet(message);
+    }
+
+    Object[] projected = null;
+    for (int i = 0; i < partial.length; i++) {
+      FieldAccessor field = partial[i];
+      if (!field.isSet(message)) {
+        continue;
+      }
+
+      Object original = field.get(message);
+      Object projection =
+          field.getField().isRepeated()
+              ? partialPlans[i].projectElements((List<?>) original, pool, parallelThreshold)
+              : partialPlans[i].projectFields((Message) original, pool, parallelThreshold, null);
+      if (projection != original) {
+        if (projected == null) {
+          projected = new Object[partial.length];
+        }
+        projected[i] = projection;
+      }
+    }
+
+    if (unchanged && projected == null) {
+      return message;
+    }
+
+    Message.Builder builder = scratch != null ? scratch.clear() : message.newBuilderForType();
+    for (FieldAccessor field : included) {
+      if (field.isSet(message)) {
+        field.set(builder, field.get(message));
+      }
+    }
+    for (int i = 0; i < partial.length; i++) {
+      FieldAccessor field = partial[i];
+      if (projected != null && projected[i] != null) {
+        field.set(builder, projected[i]);
+      } else if (field.isSet(message)) {
+        field.set(builder, field.get(message));
+      }
+    }
+
+    return builder.buildPartial();
+  }
+
+  /**
+   * Projects each element of a repeated field onto this plan, preserving their order.
+   *
+   * @return {@code elements} itself if none of the elements changed
+   */
+  private List<?> projectElements(List<?> elements, ForkJoinPool pool, int parallelThreshold) {
+    Message[] projections = new Message[elements.size()];
+    if (projections.length < parallelThreshold) {
+      for (int i = 0; i < projections.length; i++) {
+        projections[i] = projectFields((Message) elements.get(i), pool, parallelThreshold, null);
+      }
+    } else {
+      ProjectElements task =
+          new ProjectElements(
+              elements, projections, 0, projections.length, pool, parallelThreshold);
+      if (ForkJoinTask.getPool() == pool) {
+        // Already running in the pool, e.g. because this is nested inside another large list.
+        task.invoke();
+      } else {
+        pool.invoke(task);
+      }
+    }
+
+    for (int i = 0; i < projections.length; i++) {
+      if (projections[i] != elements.get(i)) {
+        return Arrays.asList(projections);
+      }
+    }
+    return elements;
+  }
+
+  /** Projects a range of a repeated field's elements, splitting it in half until it's small. */
+  private final class ProjectElements extends RecursiveAction {
+    private static final long serialVersionUID = 1L;
+
+    private final List<?> elements;
+    private final Message[] projections;
+    private final int start;
+    private final int end;
+    private final ForkJoinPool pool;
+    private final int parallelThreshold;
+
+    ProjectElements(
+        List<?> elements,
+        Message[] projections,
+        int start,
+        int end,
+        ForkJoinPool pool,
+        int parallelThreshold) {
+      this.elements = elements;
+      this.projections = projections;
+      this.start = start;
+      this.end = end;
+      this.pool = pool;
+      this.parallelThreshold = parallelThreshold;
+    }
+
+    @Override
+    protected void compute() {
+      if (end - start < parallelThreshold) {
+        for (int i = start; i < end; i++) {
+          projections[i] = projectFields((Message) elements.get(i), pool, parallelThreshold, null);
+        }
+        return;
+      }
+
+      int middle = (start + end) >>> 1;
+      invokeAll(
+          new ProjectElements(elements, projections, start, middle, pool, parallelThreshold),
+          new ProjectElements(elements, projections, middle, end, pool, parallelThreshold));
+    }
+  }
+}
@@ -0,0 +1,210 @@
+package name.falgout.jeffrey.proto.fieldmask;
+
+import com.google.protobuf.ByteString;
+import com.google.protobuf.CodedInputStream;
+import com.google.protobuf.CodedOutputStream;
+import com.google.protobuf.InvalidProtocolBufferException;
+import com.google.protobuf.UnsafeByteOperations;
+import com.google.protobuf.WireFormat;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import name.falgout.jeffrey.proto.fieldmask.FieldMask.Node;
+
+/**
+ * Filters serialized messages down to the fields in a {@link FieldMask.Node} without parsing them.
+ *
+ * <p>The tag and value of every included field is copied verbatim from the input. Sub-messages
+ * that are only partially included are filtered recursively, and fields that aren't included are
+ * skipped without being decoded.
+ */
+final class WireFilter {
+  private static final int TAG_TYPE_BITS = 3;
+
+  /** Copies a range of the input being filtered. */
+  @FunctionalInterface
+  private interface Source {
+    void copyTo(int offset, byte[] target, int targetOffset, int length);
+  }
+
+  static ByteString filter(Node root, ByteString input) throws InvalidProtocolBufferException {
+    if (root.isAll()) {
+      return input;
+    }
+
+    WireFilter filter =
+        new WireFilter(
+            (offset, target, targetOffset, length) ->
+                input.copyTo(target, offset, targetOffset, length),
+            input.size());
+    filter.filter(input.newCodedInput(), root);
+    return filter.toByteString();
+  }
+
+  static byte[] filter(Node root, byte[] input) throws InvalidProtocolBufferException {
+    WireFilter filter = new WireFilter(arraySource(input, 0), input.length);
+    filter.filter(CodedInputStream.newInstance(input), root);
+    return filter.toByteArray();
+  }
+
+  static ByteBuffer filter(Node root, ByteBuffer input) throws InvalidProtocolBufferException {
+    ByteBuffer buffer = input.slice();
+    if (!buffer.hasArray()) {
+      // Direct buffers are copied, since protobuf's direct buffer decoding relies on Unsafe
+      // internals that aren't portable across JVMs.
+      byte[] copy = new byte[buffer.remaining()];
+      buffer.duplicate().get(copy);
+      buffer = ByteBuffer.wrap(copy);
+    }
+
+    WireFilter filter =
+        new WireFilter(arraySource(buffer.array(), buffer.arrayOffset()), buffer.remaining());
+    filter.filter(
+        CodedInputStream.newInstance(buffer.array(), buffer.arrayOffset(), buffer.remaining()),
+        root);
+    return ByteBuffer.wrap(filter.output, 0, filter.size).slice();
+  }
+
+  private static Source arraySource(byte[] array, int arrayOffset) {
+    return (offset, target, targetOffset, length) ->
+        System.arraycopy(array, arrayOffset + offset, target, targetOffset, length);
+  }
+
+  private final Source source;
+  private final int inputSize;
+
+  private byte[] output;
+  private int size = 0;
+
+  private WireFilter(Source source, int inputSize) {
+    this.source = source;
+    this.inputSize = inputSize;
+    // Filtering never makes a message bigger, so this is normally the only allocation we need.
+    this.output = new byte[inputSize];
+  }
+
+  private void filter(CodedInputStream input, Node root) throws InvalidProtocolBufferException {
+    try {
+      if (root.isAll()) {
+        copy(0, inputSize);
+      } else {
+        filterMessage(input, root, 0);
+      }
+    } catch (InvalidProtocolBufferException e) {
+      throw e;
+    } catch (IOException e) {
+      throw new IllegalStateException("Reading from memory shouldn't fail.", e);
+    }
+  }
+
+  /**
+   * Filters fields until the end of the current message.
+   *
+   * @param endGroupTag the tag that ends the current group, or {@code 0} if the current message
+   *     isn't a group
+   */
+  private void filterMessage(CodedInputStream input, Node node, int endGroupTag)
+      throws IOException {
+    while (true) {
+      int start = input.getTotalBytesRead();
+      int tag = input.readTag();
+      if (tag == endGroupTag) {
+        return;
+      }
+      if (tag == 0) {
+        throw new InvalidProtocolBufferException(
+            "While parsing a protocol message, the input ended unexpectedly in the middle of a "
+                + "field.");
+      }
+      if (WireFormat.getTagWireType(tag) == WireFormat.WIRETYPE_END_GROUP) {
+        throw new InvalidProtocolBufferException(
+            "Protocol message end-group tag did not match expected tag.");
+      }
+
+      Node child = node.get(WireFormat.getTagFieldNumber(tag));
+      if (child.isNone()) {
+        input.skipField(tag);
+      } else if (child.isAll()) {
+        input.skipField(tag);
+        copy(start, input.getTotalBytesRead());
+      } else {
+        filterSubMessage(input, child, tag, start);
+      }
+    }
+  }
+
+  private void filterSubMessage(CodedInputStream input, Node node, int tag, int start)
+      throws IOException {
+    switch (WireFormat.getTagWireType(tag)) {
+      case WireFormat.WIRETYPE_LENGTH_DELIMITED:
+        copy(start, input.getTotalBytesRead());
+
+        int length = input.readRawVarint32();
+        int lengthPosition = size;
+        int oldLimit = input.pushLimit(length);
+        filterMessage(input, node, 0);
+        input.popLimit(oldLimit);
+
+        insertLength(lengthPosition);
+        break;
+      case WireFormat.WIRETYPE_START_GROUP:
+        copy(start, input.getTotalBytesRead());
+
+        int endGroupTag = makeTag(WireFormat.getTagFieldNumber(tag), WireFormat.WIRETYPE_END_GROUP);
+        filterMessage(input, node, endGroupTag);
+
+        writeVarint(endGroupTag);
+        break;
+      default:
+        // A parser would treat this as an unknown field, which isn't part of any FieldMask.
+        input.skipField(tag);
+        break;
+    }
+  }
+
+  private static int makeTag(int fieldNumber, int wireType) {
+    return (fieldNumber << TAG_TYPE_BITS) | wireType;
+  }
+
+  private void copy(int from, int to) {
+    int length = to - from;
+    ensureCapacity(length);
+    source.copyTo(from, output, size, length);
+    size += length;
+  }
+
+  private void writeVarint(int value) {
+    ensureCapacity(CodedOutputStream.computeUInt32SizeNoTag(value));
+    while ((value & ~0x7F) != 0) {
+      output[size++] = (byte) ((value & 0x7F) | 0x80);
+      value >>>= 7;
+    }
+    output[size++] = (byte) value;
+  }
+
+  /** Inserts the length of everything written since {@code position} at {@code position}. */
+  private void insertLength(int position) {
+    int length = size - position;
+    int lengthSize = CodedOutputStream.computeUInt32SizeNoTag(length);
+    ensureCapacity(lengthSize);
+    System.arraycopy(output, position, output, position + lengthSize, length);
+
+    size = position;
+    writeVarint(length);
+    size += length;
+  }
+
+  private void ensureCapacity(int extra) {
+    if (size + extra > output.length) {
+      output = Arrays.copyOf(output, Math.max(size + extra, 2 * output.length));
+    }
+  }
+
+  private byte[] toByteArray() {
+    return size == output.length ? output : Arrays.copyOf(output, size);
+  }
+
+  private ByteString toByteString() {
+    return UnsafeByteOperations.unsafeWrap(toByteArray());
+  }
+}
@@ -0,0 +1,140 @@
+package name.falgout.jeffrey.proto.fieldmask;
+
+import com.google.protobuf.Descriptors.Descriptor;
+import com.google.protobuf.Message;
+import jdk.jfr.Category;
+import jdk.jfr.DataAmount;
+import jdk.jfr.Description;
+import jdk.jfr.Enabled;
+import jdk.jfr.Event;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+import jdk.jfr.Timespan;
+
+/**
+ * Records each operation as a JDK Flight Recorder event.
+ *
+ * <p>This class is only compiled by JDK 11 or later, and it's only loaded once {@link
+ * FieldMaskListeners#flightRecorderListener()} has checked that {@code jdk.jfr} is available. The
+ * events are only filled in and committed while a recording has enabled them, so the serialized
+ * sizes of projected messages aren't computed otherwise.
+ */
+final class FlightRecorderListener implements FieldMaskListener {
+  static final FlightRecorderListener INSTANCE = new FlightRecorderListener();
+
+  private static final String PREFIX = "name.falgout.jeffrey.proto.fieldmask.";
+
+  private FlightRecorderListener() {}
+
+  @Category({"Protocol Buffers", "FieldMask"})
+  abstract static class FieldMaskEvent extends Event {
+    @Label("Message Type")
+    String messageType;
+
+    @Label("Mask Size")
+    @Description("The number of paths in the FieldMask")
+    int size;
+
+    @Label("Elapsed")
+    @Timespan(Timespan.NANOSECONDS)
+    long elapsed;
+
+    final void record(Descriptor type, int size, long durationNanos) {
+      this.messageType = type.getFullName();
+      this.size = size;
+      this.elapsed = durationNanos;
+      commit();
+    }
+  }
+
+  /** An event which compares the sizes of a message before and after it's masked. */
+  abstract static class SizedEvent extends FieldMaskEvent {
+    @Label("Bytes Before")
+    @DataAmount
+    long bytesBefore;
+
+    @Label("Bytes After")
+    @DataAmount
+    long bytesAfter;
+  }
+
+  @Name(PREFIX + "Parse")
+  @Label("FieldMask Parse")
+  static final class ParseEvent extends FieldMaskEvent {}
+
+  @Name(PREFIX + "Build")
+  @Label("FieldMask Build")
+  static final class BuildEvent extends FieldMaskEvent {}
+
+  /** Containment checks are too frequent to record unless a recording asks for them. */
+  @Name(PREFIX + "Contains")
+  @Label("FieldMask Contains")
+  @Enabled(false)
+  static final class ContainsEvent extends FieldMaskEvent {}
+
+  @Name(PREFIX + "Project")
+  @Label("FieldMask Project")
+  static final class ProjectEvent extends SizedEvent {}
+
+  @Name(PREFIX + "Merge")
+  @Label("FieldMask Merge")
+  static final class MergeEvent extends FieldMaskEvent {}
+
+  @Name(PREFIX + "Filter")
+  @Label("FieldMask Filter")
+  static final class FilterEvent extends SizedEvent {}
+
+  @Override
+  public void onParse(Descriptor type, int pathCount, long durationNanos) {
+    ParseEvent event = new ParseEvent();
+    if (event.isEnabled()) {
+      event.record(type, pathCount, durationNanos);
+    }
+  }
+
+  @Override
+  public void onBuild(Descriptor type, int size, long durationNanos) {
+    BuildEvent event = new BuildEvent();
+    if (event.isEnabled()) {
+      event.record(type, size, durationNanos);
+    }
+  }
+
+  @Override
+  public void onContains(Descriptor type, int size, long durationNanos) {
+    ContainsEvent event = new ContainsEvent();
+    if (event.isEnabled()) {
+      event.record(type, size, durationNanos);
+    }
+  }
+
+  @Override
+  public void onProject(
+      Descriptor type, int size, long durationNanos, Message original, Message projection) {
+    ProjectEvent event = new ProjectEvent();
+    if (event.isEnabled()) {
+      event.bytesBefore = original.getSerializedSize();
+      event.bytesAfter = projection.getSerializedSize();
+      event.record(type, size, durationNanos);
+    }
+  }
+
+  @Override
+  public void onMerge(Descriptor type, int size, long durationNanos) {
+    MergeEvent event = new MergeEvent();
+    if (event.isEnabled()) {
+      event.record(type, size, durationNanos);
+    }
+  }
+
+  @Override
+  public void onFilter(
+      Descriptor type, int size, long durationNanos, long bytesBefore, long bytesAfter) {
+    FilterEvent event = new FilterEvent();
+    if (event.isEnabled()) {
+      event.bytesBefore = bytesBefore;
+      event.bytesAfter = bytesAfter;
+      event.record(type, size, durationNanos);
+    }
+  }
+}
@@ -1,7 +1,15 @@
 package name.falgout.jeffrey.proto;
 
 import static com.google.common.truth.Truth.assertThat;
+import static org.junit.jupiter.api.Assertions.assertThrows;
 
+import com.google.protobuf.Descriptors.Descriptor;
+import com.google.protobuf.Descriptors.DescriptorValidationException;
+import com.google.protobuf.Descriptors.FieldDescriptor;
+import com.google.protobuf.Descriptors.FileDescriptor;
+import com.google.protobuf.DynamicMessage;
+import name.falgout.jeffrey.proto.fieldmask.Test.Bar;
+import name.falgout.jeffrey.proto.fieldmask.Test.DescriptorOnly;
 import name.falgout.jeffrey.proto.fieldmask.Test.Foo;
 import org.junit.jupiter.api.Test;
 
@@ -14,4 +22,66 @@ class ProtoDescriptorTest {
     assertThat(foo).isEqualTo(unknown);
     assertThat(unknown.castTo(foo)).isSameAs(unknown);
   }
+
+  @Test
+  void isCanonical() {
+    ProtoDescriptor<Foo> foo = ProtoDescriptor.create(Foo.class);
+
+    assertThat(ProtoDescriptor.create(Foo.class)).isSameAs(foo);
+    assertThat(ProtoDescriptor.create(Foo.getDescriptor())).isSameAs(foo);
+  }
+
+  @Test
+  void isCanonical_descriptorFirst() {
+    ProtoDescriptor<?> nested = ProtoDescriptor.create(DescriptorOnly.Nested.getDescriptor());
+
+    assertThat(nested.getDefaultInstanceForType())
+        .isSameAs(DescriptorOnly.Nested.getDefaultInstance());
+    assertThat(ProtoDescriptor.create(DescriptorOnly.Nested.class)).isSameAs(nested);
+  }
+
+  @Test
+  void getMessageFieldType() {
+    ProtoDescriptor<Foo> foo = ProtoDescriptor.create(Foo.class);
+    FieldDescriptor barField = Foo.getDescriptor().findFieldByName("bar_field");
+
+    ProtoDescriptor<?> bar = foo.getMessageFieldType(barField);
+
+    assertThat(bar).isSameAs(ProtoDescriptor.create(Bar.class));
+    assertThat(bar.getDefaultInstanceForType()).isSameAs(Bar.getDefaultInstance());
+  }
+
+  @Test
+  void getMessageFieldType_requiresMessageField() {
+    ProtoDescriptor<Foo> foo = ProtoDescriptor.create(Foo.class);
+
+    assertThrows(
+        IllegalArgumentException.class,
+        () -> foo.getMessageFieldType(Foo.getDescriptor().findFieldByName("int_field")));
+    assertThrows(
+        IllegalArgumentException.class,
+        () -> foo.getMessageFieldType(Bar.getDescriptor().findFieldByName("nested_baz")));
+  }
+
+  @Test
+  void getDefaultInstanceForType() {
+    ProtoDescriptor<Foo> foo = ProtoDescriptor.create(Foo.class);
+    // A copy of Foo's type which doesn't have a generated class.
+    Descriptor dynamicType = buildCopy(Foo.getDescriptor().getFile()).findMessageTypeByName("Foo");
+    ProtoDescriptor<?> dynamic = ProtoDescriptor.create(dynamicType);
+
+    assertThat(foo.getDefaultInstanceForType()).isSameAs(Foo.getDefaultInstance());
+    assertThat(dynamic).isNotSameAs(foo);
+    assertThat(dynamic.getDefaultInstanceForType())
+        .isEqualTo(DynamicMessage.getDefaultInstance(dynamicType));
+  }
+
+  private static FileDescriptor buildCopy(FileDescriptor file) {
+    try {
+      return FileDescriptor.buildFrom(
+          file.toProto(), file.getDependencies().toArray(new FileDescriptor[0]));
+    } catch (DescriptorValidationException e) {
+      throw new AssertionError(e);
+    }
+  }
 }
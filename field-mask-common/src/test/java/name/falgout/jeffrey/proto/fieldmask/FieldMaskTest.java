@@ -3,13 +3,45 @@ package name.falgout.jeffrey.proto.fieldmask;
 import static com.google.common.truth.Truth.assertThat;
 import static com.google.common.truth.Truth8.assertThat;
 import static com.google.common.truth.extensions.proto.ProtoTruth.assertThat;
+import static java.util.stream.Collectors.toList;
 import static org.junit.jupiter.api.Assertions.assertThrows;
 
+import com.google.protobuf.ByteString;
+import com.google.protobuf.CodedInputStream;
+import com.google.protobuf.CodedOutputStream;
+import com.google.protobuf.DescriptorProtos.DescriptorProto;
+import com.google.protobuf.DescriptorProtos.FieldDescriptorProto;
+import com.google.protobuf.DescriptorProtos.FileDescriptorProto;
+import com.google.protobuf.Descriptors.Descriptor;
+import com.google.protobuf.Descriptors.DescriptorValidationException;
 import com.google.protobuf.Descriptors.FieldDescriptor;
+import com.google.protobuf.Descriptors.FileDescriptor;
+import com.google.protobuf.DynamicMessage;
+import com.google.protobuf.InvalidProtocolBufferException;
+import com.google.protobuf.Message;
+import com.google.protobuf.UnknownFieldSet;
 import com.google.protobuf.util.FieldMaskUtil;
+import com.google.protobuf.util.FieldMaskUtil.MergeOptions;
+import java.io.ByteArrayInputStream;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Queue;
+import java.util.Spliterator;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ForkJoinPool;
+import java.util.function.IntPredicate;
+import java.util.stream.Stream;
+import name.falgout.jeffrey.proto.ProtoDescriptor;
 import name.falgout.jeffrey.proto.fieldmask.Test.Bar;
 import name.falgout.jeffrey.proto.fieldmask.Test.Baz;
+import name.falgout.jeffrey.proto.fieldmask.Test.Conflicting;
 import name.falgout.jeffrey.proto.fieldmask.Test.Foo;
+import name.falgout.jeffrey.proto.fieldmask.Test3.Color;
+import name.falgout.jeffrey.proto.fieldmask.Test3.Palette;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
 import org.junit.jupiter.api.Nested;
 import org.junit.jupiter.api.Test;
 
@@ -17,9 +49,46 @@ class FieldMaskTest {
   private static final Class<Foo> FOO = Foo.class;
   private static final Class<Bar> BAR = Bar.class;
   private static final Class<Baz> BAZ = Baz.class;
+  private static final int WIDTH = 100;
+  private static final ProtoDescriptor<Message> WIDE = createWideType();
+
+  /** A message type with enough fields for its nodes to use bitsets. */
+  private static ProtoDescriptor<Message> createWideType() {
+    DescriptorProto.Builder wide = DescriptorProto.newBuilder().setName("Wide");
+    // Declare the fields out of order, so that their indices and numbers don't line up.
+    for (int i = WIDTH; i > 0; i--) {
+      wide.addField(
+          FieldDescriptorProto.newBuilder()
+              .setName("field_" + i)
+              .setNumber(i)
+              .setLabel(FieldDescriptorProto.Label.LABEL_OPTIONAL)
+              .setType(FieldDescriptorProto.Type.TYPE_INT32));
+    }
+    wide.addField(
+        FieldDescriptorProto.newBuilder()
+            .setName("child")
+            .setNumber(WIDTH + 1)
+            .setLabel(FieldDescriptorProto.Label.LABEL_OPTIONAL)
+            .setType(FieldDescriptorProto.Type.TYPE_MESSAGE)
+            .setTypeName(".Wide"));
+
+    try {
+      FileDescriptor file =
+          FileDescriptor.buildFrom(
+              FileDescriptorProto.newBuilder().setName("wide.proto").addMessageType(wide).build(),
+              new FileDescriptor[0]);
+
+      @SuppressWarnings("unchecked")
+      ProtoDescriptor<Message> descriptor =
+          (ProtoDescriptor<Message>) ProtoDescriptor.create(file.findMessageTypeByName("Wide"));
+      return descriptor;
+    } catch (DescriptorValidationException e) {
+      throw new AssertionError(e);
+    }
+  }
 
   @Nested
-  static class AllowAll {
+  class AllowAll {
     final FieldMask<Foo> allowAll = FieldMask.allowAll(FOO);
 
     @Test
@@ -45,7 +114,7 @@ class FieldMaskTest {
   }
 
   @Nested
-  static class AllowNone {
+  class AllowNone {
     final FieldMask<Foo> allowNone = FieldMask.allowNone(FOO);
 
     @Test
@@ -72,7 +141,7 @@ class FieldMaskTest {
   }
 
   @Nested
-  static class Builder {
+  class Builder {
     @Test
     void ignoresDuplicates() {
       FieldPath<Foo> path = FieldPath.create(FOO, "int_field");
@@ -121,6 +190,1150 @@ class FieldMaskTest {
 
       assertThat(first).isEqualTo(second);
     }
+
+    @Test
+    void buildsSnapshots() {
+      FieldPath<Foo> intField = FieldPath.create(FOO, "int_field");
+      FieldPath<Foo> stringField = FieldPath.create(FOO, "bar_field.string_field");
+      FieldPath<Foo> bazField = FieldPath.create(FOO, "baz_field");
+
+      FieldMask.Builder<Foo> builder = FieldMask.newBuilder(FOO);
+      FieldMask<Foo> first = builder.addFieldPath(intField).build();
+      FieldMask<Foo> second = builder.addFieldPath(stringField).build();
+      FieldMask<Foo> third = builder.addFieldPath(bazField).build();
+
+      assertThat(first).isEqualTo(FieldMask.of(intField));
+      assertThat(second).isEqualTo(FieldMask.of(intField, stringField));
+      assertThat(third).isEqualTo(FieldMask.of(intField, stringField, bazField));
+      assertThat(builder.addFieldPath(intField).build()).isSameAs(third);
+    }
+
+    @Test
+    void isOrderIndependent() {
+      FieldPath<Foo> intField = FieldPath.create(FOO, "int_field");
+      FieldPath<Foo> stringField = FieldPath.create(FOO, "bar_field.string_field");
+      FieldPath<Foo> bazField = FieldPath.create(FOO, "baz_field");
+
+      FieldMask<Foo> forwards = FieldMask.of(intField, stringField, bazField);
+      FieldMask<Foo> backwards = FieldMask.of(bazField, stringField, intField);
+
+      assertThat(forwards).isEqualTo(backwards);
+      assertThat(forwards.hashCode()).isEqualTo(backwards.hashCode());
+      assertThat(forwards.toProto()).isEqualTo(backwards.toProto());
+    }
+  }
+
+  @Nested
+  class Project {
+    final Foo foo =
+        Foo.newBuilder()
+            .setIntField(1)
+            .setBarField(
+                Bar.newBuilder()
+                    .setStringField("string")
+                    .setBytesField(ByteString.copyFromUtf8("bytes"))
+                    .setNestedBaz(Baz.newBuilder().setFieldInBaz(2)))
+            .setBazField(Baz.newBuilder().setFieldInBaz(3))
+            .addRepeatedBar(Bar.newBuilder().setStringField("repeated"))
+            .addRepeatedInt(4)
+            .build();
+
+    @Test
+    void onlyKeepsMaskedFields() {
+      FieldMask<Foo> mask =
+          FieldMask.of(
+              FieldPath.create(FOO, "int_field"),
+              FieldPath.create(FOO, "bar_field.nested_baz"),
+              FieldPath.create(FOO, "repeated_bar"));
+
+      Foo expected =
+          Foo.newBuilder()
+              .setIntField(1)
+              .setBarField(Bar.newBuilder().setNestedBaz(Baz.newBuilder().setFieldInBaz(2)))
+              .addRepeatedBar(Bar.newBuilder().setStringField("repeated"))
+              .build();
+
+      assertThat(mask.project(foo)).isEqualTo(expected);
+    }
+
+    @Test
+    void matchesFieldMaskUtil() {
+      FieldMask<Foo> mask =
+          FieldMask.of(
+              FieldPath.create(FOO, "bar_field.string_field"),
+              FieldPath.create(FOO, "baz_field"),
+              FieldPath.create(FOO, "repeated_int"));
+
+      Foo.Builder expected = Foo.newBuilder();
+      FieldMaskUtil.merge(mask.toProto().get(), foo, expected);
+
+      assertThat(mask.project(foo)).isEqualTo(expected.build());
+    }
+
+    @Test
+    void sharesFullyIncludedSubMessages() {
+      FieldMask<Foo> mask =
+          FieldMask.of(FieldPath.create(FOO, "int_field"), FieldPath.create(FOO, "baz_field"));
+
+      assertThat(mask.project(foo).getBazField()).isSameAs(foo.getBazField());
+    }
+
+    @Test
+    void returnsOriginalWhenNothingIsExcluded() {
+      FieldMask<Foo> mask =
+          FieldMask.of(
+              FieldPath.create(FOO, "int_field"),
+              FieldPath.create(FOO, "bar_field.string_field"));
+      Foo message =
+          Foo.newBuilder()
+              .setIntField(1)
+              .setBarField(Bar.newBuilder().setStringField("string"))
+              .build();
+
+      assertThat(mask.project(message)).isSameAs(message);
+      assertThat(FieldMask.allowAll(FOO).project(foo)).isSameAs(foo);
+    }
+
+    @Test
+    void allowNone() {
+      assertThat(FieldMask.allowNone(FOO).project(foo)).isEqualToDefaultInstance();
+    }
+
+    @Test
+    void projectsDynamicMessagesOfGeneratedTypes() {
+      FieldMask<Foo> mask =
+          FieldMask.of(
+              FieldPath.create(FOO, "int_field"),
+              FieldPath.create(FOO, "bar_field.string_field"),
+              FieldPath.create(FOO, "repeated_bar.nested_baz"));
+      @SuppressWarnings("unchecked") // The plan is compiled for Foo, but Foo's descriptor matches.
+      FieldMask<Message> untyped = (FieldMask<Message>) (FieldMask<?>) mask;
+
+      Message projection = untyped.project(DynamicMessage.newBuilder(foo).build());
+
+      assertThat(projection).isInstanceOf(DynamicMessage.class);
+      assertThat(projection).isEqualTo(DynamicMessage.newBuilder(mask.project(foo)).build());
+    }
+
+    @Test
+    void projectsFieldsWithRenamedAccessors() {
+      Conflicting message =
+          Conflicting.newBuilder()
+              .addFoo1(1)
+              .setFooCount2(2)
+              .addBar3("three")
+              .setBarList4("four")
+              .setBaz(5)
+              .build();
+      Class<Conflicting> type = Conflicting.class;
+
+      assertThat(FieldMask.of(FieldPath.create(type, "foo")).project(message))
+          .isEqualTo(Conflicting.newBuilder().addFoo1(1).build());
+      assertThat(FieldMask.of(FieldPath.create(type, "foo_count")).project(message))
+          .isEqualTo(Conflicting.newBuilder().setFooCount2(2).build());
+      assertThat(FieldMask.of(FieldPath.create(type, "bar")).project(message))
+          .isEqualTo(Conflicting.newBuilder().addBar3("three").build());
+      assertThat(FieldMask.of(FieldPath.create(type, "bar_list")).project(message))
+          .isEqualTo(Conflicting.newBuilder().setBarList4("four").build());
+      assertThat(FieldMask.of(FieldPath.create(type, "baz")).project(message))
+          .isEqualTo(Conflicting.newBuilder().setBaz(5).build());
+    }
+
+    @Test
+    void keepsUnrecognizedEnumValues() {
+      Palette message =
+          Palette.newBuilder().addColors(Color.RED).addColorsValue(7).setName("name").build();
+
+      Palette projection =
+          FieldMask.of(FieldPath.create(Palette.class, "colors")).project(message);
+
+      assertThat(projection.getColorsValueList()).containsExactly(Color.RED_VALUE, 7).inOrder();
+      assertThat(projection)
+          .isEqualTo(Palette.newBuilder().addColors(Color.RED).addColorsValue(7).build());
+    }
+
+    @Test
+    void projectsRepeatedElements() {
+      Foo message =
+          Foo.newBuilder()
+              .addRepeatedBar(
+                  Bar.newBuilder().setStringField("first").setNestedBaz(Baz.newBuilder()))
+              .addRepeatedBar(Bar.newBuilder().setBytesField(ByteString.copyFromUtf8("second")))
+              .build();
+      FieldMask<Foo> mask = FieldMask.of(FieldPath.create(FOO, "repeated_bar.string_field"));
+
+      Foo expected =
+          Foo.newBuilder()
+              .addRepeatedBar(Bar.newBuilder().setStringField("first"))
+              .addRepeatedBar(Bar.getDefaultInstance())
+              .build();
+
+      assertThat(mask.project(message)).isEqualTo(expected);
+    }
+
+    @Test
+    void projectsLargeRepeatedFieldsInParallel() {
+      Foo.Builder message = Foo.newBuilder();
+      for (int i = 0; i < 1000; i++) {
+        message.addRepeatedBar(
+            Bar.newBuilder()
+                .setStringField(Integer.toString(i))
+                .setNestedBaz(Baz.newBuilder().setFieldInBaz(i)));
+      }
+      FieldMask<Foo> mask = FieldMask.of(FieldPath.create(FOO, "repeated_bar.nested_baz"));
+
+      ForkJoinPool pool = new ForkJoinPool(4);
+      try {
+        Foo projection = mask.project(message.build(), pool, 16);
+
+        assertThat(projection).isEqualTo(mask.project(message.build(), pool, Integer.MAX_VALUE));
+        for (int i = 0; i < 1000; i++) {
+          assertThat(projection.getRepeatedBar(i).getNestedBaz().getFieldInBaz()).isEqualTo(i);
+        }
+      } finally {
+        pool.shutdown();
+      }
+    }
+  }
+
+  @Nested
+  class ProjectAll {
+    final FieldMask<Foo> mask =
+        FieldMask.of(FieldPath.create(FOO, "int_field"), FieldPath.create(FOO, "bar_field"));
+    final List<Foo> messages = new ArrayList<>();
+    final List<Foo> projections = new ArrayList<>();
+
+    ProjectAll() {
+      for (int i = 0; i < 100; i++) {
+        Foo message =
+            Foo.newBuilder()
+                .setIntField(i)
+                .setBarField(Bar.newBuilder().setStringField(Integer.toString(i)))
+                .setBazField(Baz.newBuilder().setFieldInBaz(i))
+                .build();
+        messages.add(message);
+        projections.add(mask.project(message));
+      }
+    }
+
+    @Test
+    void stream() {
+      assertThat(mask.projectAll(messages.stream()).collect(toList()))
+          .containsExactlyElementsIn(projections)
+          .inOrder();
+      assertThat(mask.projectAll(messages.parallelStream()).collect(toList()))
+          .containsExactlyElementsIn(projections)
+          .inOrder();
+    }
+
+    @Test
+    void spliterator() {
+      Spliterator<Foo> spliterator = mask.projectAll(messages.stream().distinct().spliterator());
+
+      assertThat(spliterator.hasCharacteristics(Spliterator.ORDERED)).isTrue();
+      assertThat(spliterator.hasCharacteristics(Spliterator.DISTINCT)).isFalse();
+
+      List<Foo> actual = new ArrayList<>();
+      Spliterator<Foo> prefix = spliterator.trySplit();
+      if (prefix != null) {
+        prefix.forEachRemaining(actual::add);
+      }
+      spliterator.forEachRemaining(actual::add);
+      assertThat(actual).containsExactlyElementsIn(projections).inOrder();
+    }
+
+    @Test
+    void reusesBuildersSafely() {
+      // The wide message type doesn't have generated code, so its messages are DynamicMessages.
+      ProtoDescriptor<Message> wide = WIDE;
+      FieldDescriptor field1 = wide.getDescriptorForType().findFieldByName("field_1");
+      FieldDescriptor field2 = wide.getDescriptorForType().findFieldByName("field_2");
+      List<Message> dynamicMessages = new ArrayList<>();
+      for (int i = 0; i < 100; i++) {
+        Message.Builder message = wide.getDefaultInstanceForType().toBuilder();
+        dynamicMessages.add(message.setField(field1, i).setField(field2, i).build());
+      }
+
+      FieldMask<Message> dynamicMask = FieldMask.of(FieldPath.create(wide, "field_1"));
+      List<Message> actual = dynamicMask.projectAll(dynamicMessages.stream()).collect(toList());
+
+      for (int i = 0; i < actual.size(); i++) {
+        assertThat(actual.get(i)).isInstanceOf(DynamicMessage.class);
+        assertThat(actual.get(i).getField(field1)).isEqualTo(i);
+        assertThat(actual.get(i).hasField(field2)).isFalse();
+      }
+    }
+
+    @Test
+    void inPool() {
+      ForkJoinPool pool = new ForkJoinPool(4);
+      try {
+        List<Foo> ordered = new ArrayList<>();
+        mask.projectAll(messages.stream(), pool, true, ordered::add);
+        assertThat(ordered).containsExactlyElementsIn(projections).inOrder();
+
+        Queue<Foo> unordered = new ConcurrentLinkedQueue<>();
+        mask.projectAll(messages.stream(), pool, false, unordered::add);
+        assertThat(unordered).containsExactlyElementsIn(projections);
+      } finally {
+        pool.shutdown();
+      }
+    }
+  }
+
+  @Nested
+  class WideMessages {
+    private FieldMask<Message> fieldsWhere(IntPredicate predicate, String... morePaths) {
+      FieldMask.Builder<Message> builder = FieldMask.newBuilder(WIDE);
+      for (int i = 1; i <= WIDTH; i++) {
+        if (predicate.test(i)) {
+          builder.addFieldPath(FieldPath.create(WIDE, "field_" + i));
+        }
+      }
+      for (String path : morePaths) {
+        builder.addFieldPath(FieldPath.create(WIDE, path));
+      }
+      return builder.build();
+    }
+
+    final FieldMask<Message> evens = fieldsWhere(i -> i % 2 == 0);
+    final FieldMask<Message> multiplesOfThree = fieldsWhere(i -> i % 3 == 0);
+
+    @Test
+    void setOperations() {
+      assertThat(evens.union(multiplesOfThree))
+          .isEqualTo(fieldsWhere(i -> i % 2 == 0 || i % 3 == 0));
+      assertThat(evens.intersect(multiplesOfThree)).isEqualTo(fieldsWhere(i -> i % 6 == 0));
+      assertThat(evens.subtract(multiplesOfThree))
+          .isEqualTo(fieldsWhere(i -> i % 2 == 0 && i % 3 != 0));
+      assertThat(evens.union(fieldsWhere(i -> i % 4 == 0))).isSameAs(evens);
+      assertThat(evens.intersect(fieldsWhere(i -> i % 2 == 1)))
+          .isEqualTo(FieldMask.allowNone(WIDE));
+      assertThat(FieldMask.allowAll(WIDE).subtract(multiplesOfThree))
+          .isEqualTo(fieldsWhere(i -> i % 3 != 0, "child"));
+    }
+
+    @Test
+    void containsAll() {
+      assertThat(evens.containsAll(fieldsWhere(i -> i % 6 == 0))).isTrue();
+      assertThat(evens.containsAll(multiplesOfThree)).isFalse();
+
+      FieldMask<Message> withChild = fieldsWhere(i -> i % 2 == 0, "child.field_1", "child.field_2");
+      assertThat(withChild.containsAll(fieldsWhere(i -> i == 2, "child.field_1"))).isTrue();
+      assertThat(withChild.containsAll(fieldsWhere(i -> i == 2, "child.field_3"))).isFalse();
+      assertThat(withChild.containsAll(fieldsWhere(i -> i == 2, "child"))).isFalse();
+      assertThat(fieldsWhere(i -> true, "child").containsAll(withChild)).isTrue();
+    }
+
+    @Test
+    void contains() {
+      assertThat(evens.contains("field_2")).isTrue();
+      assertThat(evens.contains("field_3")).isFalse();
+
+      // The child is ranked after every scalar field, in the second word of the bitsets.
+      FieldMask<Message> withChild = fieldsWhere(i -> i % 2 == 0, "child.field_1");
+      assertThat(withChild.contains("child.field_1")).isTrue();
+      assertThat(withChild.contains("child.field_2")).isFalse();
+      assertThat(withChild.contains(FieldPath.create(WIDE, "field_100"))).isTrue();
+      assertThat(withChild.contains(FieldPath.create(WIDE, "field_99"))).isFalse();
+      assertThat(withChild.getSubFieldMask(FieldPath.create(WIDE, "child")))
+          .isEqualTo(fieldsWhere(i -> i == 1));
+    }
+  }
+
+  @Nested
+  class Merge {
+    final Foo source =
+        Foo.newBuilder()
+            .setIntField(1)
+            .setBarField(Bar.newBuilder().setStringField("source"))
+            .addRepeatedBar(Bar.newBuilder().setStringField("source"))
+            .addRepeatedInt(2)
+            .build();
+    final Foo destination =
+        Foo.newBuilder()
+            .setBarField(
+                Bar.newBuilder()
+                    .setBytesField(ByteString.copyFromUtf8("destination"))
+                    .setNestedBaz(Baz.newBuilder().setFieldInBaz(3)))
+            .setBazField(Baz.newBuilder().setFieldInBaz(4))
+            .addRepeatedBar(Bar.newBuilder().setStringField("destination"))
+            .addRepeatedInt(5)
+            .build();
+    final FieldMask<Foo> mask =
+        FieldMask.of(
+            FieldPath.create(FOO, "int_field"),
+            FieldPath.create(FOO, "bar_field.string_field"),
+            FieldPath.create(FOO, "bar_field.nested_baz"),
+            FieldPath.create(FOO, "baz_field"),
+            FieldPath.create(FOO, "repeated_bar"),
+            FieldPath.create(FOO, "repeated_int"));
+
+    @Test
+    void matchesFieldMaskUtil() {
+      for (int i = 0; i < 8; i++) {
+        MergeOptions options = new MergeOptions();
+        options.setReplaceMessageFields((i & 1) != 0);
+        options.setReplaceRepeatedFields((i & 2) != 0);
+        options.setReplacePrimitiveFields((i & 4) != 0);
+
+        Foo.Builder expected = destination.toBuilder();
+        FieldMaskUtil.merge(mask.toProto().get(), source, expected, options);
+        Foo.Builder actual = destination.toBuilder();
+        mask.merge(source, actual, options);
+
+        assertThat(actual.build()).isEqualTo(expected.build());
+      }
+    }
+
+    @Test
+    void projectsRepeatedElements() {
+      FieldMask<Foo> elements = FieldMask.of(FieldPath.create(FOO, "repeated_bar.nested_baz"));
+      Foo withBaz =
+          Foo.newBuilder()
+              .addRepeatedBar(
+                  Bar.newBuilder()
+                      .setStringField("source")
+                      .setNestedBaz(Baz.newBuilder().setFieldInBaz(6)))
+              .build();
+
+      Foo.Builder appended = destination.toBuilder();
+      elements.merge(withBaz, appended);
+      assertThat(appended.getRepeatedBarList())
+          .containsExactly(
+              Bar.newBuilder().setStringField("destination").build(),
+              Bar.newBuilder().setNestedBaz(Baz.newBuilder().setFieldInBaz(6)).build())
+          .inOrder();
+
+      MergeOptions replace = new MergeOptions();
+      replace.setReplaceRepeatedFields(true);
+      Foo.Builder replaced = destination.toBuilder();
+      elements.merge(withBaz, replaced, replace);
+      assertThat(replaced.getRepeatedBarList())
+          .containsExactly(
+              Bar.newBuilder().setNestedBaz(Baz.newBuilder().setFieldInBaz(6)).build());
+    }
+
+    @Test
+    void mergesIntoDynamicMessages() {
+      DynamicMessage.Builder actual = DynamicMessage.newBuilder(destination);
+      mask.merge(source, actual);
+
+      Foo.Builder expected = destination.toBuilder();
+      FieldMaskUtil.merge(mask.toProto().get(), source, expected);
+
+      assertThat(actual.build()).isEqualTo(DynamicMessage.newBuilder(expected.build()).build());
+    }
+
+    @Test
+    void allowAll() {
+      Foo.Builder actual = destination.toBuilder();
+      FieldMask.allowAll(FOO).merge(source, actual);
+
+      assertThat(actual.build()).isEqualTo(destination.toBuilder().mergeFrom(source).build());
+    }
+
+    @Test
+    void allowNone() {
+      Foo.Builder actual = destination.toBuilder();
+      FieldMask.allowNone(FOO).merge(source, actual);
+
+      assertThat(actual.build()).isEqualTo(destination);
+    }
+
+    @Test
+    void rejectsOtherTypes() {
+      assertThrows(
+          IllegalArgumentException.class, () -> mask.merge(source, Bar.newBuilder()));
+    }
+  }
+
+  @Nested
+  class Equivalence {
+    final FieldMask<Foo> mask =
+        FieldMask.of(
+            FieldPath.create(FOO, "int_field"),
+            FieldPath.create(FOO, "bar_field.string_field"),
+            FieldPath.create(FOO, "int_map"));
+    final Foo foo =
+        Foo.newBuilder()
+            .setIntField(1)
+            .setBarField(Bar.newBuilder().setStringField("string"))
+            .putIntMap("a", 2)
+            .putIntMap("b", 3)
+            .build();
+
+    @Test
+    void ignoresUnmaskedFields() {
+      Foo other =
+          foo.toBuilder()
+              .setBarField(foo.getBarField().toBuilder().setBytesField(ByteString.copyFromUtf8("x")))
+              .setBazField(Baz.newBuilder().setFieldInBaz(4))
+              .addRepeatedInt(5)
+              .build();
+
+      assertThat(mask.equivalence().equivalent(foo, other)).isTrue();
+      assertThat(mask.hash64(foo)).isEqualTo(mask.hash64(other));
+      assertThat(mask.comparator().compare(foo, other)).isEqualTo(0);
+    }
+
+    @Test
+    void comparesRepeatedElements() {
+      FieldMask<Foo> elements = FieldMask.of(FieldPath.create(FOO, "repeated_bar.string_field"));
+      Foo message = Foo.newBuilder().addRepeatedBar(Bar.newBuilder().setStringField("a")).build();
+      Foo sameElements =
+          Foo.newBuilder()
+              .addRepeatedBar(Bar.newBuilder().setStringField("a").setNestedBaz(Baz.newBuilder()))
+              .build();
+      Foo moreElements = message.toBuilder().addRepeatedBar(Bar.getDefaultInstance()).build();
+
+      assertThat(elements.equivalence().equivalent(message, sameElements)).isTrue();
+      assertThat(elements.hash64(message)).isEqualTo(elements.hash64(sameElements));
+      assertThat(elements.comparator().compare(message, sameElements)).isEqualTo(0);
+
+      assertThat(elements.equivalence().equivalent(message, moreElements)).isFalse();
+      assertThat(elements.comparator().compare(message, moreElements)).isLessThan(0);
+    }
+
+    @Test
+    void ignoresMapOrder() {
+      Foo other =
+          foo.toBuilder().clearIntMap().putIntMap("b", 3).putIntMap("a", 2).build();
+
+      assertThat(mask.equivalence().equivalent(foo, other)).isTrue();
+      assertThat(mask.hash64(foo)).isEqualTo(mask.hash64(other));
+      assertThat(mask.comparator().compare(foo, other)).isEqualTo(0);
+    }
+
+    @Test
+    void matchesProjection() {
+      Foo[] messages = {
+        foo,
+        foo.toBuilder().clearIntField().build(),
+        foo.toBuilder().setIntField(0).build(),
+        foo.toBuilder().clearBarField().build(),
+        foo.toBuilder().setBarField(Bar.getDefaultInstance()).build(),
+        foo.toBuilder().putIntMap("a", 4).build(),
+        Foo.getDefaultInstance(),
+      };
+
+      for (Foo a : messages) {
+        for (Foo b : messages) {
+          boolean equal = mask.project(a).equals(mask.project(b));
+
+          assertThat(mask.equivalence().equivalent(a, b)).isEqualTo(equal);
+          assertThat(mask.comparator().compare(a, b) == 0).isEqualTo(equal);
+          assertThat(Integer.signum(mask.comparator().compare(a, b)))
+              .isEqualTo(-Integer.signum(mask.comparator().compare(b, a)));
+          if (equal) {
+            assertThat(mask.hash64(a)).isEqualTo(mask.hash64(b));
+          }
+        }
+      }
+    }
+
+    @Test
+    void ordersUnsetFieldsFirst() {
+      Foo unset = foo.toBuilder().clearIntField().build();
+      Foo bigger = foo.toBuilder().setIntField(2).build();
+
+      assertThat(mask.comparator().compare(unset, foo)).isLessThan(0);
+      assertThat(mask.comparator().compare(foo, bigger)).isLessThan(0);
+    }
+
+    @Test
+    void allowAll() {
+      FieldMask<Foo> allowAll = FieldMask.allowAll(FOO);
+      Foo other = foo.toBuilder().addRepeatedInt(5).build();
+
+      assertThat(allowAll.equivalence().equivalent(foo, other)).isFalse();
+      assertThat(allowAll.comparator().compare(foo, other)).isLessThan(0);
+      assertThat(allowAll.hash64(foo)).isEqualTo(allowAll.hash64(foo.toBuilder().build()));
+    }
+
+    @Test
+    void isEqualForEqualMasks() {
+      assertThat(mask.equivalence())
+          .isEqualTo(FieldMask.fromProto(FOO, mask.toProto().get()).equivalence());
+    }
+  }
+
+  @Nested
+  class Diff {
+    @Test
+    void comparesRepeatedElements() {
+      Foo message =
+          Foo.newBuilder()
+              .addRepeatedBar(Bar.newBuilder().setStringField("a"))
+              .addRepeatedBar(Bar.newBuilder().setStringField("b"))
+              .build();
+      FieldMask<Foo> watch =
+          FieldMask.of(
+              FieldPath.create(FOO, "repeated_bar.string_field"),
+              FieldPath.create(FOO, "repeated_bar.bytes_field"));
+
+      Foo changed =
+          message.toBuilder()
+              .setRepeatedBar(
+                  1, Bar.newBuilder().setStringField("c").setNestedBaz(Baz.newBuilder()))
+              .build();
+      assertThat(watch.diff(message, changed))
+          .isEqualTo(FieldMask.of(FieldPath.create(FOO, "repeated_bar.string_field")));
+
+      Foo removed = message.toBuilder().removeRepeatedBar(1).build();
+      assertThat(watch.diff(message, removed)).isEqualTo(watch);
+    }
+
+    final Foo before =
+        Foo.newBuilder()
+            .setIntField(1)
+            .setBarField(
+                Bar.newBuilder()
+                    .setStringField("before")
+                    .setNestedBaz(Baz.newBuilder().setFieldInBaz(2)))
+            .addRepeatedInt(3)
+            .putIntMap("a", 4)
+            .putIntMap("b", 5)
+            .build();
+
+    @Test
+    void findsChangedPaths() {
+      Foo after =
+          before.toBuilder()
+              .setIntField(6)
+              .setBarField(before.getBarField().toBuilder().setStringField("after"))
+              .setBazField(Baz.getDefaultInstance())
+              .addRepeatedInt(7)
+              .build();
+
+      assertThat(FieldMask.allowAll(FOO).diff(before, after))
+          .isEqualTo(
+              FieldMask.of(
+                  FieldPath.create(FOO, "int_field"),
+                  FieldPath.create(FOO, "bar_field.string_field"),
+                  FieldPath.create(FOO, "baz_field"),
+                  FieldPath.create(FOO, "repeated_int")));
+    }
+
+    @Test
+    void isRestrictedToWatchMask() {
+      Foo after =
+          before.toBuilder()
+              .setIntField(6)
+              .setBarField(before.getBarField().toBuilder().setStringField("after").clearNestedBaz())
+              .build();
+      FieldMask<Foo> watch =
+          FieldMask.of(
+              FieldPath.create(FOO, "bar_field.nested_baz"),
+              FieldPath.create(FOO, "baz_field"));
+
+      assertThat(watch.diff(before, after))
+          .isEqualTo(FieldMask.of(FieldPath.create(FOO, "bar_field.nested_baz")));
+    }
+
+    @Test
+    void includesWatchedSubFieldsOfAddedMessages() {
+      Foo after = before.toBuilder().clearBarField().build();
+      FieldMask<Foo> watch =
+          FieldMask.of(
+              FieldPath.create(FOO, "int_field"),
+              FieldPath.create(FOO, "bar_field.string_field"));
+
+      assertThat(watch.diff(before, after))
+          .isEqualTo(FieldMask.of(FieldPath.create(FOO, "bar_field.string_field")));
+    }
+
+    @Test
+    void ignoresMapOrder() {
+      Foo after = before.toBuilder().clearIntMap().putIntMap("b", 5).putIntMap("a", 4).build();
+
+      assertThat(FieldMask.allowAll(FOO).diff(before, after)).isEqualTo(FieldMask.allowNone(FOO));
+
+      Foo changed = before.toBuilder().putIntMap("a", 8).build();
+      assertThat(FieldMask.allowAll(FOO).diff(before, changed))
+          .isEqualTo(FieldMask.of(FieldPath.create(FOO, "int_map")));
+    }
+
+    @Test
+    void identicalMessages() {
+      assertThat(FieldMask.allowAll(FOO).diff(before, before)).isEqualTo(FieldMask.allowNone(FOO));
+      assertThat(FieldMask.allowAll(FOO).diff(before, before.toBuilder().build()))
+          .isEqualTo(FieldMask.allowNone(FOO));
+    }
+  }
+
+  @Nested
+  class Intern {
+    @Test
+    void equalMasksAreSameInstance() {
+      FieldMask<Foo> mask1 =
+          FieldMask.of(
+              FieldPath.create(FOO, "int_field"),
+              FieldPath.create(FOO, "bar_field.nested_baz.field_in_baz"));
+      FieldMask<Foo> mask2 =
+          FieldMask.of(
+              FieldPath.create(FOO, "bar_field.nested_baz.field_in_baz"),
+              FieldPath.create(FOO, "int_field"));
+
+      assertThat(mask1.intern()).isSameAs(mask2.intern());
+      assertThat(mask1.intern()).isEqualTo(mask1);
+      assertThat(mask1.intern().intern()).isSameAs(mask1.intern());
+    }
+
+    @Test
+    void sharesEqualSubtrees() {
+      FieldMask<Foo> mask1 =
+          FieldMask.of(
+              FieldPath.create(FOO, "int_field"),
+              FieldPath.create(FOO, "bar_field.nested_baz.field_in_baz"));
+      FieldMask<Foo> mask2 =
+          FieldMask.of(FieldPath.create(FOO, "bar_field.nested_baz.field_in_baz"));
+      FieldPath<Foo> barField = FieldPath.create(FOO, "bar_field");
+
+      assertThat(mask1.intern().getSubFieldMask(barField).intern())
+          .isSameAs(mask2.intern().getSubFieldMask(barField).intern());
+    }
+
+    @Test
+    void keepsMessageType() throws Exception {
+      FieldMask<Foo> mask = FieldMask.of(FieldPath.create(FOO, "int_field")).intern();
+      Foo foo = Foo.newBuilder().setIntField(1).build();
+
+      assertThat(mask.parseFrom(foo.toByteString())).isEqualTo(foo);
+    }
+  }
+
+  @Nested
+  class Codec {
+    final FieldMask<Foo> mask =
+        FieldMask.of(
+            FieldPath.create(FOO, "int_field"),
+            FieldPath.create(FOO, "bar_field.string_field"),
+            FieldPath.create(FOO, "bar_field.nested_baz"),
+            FieldPath.create(FOO, "int_map"));
+
+    @Test
+    void roundTripsThroughByteBuffer() throws Exception {
+      for (FieldMask<Foo> fieldMask :
+          Arrays.asList(mask, FieldMask.allowAll(FOO), FieldMask.allowNone(FOO))) {
+        ByteBuffer buffer = ByteBuffer.allocate(fieldMask.getSerializedSize() + 1);
+        buffer.put((byte) 0);
+        fieldMask.writeTo(buffer);
+        assertThat(buffer.hasRemaining()).isFalse();
+
+        buffer.flip().position(1);
+        assertThat(FieldMask.readFrom(FOO, buffer)).isEqualTo(fieldMask);
+        assertThat(buffer.hasRemaining()).isFalse();
+      }
+    }
+
+    @Test
+    void roundTripsThroughCodedStreams() throws Exception {
+      ByteString.Output bytes = ByteString.newOutput();
+      CodedOutputStream output = CodedOutputStream.newInstance(bytes);
+      mask.writeTo(output);
+      FieldMask.allowAll(FOO).writeTo(output);
+      output.flush();
+
+      CodedInputStream input = bytes.toByteString().newCodedInput();
+      assertThat(FieldMask.readFrom(FOO, input)).isEqualTo(mask);
+      assertThat(FieldMask.readFrom(FOO, input)).isEqualTo(FieldMask.allowAll(FOO));
+      assertThat(input.isAtEnd()).isTrue();
+    }
+
+    @Test
+    void isSmallerThanProto() {
+      assertThat(mask.getSerializedSize()).isEqualTo(11);
+      assertThat(mask.getSerializedSize()).isLessThan(mask.toProto().get().getSerializedSize());
+    }
+
+    @Test
+    void rejectsInvalidEncodings() {
+      byte[][] invalid = {
+        {},
+        // A child can't be NONE.
+        {2, 1, 0},
+        // Field number 7 doesn't exist.
+        {2, 7, 1},
+        // int_field has no sub-fields.
+        {2, 1, 2, 1, 1},
+        // Field numbers have to increase.
+        {3, 1, 1, 0, 1},
+        // Foo doesn't have this many fields.
+        {100},
+      };
+
+      for (byte[] bytes : invalid) {
+        assertThrows(
+            InvalidProtocolBufferException.class,
+            () -> FieldMask.readFrom(FOO, ByteBuffer.wrap(bytes)));
+      }
+    }
+  }
+
+  @Nested
+  class Filter {
+    final Foo foo =
+        Foo.newBuilder()
+            .setIntField(1)
+            .setBarField(
+                Bar.newBuilder()
+                    .setStringField("string")
+                    .setBytesField(ByteString.copyFromUtf8("bytes"))
+                    .setNestedBaz(Baz.newBuilder().setFieldInBaz(2)))
+            .setBazField(Baz.newBuilder().setFieldInBaz(3))
+            .addRepeatedBar(Bar.newBuilder().setStringField("first"))
+            .addRepeatedBar(Bar.newBuilder().setStringField("second"))
+            .addRepeatedInt(4)
+            .addRepeatedInt(5)
+            .build();
+
+    final FieldMask<Foo> mask =
+        FieldMask.of(
+            FieldPath.create(FOO, "bar_field.nested_baz"),
+            FieldPath.create(FOO, "bar_field.string_field"),
+            FieldPath.create(FOO, "repeated_bar"),
+            FieldPath.create(FOO, "repeated_int"));
+
+    @Test
+    void matchesProject() throws Exception {
+      Foo filtered = Foo.parseFrom(mask.filter(foo.toByteString()));
+
+      assertThat(filtered).isEqualTo(mask.project(foo));
+    }
+
+    @Test
+    void acceptsAllInputs() throws Exception {
+      ByteString expected = mask.filter(foo.toByteString());
+
+      assertThat(ByteString.copyFrom(mask.filter(foo.toByteArray()))).isEqualTo(expected);
+
+      ByteBuffer heap = ByteBuffer.wrap(foo.toByteArray());
+      assertThat(ByteString.copyFrom(mask.filter(heap))).isEqualTo(expected);
+      assertThat(heap.position()).isEqualTo(0);
+
+      ByteBuffer direct = ByteBuffer.allocateDirect(foo.getSerializedSize());
+      direct.put(foo.toByteArray()).flip();
+      assertThat(ByteString.copyFrom(mask.filter(direct))).isEqualTo(expected);
+    }
+
+    @Test
+    void dropsUnknownFields() throws Exception {
+      Foo withUnknownFields =
+          foo.toBuilder()
+              .setUnknownFields(
+                  UnknownFieldSet.newBuilder()
+                      .addField(100, UnknownFieldSet.Field.newBuilder().addVarint(1).build())
+                      .build())
+              .build();
+
+      assertThat(mask.filter(withUnknownFields.toByteString()))
+          .isEqualTo(mask.filter(foo.toByteString()));
+    }
+
+    @Test
+    void allowAll() throws Exception {
+      ByteString bytes = foo.toByteString();
+
+      assertThat(FieldMask.allowAll(FOO).filter(bytes)).isSameAs(bytes);
+    }
+
+    @Test
+    void allowNone() throws Exception {
+      assertThat(FieldMask.allowNone(FOO).filter(foo.toByteString())).isEqualTo(ByteString.EMPTY);
+    }
+
+    @Test
+    void rejectsMalformedInput() {
+      ByteString truncated = foo.toByteString().substring(0, foo.getSerializedSize() - 1);
+
+      assertThrows(InvalidProtocolBufferException.class, () -> mask.filter(truncated));
+    }
+  }
+
+  @Nested
+  class ParseFrom {
+    final Foo foo =
+        Foo.newBuilder()
+            .setIntField(1)
+            .setBarField(
+                Bar.newBuilder()
+                    .setStringField("string")
+                    .setBytesField(ByteString.copyFromUtf8("bytes"))
+                    .setNestedBaz(Baz.newBuilder().setFieldInBaz(2)))
+            .setBazField(Baz.newBuilder().setFieldInBaz(3))
+            .addRepeatedBar(Bar.newBuilder().setStringField("first"))
+            .addRepeatedBar(Bar.newBuilder().setStringField("second"))
+            .addRepeatedInt(4)
+            .build();
+
+    final FieldMask<Foo> mask =
+        FieldMask.of(
+            FieldPath.create(FOO, "int_field"),
+            FieldPath.create(FOO, "bar_field.nested_baz.field_in_baz"),
+            FieldPath.create(FOO, "bar_field.string_field"),
+            FieldPath.create(FOO, "repeated_bar"));
+
+    @Test
+    void matchesProject() throws Exception {
+      assertThat(mask.parseFrom(foo.toByteString())).isEqualTo(mask.project(foo));
+      assertThat(mask.parseFrom(new ByteArrayInputStream(foo.toByteArray())))
+          .isEqualTo(mask.project(foo));
+    }
+
+    @Test
+    void mergesRepeatedOccurrences() throws Exception {
+      Foo first = Foo.newBuilder().setBarField(Bar.newBuilder().setStringField("first")).build();
+      Foo second =
+          Foo.newBuilder()
+              .setBarField(Bar.newBuilder().setNestedBaz(Baz.newBuilder().setFieldInBaz(1)))
+              .build();
+      ByteString concatenated = first.toByteString().concat(second.toByteString());
+
+      assertThat(mask.parseFrom(concatenated))
+          .isEqualTo(mask.project(Foo.parseFrom(concatenated)));
+    }
+
+    @Test
+    void allowAll() throws Exception {
+      assertThat(FieldMask.allowAll(FOO).parseFrom(foo.toByteString())).isEqualTo(foo);
+    }
+
+    @Test
+    void allowNone() throws Exception {
+      assertThat(FieldMask.allowNone(FOO).parseFrom(foo.toByteString())).isEqualToDefaultInstance();
+    }
+
+    @Test
+    void subFieldMask() throws Exception {
+      FieldMask<?> subFieldMask = mask.getSubFieldMask(FieldPath.create(FOO, "bar_field"));
+      FieldMask<Bar> barMask = subFieldMask.castTo(BAR);
+      assertThat(barMask).isSameAs(subFieldMask);
+
+      Bar bar = barMask.parseFrom(foo.getBarField().toByteString());
+      assertThat(bar).isEqualTo(barMask.project(foo.getBarField()));
+    }
+  }
+
+  @Nested
+  class Listeners {
+    final Foo foo =
+        Foo.newBuilder()
+            .setIntField(1)
+            .setBarField(Bar.newBuilder().setStringField("string").setBytesField(ByteString.EMPTY))
+            .setBazField(Baz.newBuilder().setFieldInBaz(2))
+            .build();
+
+    final FieldMask<Foo> mask =
+        FieldMask.of(FieldPath.create(FOO, "int_field"), FieldPath.create(FOO, "bar_field"));
+    final FieldMask<Foo> allowAll = FieldMask.allowAll(FOO);
+    final FieldMask<Foo> allowNone = FieldMask.allowNone(FOO);
+
+    final List<String> events = new ArrayList<>();
+    final FieldMaskListener listener =
+        new FieldMaskListener() {
+          @Override
+          public void onParse(Descriptor type, int pathCount, long durationNanos) {
+            events.add("parse " + type.getName() + " " + pathCount);
+          }
+
+          @Override
+          public void onBuild(Descriptor type, int size, long durationNanos) {
+            events.add("build " + type.getName() + " " + size);
+          }
+
+          @Override
+          public void onContains(Descriptor type, int size, long durationNanos) {
+            events.add("contains " + type.getName() + " " + size);
+          }
+
+          @Override
+          public void onProject(
+              Descriptor type,
+              int size,
+              long durationNanos,
+              Message original,
+              Message projection) {
+            events.add(
+                "project "
+                    + type.getName()
+                    + " "
+                    + size
+                    + " "
+                    + original.getSerializedSize()
+                    + " "
+                    + projection.getSerializedSize());
+          }
+
+          @Override
+          public void onMerge(Descriptor type, int size, long durationNanos) {
+            events.add("merge " + type.getName() + " " + size);
+          }
+
+          @Override
+          public void onFilter(
+              Descriptor type, int size, long durationNanos, long bytesBefore, long bytesAfter) {
+            events.add(
+                "filter " + type.getName() + " " + size + " " + bytesBefore + " " + bytesAfter);
+          }
+        };
+
+    @BeforeEach
+    void register() {
+      FieldMaskListeners.register(listener);
+    }
+
+    @AfterEach
+    void unregister() {
+      FieldMaskListeners.unregister(listener);
+    }
+
+    @Test
+    void parse() {
+      FieldPath.create(FOO, "bar_field.string_field");
+      FieldMask.fromProto(
+          FOO, com.google.protobuf.FieldMask.newBuilder().addPaths("int_field").build());
+
+      // Parsing a FieldMask builds it, too.
+      assertThat(events)
+          .containsExactly("parse Foo 1", "build Foo 1", "parse Foo 1")
+          .inOrder();
+    }
+
+    @Test
+    void contains() {
+      mask.contains("int_field");
+      mask.contains(FieldPath.create(FOO, "baz_field"));
+      mask.containsAll(allowNone);
+      allowAll.contains("int_field");
+
+      assertThat(events)
+          .containsExactly(
+              "contains Foo 2", "parse Foo 1", "contains Foo 2", "contains Foo 2", "contains Foo 1")
+          .inOrder();
+    }
+
+    @Test
+    void project() {
+      Foo projection = mask.project(foo);
+      mask.projectAll(Stream.of(foo)).forEach(message -> {});
+
+      String expected =
+          "project Foo 2 " + foo.getSerializedSize() + " " + projection.getSerializedSize();
+      assertThat(events).containsExactly(expected, expected);
+    }
+
+    @Test
+    void merge() {
+      mask.merge(foo, Foo.newBuilder());
+
+      assertThat(events).containsExactly("merge Foo 2");
+    }
+
+    @Test
+    void filter() throws Exception {
+      ByteString filtered = mask.filter(foo.toByteString());
+
+      assertThat(events)
+          .containsExactly(
+              "filter Foo 2 " + foo.getSerializedSize() + " " + filtered.size());
+    }
+
+    @Test
+    void unregistered() {
+      FieldMaskListeners.unregister(listener);
+      mask.project(foo);
+
+      assertThat(events).isEmpty();
+    }
+  }
+
+  @Nested
+  class SetOperations {
+    final FieldMask<Foo> intAndString =
+        FieldMask.of(
+            FieldPath.create(FOO, "int_field"),
+            FieldPath.create(FOO, "bar_field.string_field"));
+    final FieldMask<Foo> barAndBaz =
+        FieldMask.of(FieldPath.create(FOO, "bar_field"), FieldPath.create(FOO, "baz_field"));
+    final FieldMask<Foo> allowAll = FieldMask.allowAll(FOO);
+    final FieldMask<Foo> allowNone = FieldMask.allowNone(FOO);
+
+    @Test
+    void union() {
+      assertThat(intAndString.union(barAndBaz))
+          .isEqualTo(
+              FieldMask.of(
+                  FieldPath.create(FOO, "int_field"),
+                  FieldPath.create(FOO, "bar_field"),
+                  FieldPath.create(FOO, "baz_field")));
+      assertThat(intAndString.union(allowNone)).isSameAs(intAndString);
+      assertThat(intAndString.union(allowAll)).isSameAs(allowAll);
+      assertThat(intAndString.union(FieldMask.of(FieldPath.create(FOO, "int_field"))))
+          .isSameAs(intAndString);
+    }
+
+    @Test
+    void intersect() {
+      assertThat(intAndString.intersect(barAndBaz))
+          .isEqualTo(FieldMask.of(FieldPath.create(FOO, "bar_field.string_field")));
+      assertThat(intAndString.intersect(allowAll)).isSameAs(intAndString);
+      assertThat(intAndString.intersect(allowNone)).isSameAs(allowNone);
+      assertThat(intAndString.intersect(FieldMask.of(FieldPath.create(FOO, "repeated_int"))))
+          .isEqualTo(allowNone);
+    }
+
+    @Test
+    void subtract() {
+      assertThat(barAndBaz.subtract(intAndString))
+          .isEqualTo(
+              FieldMask.of(
+                  FieldPath.create(FOO, "bar_field.bytes_field"),
+                  FieldPath.create(FOO, "bar_field.nested_baz"),
+                  FieldPath.create(FOO, "baz_field")));
+      assertThat(intAndString.subtract(barAndBaz))
+          .isEqualTo(FieldMask.of(FieldPath.create(FOO, "int_field")));
+      assertThat(intAndString.subtract(allowNone)).isSameAs(intAndString);
+      assertThat(intAndString.subtract(allowAll)).isEqualTo(allowNone);
+      assertThat(intAndString.subtract(FieldMask.of(FieldPath.create(FOO, "baz_field"))))
+          .isSameAs(intAndString);
+    }
+
+    @Test
+    void subtractFromAll() {
+      FieldMask<Foo> difference = allowAll.subtract(intAndString);
+
+      assertThat(difference.contains(FieldPath.create(FOO, "int_field"))).isFalse();
+      assertThat(difference.contains(FieldPath.create(FOO, "bar_field.string_field"))).isFalse();
+      assertThat(difference.contains(FieldPath.create(FOO, "bar_field.nested_baz"))).isTrue();
+      assertThat(difference.contains(FieldPath.create(FOO, "repeated_bar"))).isTrue();
+
+      FieldMask<Foo> union = difference.union(intAndString);
+      for (FieldDescriptor field : Foo.getDescriptor().getFields()) {
+        assertThat(union.contains(FieldPath.create(FOO, field))).isTrue();
+      }
+    }
+  }
+
+  @Test
+  void fingerprint() {
+    FieldMask<Foo> mask =
+        FieldMask.of(
+            FieldPath.create(FOO, "int_field"),
+            FieldPath.create(FOO, "bar_field.string_field"));
+    FieldMask<Foo> sameMask =
+        FieldMask.fromProto(FOO, FieldMaskUtil.fromString("bar_field.string_field,int_field"));
+    FieldMask<Foo> otherMask = FieldMask.of(FieldPath.create(FOO, "bar_field.string_field"));
+
+    assertThat(mask.fingerprint()).isEqualTo(sameMask.fingerprint());
+    assertThat(mask.fingerprint()).isNotEqualTo(otherMask.fingerprint());
+    assertThat(mask.fingerprint()).isNotEqualTo(FieldMask.allowAll(FOO).fingerprint());
+    assertThat(FieldMask.allowAll(FOO).fingerprint())
+        .isNotEqualTo(FieldMask.allowNone(FOO).fingerprint());
+    assertThat(FieldMask.allowAll(FOO).fingerprint())
+        .isNotEqualTo(FieldMask.allowAll(BAR).fingerprint());
+    // Fingerprints must not change between JVMs or releases.
+    assertThat(mask.fingerprint()).isEqualTo(7979019257061340899L);
   }
 
   @Test
@@ -143,6 +1356,28 @@ class FieldMaskTest {
     assertThat(fooMask.contains(bytesField)).isFalse();
   }
 
+  @Test
+  void containsPathString() {
+    FieldMask<Foo> fooMask =
+        FieldMask.of(
+            FieldPath.create(FOO, "int_field"),
+            FieldPath.create(FOO, "bar_field.nested_baz"));
+
+    assertThat(fooMask.contains("int_field")).isTrue();
+    assertThat(fooMask.contains("bar_field")).isTrue();
+    assertThat(fooMask.contains(new StringBuilder("bar_field.nested_baz.field_in_baz"))).isTrue();
+    assertThat(fooMask.contains("bar_field.string_field")).isFalse();
+    assertThat(fooMask.contains("baz_field.field_in_baz")).isFalse();
+    assertThat(FieldMask.allowAll(FOO).contains("bar_field.nested_baz")).isTrue();
+
+    assertThrows(IllegalArgumentException.class, () -> fooMask.contains(""));
+    assertThrows(IllegalArgumentException.class, () -> fooMask.contains("bar_field."));
+    assertThrows(IllegalArgumentException.class, () -> fooMask.contains("int_field.abc"));
+    assertThrows(
+        IllegalArgumentException.class, () -> fooMask.contains("bar_field.nested_baz.abc"));
+    assertThrows(IllegalArgumentException.class, () -> fooMask.contains("baz_field.abc"));
+  }
+
   @Test
   void containsAll() {
     FieldMask<Foo> haystack =
@@ -255,6 +1490,101 @@ class FieldMaskTest {
     assertThat(fieldMask.toProto().get()).ignoringRepeatedFieldOrder().isEqualTo(proto);
   }
 
+  @Test
+  void toProto_isSorted() {
+    FieldMask<Foo> fieldMask =
+        FieldMask.of(
+            FieldPath.create(FOO, "int_field"),
+            FieldPath.create(FOO, "bar_field.string_field"),
+            FieldPath.create(FOO, "bar_field.nested_baz.field_in_baz"),
+            FieldPath.create(FOO, "baz_field"));
+
+    assertThat(fieldMask.toProto().get().getPathsList())
+        .containsExactly(
+            "bar_field.nested_baz.field_in_baz", "bar_field.string_field", "baz_field", "int_field")
+        .inOrder();
+  }
+
+  @Test
+  void accept() {
+    FieldMask<Foo> fieldMask =
+        FieldMask.of(
+            FieldPath.create(FOO, "int_field"),
+            FieldPath.create(FOO, "bar_field.string_field"),
+            FieldPath.create(FOO, "bar_field.nested_baz.field_in_baz"));
+    List<String> events = new ArrayList<>();
+    FieldMaskVisitor visitor =
+        new FieldMaskVisitor() {
+          @Override
+          public void visitAllFields() {
+            events.add("all");
+          }
+
+          @Override
+          public void visitLeaf(FieldDescriptor field) {
+            events.add(field.getName());
+          }
+
+          @Override
+          public void enterField(FieldDescriptor field) {
+            events.add("enter " + field.getName());
+          }
+
+          @Override
+          public void exitField(FieldDescriptor field) {
+            events.add("exit " + field.getName());
+          }
+        };
+
+    fieldMask.accept(visitor);
+    FieldMask.allowNone(FOO).accept(visitor);
+    FieldMask.allowAll(FOO).accept(visitor);
+
+    assertThat(events)
+        .containsExactly(
+            "int_field",
+            "enter bar_field",
+            "string_field",
+            "enter nested_baz",
+            "field_in_baz",
+            "exit nested_baz",
+            "exit bar_field",
+            "all")
+        .inOrder();
+  }
+
+  @Test
+  void fromProto_sharedPrefixes() {
+    com.google.protobuf.FieldMask proto =
+        com.google.protobuf.FieldMask.newBuilder()
+            .addPaths("bar_field.nested_baz.field_in_baz")
+            .addPaths("bar_field.nested_baz")
+            .addPaths("bar_field.string_field")
+            .addPaths("bar_field")
+            .addPaths("baz_field.field_in_baz")
+            .addPaths("int_field")
+            .build();
+
+    FieldMask<Foo> expected =
+        FieldMask.of(
+            FieldPath.create(FOO, "bar_field"),
+            FieldPath.create(FOO, "baz_field.field_in_baz"),
+            FieldPath.create(FOO, "int_field"));
+
+    assertThat(FieldMask.fromProto(FOO, proto)).isEqualTo(expected);
+  }
+
+  @Test
+  void fromProto_invalidPath() {
+    com.google.protobuf.FieldMask proto =
+        com.google.protobuf.FieldMask.newBuilder()
+            .addPaths("bar_field.string_field")
+            .addPaths("bar_field.string_field.invalid")
+            .build();
+
+    assertThrows(IllegalArgumentException.class, () -> FieldMask.fromProto(FOO, proto));
+  }
+
   @Test
   void fromProto_empty() {
     com.google.protobuf.FieldMask proto = com.google.protobuf.FieldMask.getDefaultInstance();
@@ -32,6 +32,23 @@ class FieldPathTest {
     assertThat(fieldPath.toPathString()).isEqualTo("bar_field.string_field");
   }
 
+  @Test
+  void fingerprint() {
+    FieldPath<Foo> fieldPath = FieldPath.create(FOO, "bar_field.string_field");
+    FieldPath<Foo> samePath =
+        FieldPath.create(
+            FOO,
+            Foo.getDescriptor().findFieldByName("bar_field"),
+            Bar.getDescriptor().findFieldByName("string_field"));
+    FieldPath<Foo> otherPath = FieldPath.create(FOO, "bar_field.bytes_field");
+
+    assertThat(fieldPath.fingerprint()).isEqualTo(samePath.fingerprint());
+    assertThat(fieldPath.fingerprint()).isNotEqualTo(otherPath.fingerprint());
+    assertThat(fieldPath).isEqualTo(samePath);
+    assertThat(fieldPath.hashCode()).isEqualTo(samePath.hashCode());
+    assertThat(fieldPath).isNotEqualTo(otherPath);
+  }
+
   @Test
   void createFromPathString_fieldsMustExist() {
     assertThrows(
@@ -69,6 +86,26 @@ class FieldPathTest {
     assertThrows(IllegalArgumentException.class, () -> FieldPath.create(FOO, ""));
   }
 
+  @Test
+  void createFromPathString_fieldNamesCannotBeEmpty() {
+    assertThrows(IllegalArgumentException.class, () -> FieldPath.create(FOO, "bar_field."));
+    assertThrows(IllegalArgumentException.class, () -> FieldPath.create(FOO, ".bar_field"));
+    assertThrows(
+        IllegalArgumentException.class, () -> FieldPath.create(FOO, "bar_field..string_field"));
+  }
+
+  @Test
+  void createFromPathString_repeatedMessagesHaveSubFields() {
+    assertThat(FieldPath.create(FOO, "repeated_bar").getPath()).hasSize(1);
+    assertThat(FieldPath.create(FOO, "repeated_bar.string_field").getPath()).hasSize(2);
+  }
+
+  @Test
+  void createFromPathString_mapFieldsMustBeLast() {
+    assertThat(FieldPath.create(FOO, "int_map").getPath()).hasSize(1);
+    assertThrows(IllegalArgumentException.class, () -> FieldPath.create(FOO, "int_map.key"));
+  }
+
   @Test
   void append() {
     FieldPath<Foo> path = FieldPath.create(FOO, "bar_field");
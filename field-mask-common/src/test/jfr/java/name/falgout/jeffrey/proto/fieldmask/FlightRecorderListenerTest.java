@@ -0,0 +1,71 @@
+package name.falgout.jeffrey.proto.fieldmask;
+
+import static com.google.common.truth.Truth.assertThat;
+import static com.google.common.truth.Truth8.assertThat;
+
+import com.google.protobuf.ByteString;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.List;
+import jdk.jfr.Recording;
+import jdk.jfr.consumer.RecordedEvent;
+import jdk.jfr.consumer.RecordingFile;
+import name.falgout.jeffrey.proto.fieldmask.Test.Bar;
+import name.falgout.jeffrey.proto.fieldmask.Test.Baz;
+import name.falgout.jeffrey.proto.fieldmask.Test.Foo;
+import org.junit.jupiter.api.Test;
+
+class FlightRecorderListenerTest {
+  private static final Class<Foo> FOO = Foo.class;
+
+  private final Foo foo =
+      Foo.newBuilder()
+          .setIntField(1)
+          .setBarField(Bar.newBuilder().setStringField("string").setBytesField(ByteString.EMPTY))
+          .setBazField(Baz.newBuilder().setFieldInBaz(2))
+          .build();
+
+  private final FieldMask<Foo> mask =
+      FieldMask.of(FieldPath.create(FOO, "int_field"), FieldPath.create(FOO, "bar_field"));
+
+  @Test
+  void isAvailable() {
+    assertThat(FieldMaskListeners.flightRecorderListener()).isPresent();
+  }
+
+  @Test
+  void recordsEnabledEvents() throws Exception {
+    FieldMaskListener flightRecorder = FieldMaskListeners.flightRecorderListener().get();
+    Path file = Files.createTempFile("field-mask", ".jfr");
+
+    Foo projection;
+    try (Recording recording = new Recording()) {
+      recording.enable("name.falgout.jeffrey.proto.fieldmask.Project");
+      recording.start();
+
+      FieldMaskListeners.register(flightRecorder);
+      try {
+        projection = mask.project(foo);
+        mask.contains("int_field");
+      } finally {
+        FieldMaskListeners.unregister(flightRecorder);
+      }
+
+      recording.stop();
+      recording.dump(file);
+    }
+
+    try {
+      List<RecordedEvent> recorded = RecordingFile.readAllEvents(file);
+      assertThat(recorded).hasSize(1);
+
+      RecordedEvent event = recorded.get(0);
+      assertThat(event.getString("messageType")).isEqualTo(Foo.getDescriptor().getFullName());
+      assertThat(event.getInt("size")).isEqualTo(2);
+      assertThat(event.getLong("bytesBefore")).isEqualTo(foo.getSerializedSize());
+      assertThat(event.getLong("bytesAfter")).isEqualTo(projection.getSerializedSize());
+    } finally {
+      Files.delete(file);
+    }
+  }
+}
@@ -7,6 +7,11 @@ import java.lang.annotation.Target;
 
 /**
  * Can be used to annotate a proto type with information about which fields will be accessed.
+ *
+ * <p>For each type with annotated method parameters, the annotation processor also generates a
+ * {@code <Type>_RequiredFields} class in the same package. It holds each parameter's fields as a
+ * pre-built {@link name.falgout.jeffrey.proto.fieldmask.FieldMask} constant, so that they aren't
+ * parsed again at runtime.
  */
 @Retention(RetentionPolicy.SOURCE)
 @Target({
@@ -0,0 +1,221 @@
+package name.falgout.jeffrey.proto.fieldmask.usage.processor;
+
+import static java.util.stream.Collectors.toList;
+
+import com.google.auto.common.MoreElements;
+import com.google.common.base.CaseFormat;
+import com.google.common.collect.ListMultimap;
+import com.google.common.collect.Multimaps;
+import com.google.protobuf.Message;
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import javax.annotation.processing.Filer;
+import javax.lang.model.element.ExecutableElement;
+import javax.lang.model.element.TypeElement;
+import javax.lang.model.element.VariableElement;
+import name.falgout.jeffrey.proto.ProtoDescriptor;
+import name.falgout.jeffrey.proto.fieldmask.FieldMask;
+
+/**
+ * Writes the {@code @RequiresFields} of the parameters in a type as pre-built {@link FieldMask}
+ * constants, so that they don't have to be parsed at runtime.
+ *
+ * <p>For a type {@code Outer.Handler}, this writes {@code Outer_Handler_RequiredFields} into the
+ * same package. It has a nested class for each method, named after the method, with these members
+ * for each annotated parameter {@code fooBar} of type {@code Foo}:
+ *
+ * <pre>{@code
+ * static final FieldMask<Foo> FOO_BAR = ...;
+ * static final com.google.protobuf.FieldMask FOO_BAR_PROTO = ...;
+ * static Foo projectFooBar(Foo message) { ... }
+ * }</pre>
+ *
+ * <p>Each {@code FieldMask} is embedded in its {@linkplain FieldMask#writeTo(ByteBuffer) binary
+ * encoding}, which refers to fields by number and is decoded without looking up any names.
+ */
+final class FieldMaskConstantsWriter {
+  static final String SUFFIX = "_RequiredFields";
+
+  /** An annotated parameter, and the {@code FieldMask} of its {@code @RequiresFields}. */
+  static final class RequiredFields {
+    final VariableElement parameter;
+    final TypeElement messageType;
+    final FieldMask<?> fieldMask;
+
+    RequiredFields(VariableElement parameter, TypeElement messageType, FieldMask<?> fieldMask) {
+      this.parameter = parameter;
+      this.messageType = messageType;
+      this.fieldMask = fieldMask;
+    }
+  }
+
+  private final Filer filer;
+
+  FieldMaskConstantsWriter(Filer filer) {
+    this.filer = filer;
+  }
+
+  /** Builds the {@code FieldMask} for {@code paths}, which must all be valid. */
+  static <M extends Message> FieldMask<M> createFieldMask(
+      ProtoDescriptor<M> descriptor, List<String> paths) {
+    return FieldMask.fromProto(
+        descriptor, com.google.protobuf.FieldMask.newBuilder().addAllPaths(paths).build());
+  }
+
+  void write(TypeElement type, ListMultimap<ExecutableElement, RequiredFields> parameters)
+      throws IOException {
+    String packageName = MoreElements.getPackage(type).getQualifiedName().toString();
+    String className = getClassName(type);
+    String qualifiedName = packageName.isEmpty() ? className : packageName + "." + className;
+
+    try (PrintWriter out =
+        new PrintWriter(filer.createSourceFile(qualifiedName, type).openWriter())) {
+      if (!packageName.isEmpty()) {
+        out.printf("package %s;%n%n", packageName);
+      }
+
+      out.printf("/** The {@code @RequiresFields} of {@link %s}'s parameters. */%n", type);
+      out.printf("final class %s {%n", className);
+      out.printf("  private %s() {}%n", className);
+
+      Set<String> methodClassNames = new HashSet<>();
+      for (Map.Entry<ExecutableElement, List<RequiredFields>> method :
+          Multimaps.asMap(parameters).entrySet()) {
+        String methodClassName = uniqueName(methodClassNames, getMethodClassName(method.getKey()));
+        writeMethod(out, methodClassName, method.getValue());
+      }
+
+      out.printf("%n");
+      out.printf(
+          "  private static <M extends com.google.protobuf.Message> %s<M> decode(%n",
+          FieldMask.class.getName());
+      out.printf("      Class<M> type, byte... encoded) {%n");
+      out.printf("    try {%n");
+      out.printf(
+          "      return %s.readFrom(type, java.nio.ByteBuffer.wrap(encoded));%n",
+          FieldMask.class.getName());
+      out.printf("    } catch (com.google.protobuf.InvalidProtocolBufferException e) {%n");
+      out.printf("      throw new AssertionError(\"Invalid generated FieldMask\", e);%n");
+      out.printf("    }%n");
+      out.printf("  }%n");
+      out.printf("}%n");
+    }
+  }
+
+  private static void writeMethod(
+      PrintWriter out, String methodClassName, List<RequiredFields> parameters) {
+    out.printf("%n");
+    out.printf("  static final class %s {%n", methodClassName);
+    out.printf("    private %s() {}%n", methodClassName);
+
+    Set<String> memberNames = new HashSet<>();
+    for (RequiredFields requiredFields : parameters) {
+      String parameterName = requiredFields.parameter.getSimpleName().toString();
+      String constantName = CaseFormat.LOWER_CAMEL.to(CaseFormat.UPPER_UNDERSCORE, parameterName);
+      List<String> names =
+          uniqueNames(
+              memberNames,
+              constantName,
+              constantName + "_PROTO",
+              "project" + CaseFormat.LOWER_CAMEL.to(CaseFormat.UPPER_CAMEL, parameterName));
+      String messageType = requiredFields.messageType.getQualifiedName().toString();
+      FieldMask<?> fieldMask = requiredFields.fieldMask;
+      List<String> paths = fieldMask.toProto().get().getPathsList();
+
+      out.printf("%n");
+      out.printf("    /** {@code %s}: {@code %s}. */%n", parameterName, String.join(", ", paths));
+      out.printf(
+          "    static final %s<%s> %s =%n        decode(%s.class%s);%n",
+          FieldMask.class.getName(),
+          messageType,
+          names.get(0),
+          messageType,
+          toByteArguments(fieldMask));
+
+      out.printf(
+          "    static final com.google.protobuf.FieldMask %s =%n"
+              + "        com.google.protobuf.FieldMask.newBuilder()%n",
+          names.get(1));
+      for (String path : paths) {
+        out.printf("            .addPaths(\"%s\")%n", path);
+      }
+      out.printf("            .build();%n");
+
+      out.printf("%n");
+      out.printf("    static %s %s(%s message) {%n", messageType, names.get(2), messageType);
+      out.printf("      return %s.project(message);%n", names.get(0));
+      out.printf("    }%n");
+    }
+
+    out.printf("  }%n");
+  }
+
+  private static String toByteArguments(FieldMask<?> fieldMask) {
+    ByteBuffer encoded = ByteBuffer.allocate(fieldMask.getSerializedSize());
+    fieldMask.writeTo(encoded);
+
+    StringBuilder arguments = new StringBuilder();
+    for (byte b : encoded.array()) {
+      arguments.append(", (byte) ").append(b);
+    }
+    return arguments.toString();
+  }
+
+  static String getClassName(TypeElement type) {
+    return getClassName(type, SUFFIX);
+  }
+
+  /** The name of a class generated for {@code type}, e.g. {@code Outer_Handler<suffix>}. */
+  static String getClassName(TypeElement type, String suffix) {
+    StringBuilder name = new StringBuilder(type.getSimpleName());
+    for (TypeElement outer = enclosingType(type); outer != null; outer = enclosingType(outer)) {
+      name.insert(0, outer.getSimpleName() + "_");
+    }
+    return name.append(suffix).toString();
+  }
+
+  private static TypeElement enclosingType(TypeElement type) {
+    return MoreElements.isType(type.getEnclosingElement())
+        ? MoreElements.asType(type.getEnclosingElement())
+        : null;
+  }
+
+  private static String getMethodClassName(ExecutableElement method) {
+    String name = method.getSimpleName().toString();
+    switch (name) {
+      case "<init>":
+        return "Constructor";
+      case "<clinit>":
+        return "StaticInitializer";
+      default:
+        return CaseFormat.LOWER_CAMEL.to(CaseFormat.UPPER_CAMEL, name);
+    }
+  }
+
+  /** Numbers overloaded methods, e.g. {@code Process}, {@code Process2}. */
+  private static String uniqueName(Set<String> usedNames, String name) {
+    return uniqueNames(usedNames, name).get(0);
+  }
+
+  /**
+   * Numbers a group of names with the same number if any of them is already used, e.g. {@code
+   * X_PROTO2}, {@code X_PROTO_PROTO2} and {@code projectXProto2} for a parameter {@code xProto}
+   * after a parameter {@code x}.
+   */
+  private static List<String> uniqueNames(Set<String> usedNames, String... names) {
+    List<String> uniqueNames = Arrays.asList(names);
+    for (int i = 2; !Collections.disjoint(usedNames, uniqueNames); i++) {
+      String suffix = Integer.toString(i);
+      uniqueNames = Arrays.stream(names).map(name -> name + suffix).collect(toList());
+    }
+    usedNames.addAll(uniqueNames);
+    return uniqueNames;
+  }
+}
@@ -0,0 +1,559 @@
+package name.falgout.jeffrey.proto.fieldmask.usage.processor;
+
+import static java.util.stream.Collectors.joining;
+
+import com.google.auto.value.AutoValue;
+import com.google.common.collect.ImmutableSet;
+import com.google.common.collect.LinkedHashMultimap;
+import com.google.common.collect.SetMultimap;
+import com.google.errorprone.BugPattern;
+import com.google.errorprone.BugPattern.SeverityLevel;
+import com.google.errorprone.VisitorState;
+import com.google.errorprone.bugpatterns.BugChecker;
+import com.google.errorprone.bugpatterns.BugChecker.ClassTreeMatcher;
+import com.google.errorprone.fixes.SuggestedFix;
+import com.google.errorprone.matchers.Description;
+import com.google.errorprone.util.ASTHelpers;
+import com.google.protobuf.Descriptors.Descriptor;
+import com.google.protobuf.Descriptors.FieldDescriptor;
+import com.google.protobuf.Descriptors.FieldDescriptor.JavaType;
+import com.google.protobuf.Message;
+import com.sun.source.tree.AssignmentTree;
+import com.sun.source.tree.ClassTree;
+import com.sun.source.tree.ConditionalExpressionTree;
+import com.sun.source.tree.ExpressionStatementTree;
+import com.sun.source.tree.ExpressionTree;
+import com.sun.source.tree.IdentifierTree;
+import com.sun.source.tree.MemberSelectTree;
+import com.sun.source.tree.MethodInvocationTree;
+import com.sun.source.tree.MethodTree;
+import com.sun.source.tree.ParenthesizedTree;
+import com.sun.source.tree.Tree;
+import com.sun.source.tree.TypeCastTree;
+import com.sun.source.tree.VariableTree;
+import com.sun.source.util.TreeScanner;
+import com.sun.tools.javac.code.Symbol.ClassSymbol;
+import com.sun.tools.javac.code.Symbol.MethodSymbol;
+import com.sun.tools.javac.code.Symbol.VarSymbol;
+import com.sun.tools.javac.code.Type;
+import java.io.IOException;
+import java.io.Writer;
+import java.util.ArrayDeque;
+import java.util.Collection;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Optional;
+import java.util.Set;
+import javax.lang.model.element.Name;
+import javax.lang.model.element.NestingKind;
+import javax.tools.FileObject;
+import javax.tools.JavaFileManager;
+import javax.tools.StandardLocation;
+import name.falgout.jeffrey.proto.ProtoDescriptor;
+import name.falgout.jeffrey.proto.fieldmask.FieldMask;
+import name.falgout.jeffrey.proto.fieldmask.FieldMaskVisitor;
+import name.falgout.jeffrey.proto.fieldmask.FieldPath;
+import name.falgout.jeffrey.proto.fieldmask.usage.RequiresFields;
+
+/**
+ * Infers which fields of each protobuf parameter a method reads, without requiring a {@code
+ * RequiresFields} annotation.
+ *
+ * <p>This follows the same accesses as {@link FieldUsageValidator}: getters called on a parameter,
+ * on local variables assigned from it, and on the sub-messages returned by its getters. Passing a
+ * message to a parameter annotated with {@code @RequiresFields} reads the fields that annotation
+ * requires. Any other use of a message, such as returning it or passing it to an unannotated
+ * method, reads all of it.
+ *
+ * <p>For each class with protobuf parameters, the inferred fields are written to the resource
+ * {@code Outer_Handler_InferredFields.properties} next to its class files. Each key is a method's
+ * name and erased parameter types, followed by a parameter name, e.g. {@code
+ * process(com.example.Root,int).root}, and each value is a comma-separated list of field paths.
+ * Like {@link FieldPath}s, the paths continue past repeated message fields, e.g. {@code
+ * items.price} for {@code root.getItems(0).getPrice()}, so they have to be parsed with {@link
+ * FieldMask#fromProto(Class, com.google.protobuf.FieldMask)} instead of {@link
+ * com.google.protobuf.util.FieldMaskUtil#fromString(Class, String)}, which rejects them.
+ * Parameters which don't have an annotation, and only have some of their fields read, also get a
+ * suggestion to add the inferred {@code @RequiresFields}.
+ */
+@BugPattern(
+    name = "ProtoFieldUsageInference",
+    summary = "Infers the fields which are read from protobuf parameters.",
+    severity = SeverityLevel.SUGGESTION
+)
+public final class FieldUsageInference extends BugChecker implements ClassTreeMatcher {
+  static final String SUFFIX = "_InferredFields";
+
+  @Override
+  public Description matchClass(ClassTree tree, VisitorState state) {
+    Type messageType = state.getTypeFromString(Message.class.getName());
+    Map<String, String> inferredFields = new LinkedHashMap<>();
+
+    for (Tree member : tree.getMembers()) {
+      if (!(member instanceof MethodTree) || ((MethodTree) member).getBody() == null) {
+        continue;
+      }
+
+      MethodTree method = (MethodTree) member;
+      Map<VariableTree, FieldMask<?>> fieldMasks = inferFieldMasks(method, messageType, state);
+      String methodKey = getMethodKey(ASTHelpers.getSymbol(method), state);
+
+      fieldMasks.forEach((parameter, fieldMask) -> {
+        String paths = fieldMask.toProto().map(proto -> String.join(",", proto.getPathsList()))
+            .orElseGet(() -> allTopLevelFields(fieldMask));
+        inferredFields.put(methodKey + "." + parameter.getName(), paths);
+
+        if (fieldMask.toProto().isPresent()
+            && !paths.isEmpty()
+            && ASTHelpers.getSymbol(parameter).getAnnotation(RequiresFields.class) == null) {
+          state.reportMatch(suggestRequiresFields(parameter, fieldMask));
+        }
+      });
+    }
+
+    ClassSymbol type = ASTHelpers.getSymbol(tree);
+    if (!inferredFields.isEmpty()
+        && (type.getNestingKind() == NestingKind.TOP_LEVEL
+            || type.getNestingKind() == NestingKind.MEMBER)) {
+      try {
+        writeInferredFields(type, inferredFields, state);
+      } catch (IOException e) {
+        return buildDescription(tree)
+            .setMessage("Could not write the inferred fields: " + e.getMessage())
+            .build();
+      }
+    }
+
+    return Description.NO_MATCH;
+  }
+
+  /** Infers the fields read from each protobuf parameter of {@code method}. */
+  private static Map<VariableTree, FieldMask<?>> inferFieldMasks(
+      MethodTree method, Type messageType, VisitorState state) {
+    Map<VariableTree, VarSymbol> parameters = new LinkedHashMap<>();
+    UsageScanner scanner = new UsageScanner(state);
+    for (VariableTree parameter : method.getParameters()) {
+      VarSymbol symbol = ASTHelpers.getSymbol(parameter);
+      getDescriptor(symbol.asType(), messageType, state).ifPresent(descriptor -> {
+        parameters.put(parameter, symbol);
+        scanner.addParameter(symbol, descriptor);
+      });
+    }
+
+    Map<VariableTree, FieldMask<?>> fieldMasks = new LinkedHashMap<>();
+    if (parameters.isEmpty()) {
+      return fieldMasks;
+    }
+
+    scanner.scanUntilStable(method.getBody());
+    parameters.forEach((parameter, symbol) ->
+        fieldMasks.put(
+            parameter,
+            buildFieldMask(scanner.descriptors.get(symbol), scanner.reads.get(symbol))));
+    return fieldMasks;
+  }
+
+  /** The descriptor of a generated message type, or empty for any other type. */
+  private static Optional<ProtoDescriptor<?>> getDescriptor(
+      Type type, Type messageType, VisitorState state) {
+    if (!ASTHelpers.isSubtype(type, messageType, state)) {
+      return Optional.empty();
+    }
+
+    try {
+      return Optional.of(FieldUsageValidator.getDescriptor(type, state));
+    } catch (RuntimeException e) {
+      // E.g. Message itself, or a DynamicMessage, which don't have a single descriptor.
+      return Optional.empty();
+    }
+  }
+
+  private static <M extends Message> FieldMask<M> buildFieldMask(
+      ProtoDescriptor<M> descriptor, Collection<FieldPath<?>> paths) {
+    FieldMask.Builder<M> builder = FieldMask.newBuilder(descriptor);
+    paths.forEach(path -> builder.addFieldPath(path.castTo(descriptor)));
+    return builder.build();
+  }
+
+  /** The paths of {@link FieldMask#allowAll(Class)}, which a proto {@code FieldMask} lacks. */
+  private static String allTopLevelFields(FieldMask<?> fieldMask) {
+    return fieldMask.getDescriptorForType()
+        .getDescriptorForType()
+        .getFields()
+        .stream()
+        .map(FieldDescriptor::getName)
+        .collect(joining(","));
+  }
+
+  private Description suggestRequiresFields(VariableTree parameter, FieldMask<?> fieldMask) {
+    List<String> paths = fieldMask.toProto().get().getPathsList();
+    String value = paths.stream().map(path -> '"' + path + '"').collect(joining(", "));
+    if (paths.size() > 1) {
+      value = "{" + value + "}";
+    }
+
+    String annotation = "@RequiresFields(" + value + ")";
+    return buildDescription(parameter)
+        .setMessage("Only reads " + String.join(", ", paths) + "; consider " + annotation)
+        .addFix(
+            SuggestedFix.builder()
+                .addImport(RequiresFields.class.getName())
+                .prefixWith(parameter, annotation + " ")
+                .build())
+        .build();
+  }
+
+  /** E.g. {@code process(com.example.Root,int)}. */
+  private static String getMethodKey(MethodSymbol method, VisitorState state) {
+    return method.getSimpleName()
+        + method.getParameters()
+            .stream()
+            .map(parameter -> state.getTypes().erasure(parameter.asType()).toString())
+            .collect(joining(",", "(", ")"));
+  }
+
+  private static void writeInferredFields(
+      ClassSymbol type, Map<String, String> inferredFields, VisitorState state)
+      throws IOException {
+    JavaFileManager fileManager = state.context.get(JavaFileManager.class);
+    FileObject resource =
+        fileManager.getFileForOutput(
+            StandardLocation.CLASS_OUTPUT,
+            type.packge().getQualifiedName().toString(),
+            FieldMaskConstantsWriter.getClassName(type, SUFFIX) + ".properties",
+            null);
+
+    try (Writer out = resource.openWriter()) {
+      out.write("# The fields read from the protobuf parameters of " + type + "\n");
+      for (Map.Entry<String, String> entry : inferredFields.entrySet()) {
+        out.write(entry.getKey() + "=" + entry.getValue() + "\n");
+      }
+    }
+  }
+
+  /** A parameter, or one of its sub-messages, which a variable or expression may refer to. */
+  @AutoValue
+  abstract static class Ref {
+    static Ref create(VarSymbol parameter, FieldPath<?> path) {
+      return new AutoValue_FieldUsageInference_Ref(parameter, path);
+    }
+
+    abstract VarSymbol getParameter();
+
+    /** The path from the parameter to this message, which is empty for the parameter itself. */
+    abstract FieldPath<?> getPath();
+
+    Descriptor getMessageType() {
+      List<FieldDescriptor> path = getPath().getPath();
+      return path.isEmpty()
+          ? getPath().getDescriptorForType().getDescriptorForType()
+          : path.get(path.size() - 1).getMessageType();
+    }
+
+    Ref append(FieldDescriptor field) {
+      return create(getParameter(), append(getPath(), field));
+    }
+
+    private static <M extends Message> FieldPath<M> append(
+        FieldPath<M> path, FieldDescriptor field) {
+      return FieldPath.append(path, field);
+    }
+  }
+
+  /**
+   * Records the fields read from each parameter.
+   *
+   * <p>Variables are tracked regardless of the order they're assigned in, so a variable which is
+   * reassigned refers to every message it's ever assigned. That only ever includes more fields than
+   * are actually read, never fewer. A read can come before the assignment it reads, e.g. in a loop,
+   * so the body is scanned again until no variable refers to any new messages.
+   *
+   * <p>A variable assigned a sub-message of a message it already refers to, e.g. {@code node =
+   * node.getNext()}, could refer to ever deeper sub-messages, so the enclosing message is read
+   * entirely instead.
+   */
+  private static final class UsageScanner extends TreeScanner<Void, Void> {
+    final Map<VarSymbol, ProtoDescriptor<?>> descriptors = new HashMap<>();
+    final SetMultimap<VarSymbol, FieldPath<?>> reads = LinkedHashMultimap.create();
+
+    private final Map<Name, Set<Ref>> variables = new HashMap<>();
+    private final Map<Descriptor, Accessors> accessors = new HashMap<>();
+    /** Whether a variable refers to any new messages since the last scan started. */
+    private boolean assigned;
+
+    private final VisitorState state;
+
+    UsageScanner(VisitorState state) {
+      this.state = state;
+    }
+
+    void scanUntilStable(Tree body) {
+      do {
+        assigned = false;
+        scan(body, null);
+      } while (assigned);
+    }
+
+    void addParameter(VarSymbol parameter, ProtoDescriptor<?> descriptor) {
+      descriptors.put(parameter, descriptor);
+      assign(
+          parameter.getSimpleName(),
+          ImmutableSet.of(Ref.create(parameter, FieldPath.create(descriptor))));
+    }
+
+    private void assign(Name variable, Set<Ref> refs) {
+      if (refs.isEmpty()) {
+        return;
+      }
+
+      Set<Ref> current = variables.computeIfAbsent(variable, ignored -> new HashSet<>());
+      for (Ref ref : refs) {
+        Optional<Ref> enclosing = current.stream().filter(other -> encloses(other, ref)).findAny();
+        if (enclosing.isPresent()) {
+          read(enclosing.get());
+        } else if (current.add(ref)) {
+          assigned = true;
+        }
+      }
+    }
+
+    /** Whether {@code ref} is a sub-message of {@code enclosing}. */
+    private static boolean encloses(Ref enclosing, Ref ref) {
+      List<FieldDescriptor> enclosingPath = enclosing.getPath().getPath();
+      List<FieldDescriptor> path = ref.getPath().getPath();
+      return enclosing.getParameter().equals(ref.getParameter())
+          && enclosingPath.size() < path.size()
+          && enclosingPath.equals(path.subList(0, enclosingPath.size()));
+    }
+
+    private void read(Ref ref) {
+      reads.put(ref.getParameter(), ref.getPath());
+    }
+
+    /** Reads the fields of {@code ref} which are in {@code fieldMask}. */
+    private void read(Ref ref, FieldMask<?> fieldMask) {
+      if (!fieldMask.getDescriptorForType()
+          .getDescriptorForType()
+          .equals(ref.getMessageType())) {
+        read(ref);
+        return;
+      }
+
+      Deque<Ref> enclosing = new ArrayDeque<>();
+      enclosing.push(ref);
+      fieldMask.accept(
+          new FieldMaskVisitor() {
+            @Override
+            public void visitAllFields() {
+              read(ref);
+            }
+
+            @Override
+            public void visitLeaf(FieldDescriptor field) {
+              read(enclosing.peek().append(field));
+            }
+
+            @Override
+            public void enterField(FieldDescriptor field) {
+              enclosing.push(enclosing.peek().append(field));
+            }
+
+            @Override
+            public void exitField(FieldDescriptor field) {
+              enclosing.pop();
+            }
+          });
+    }
+
+    /** Expressions which aren't handled any other way read all of the messages they refer to. */
+    @Override
+    public Void scan(Tree tree, Void unused) {
+      if (tree instanceof ExpressionTree) {
+        evaluate((ExpressionTree) tree).forEach(this::read);
+        return null;
+      }
+      return super.scan(tree, unused);
+    }
+
+    /**
+     * Scans {@code expression}, and returns the messages it may refer to, without reading them.
+     */
+    private Set<Ref> evaluate(ExpressionTree expression) {
+      switch (expression.getKind()) {
+        case IDENTIFIER:
+          return variables.getOrDefault(
+              ((IdentifierTree) expression).getName(), ImmutableSet.of());
+        case PARENTHESIZED:
+          return evaluate(((ParenthesizedTree) expression).getExpression());
+        case TYPE_CAST:
+          return evaluate(((TypeCastTree) expression).getExpression());
+        case CONDITIONAL_EXPRESSION:
+          ConditionalExpressionTree conditional = (ConditionalExpressionTree) expression;
+          scan(conditional.getCondition(), null);
+          Set<Ref> refs = new HashSet<>(evaluate(conditional.getTrueExpression()));
+          refs.addAll(evaluate(conditional.getFalseExpression()));
+          return refs;
+        case ASSIGNMENT:
+          return evaluateAssignment((AssignmentTree) expression);
+        case METHOD_INVOCATION:
+          return evaluateMethodInvocation((MethodInvocationTree) expression);
+        default:
+          super.scan(expression, null);
+          return ImmutableSet.of();
+      }
+    }
+
+    private Set<Ref> evaluateAssignment(AssignmentTree assignment) {
+      Set<Ref> refs = evaluate(assignment.getExpression());
+      if (assignment.getVariable() instanceof IdentifierTree) {
+        assign(((IdentifierTree) assignment.getVariable()).getName(), refs);
+      } else {
+        // E.g. a field, which isn't tracked.
+        refs.forEach(this::read);
+        scan(assignment.getVariable(), null);
+      }
+      return refs;
+    }
+
+    private Set<Ref> evaluateMethodInvocation(MethodInvocationTree invocation) {
+      MethodSymbol method = ASTHelpers.getSymbol(invocation);
+      ExpressionTree methodSelect = invocation.getMethodSelect();
+
+      Set<Ref> receivers = ImmutableSet.of();
+      if (methodSelect instanceof MemberSelectTree) {
+        receivers = evaluate(((MemberSelectTree) methodSelect).getExpression());
+      }
+
+      Set<Ref> subMessages = new HashSet<>();
+      String methodName = method.getSimpleName().toString();
+      for (Ref receiver : receivers) {
+        Accessors receiverAccessors =
+            accessors.computeIfAbsent(receiver.getMessageType(), Accessors::new);
+
+        FieldDescriptor subMessage = receiverAccessors.subMessageGetters.get(methodName);
+        FieldDescriptor field = receiverAccessors.fieldGetters.get(methodName);
+        if (subMessage != null) {
+          subMessages.add(receiver.append(subMessage));
+        } else if (field != null) {
+          read(receiver.append(field));
+        } else {
+          // E.g. toByteString(), which reads everything.
+          read(receiver);
+        }
+      }
+
+      List<VarSymbol> parameters = method.getParameters();
+      List<? extends ExpressionTree> arguments = invocation.getArguments();
+      for (int i = 0; i < arguments.size(); i++) {
+        Set<Ref> refs = evaluate(arguments.get(i));
+        if (refs.isEmpty()) {
+          continue;
+        }
+
+        boolean isVarArgs = method.isVarArgs() && i >= parameters.size() - 1;
+        Optional<FieldMask<?>> requiredFields =
+            isVarArgs
+                ? Optional.empty()
+                : FieldUsageValidator.getRequiredFields(parameters.get(i), state);
+        if (requiredFields.isPresent()) {
+          refs.forEach(ref -> read(ref, requiredFields.get()));
+        } else {
+          refs.forEach(this::read);
+        }
+      }
+
+      return subMessages;
+    }
+
+    @Override
+    public Void visitVariable(VariableTree node, Void unused) {
+      if (node.getInitializer() != null) {
+        assign(node.getName(), evaluate(node.getInitializer()));
+      }
+      return null;
+    }
+
+    @Override
+    public Void visitExpressionStatement(ExpressionStatementTree node, Void unused) {
+      if (node.getExpression() instanceof AssignmentTree) {
+        // The value of the assignment itself is discarded.
+        evaluateAssignment((AssignmentTree) node.getExpression());
+        return null;
+      }
+      return super.visitExpressionStatement(node, unused);
+    }
+  }
+
+  /** The generated accessors of a message type, by method name. */
+  private static final class Accessors {
+    /**
+     * Accessors which return a sub-message, which may have its own fields read. For repeated fields
+     * these return a single element, e.g. {@code getItems(int)}, so the elements' fields are read.
+     */
+    final Map<String, FieldDescriptor> subMessageGetters = new HashMap<>();
+    /** Every other accessor, which reads the whole field. */
+    final Map<String, FieldDescriptor> fieldGetters = new HashMap<>();
+
+    Accessors(Descriptor type) {
+      // Plain getters come first, so they win if another field's accessor has the same name.
+      for (FieldDescriptor field : type.getFields()) {
+        String name = camelCase(field.getName());
+        if (field.getJavaType() == JavaType.MESSAGE && !field.isMapField()) {
+          subMessageGetters.putIfAbsent("get" + name, field);
+          subMessageGetters.putIfAbsent("get" + name + "OrBuilder", field);
+        } else {
+          fieldGetters.putIfAbsent("get" + name, field);
+        }
+        fieldGetters.putIfAbsent("has" + name, field);
+      }
+
+      for (FieldDescriptor field : type.getFields()) {
+        String name = camelCase(field.getName());
+        for (String accessor :
+            new String[] {
+              "get%sList",
+              "get%sOrBuilderList",
+              "get%sCount",
+              "get%sValue",
+              "get%sValueList",
+              "get%sBytes",
+              "get%sMap",
+              "get%sOrDefault",
+              "get%sOrThrow",
+              "contains%s",
+            }) {
+          String accessorName = String.format(accessor, name);
+          if (!subMessageGetters.containsKey(accessorName)) {
+            fieldGetters.putIfAbsent(accessorName, field);
+          }
+        }
+      }
+    }
+
+    /** Converts a field name to the name used by its generated accessors, e.g. {@code FooBar}. */
+    private static String camelCase(String fieldName) {
+      StringBuilder name = new StringBuilder(fieldName.length());
+      boolean capitalizeNext = true;
+      for (int i = 0; i < fieldName.length(); i++) {
+        char c = fieldName.charAt(i);
+        if ('a' <= c && c <= 'z') {
+          name.append(capitalizeNext ? Character.toUpperCase(c) : c);
+          capitalizeNext = false;
+        } else if ('A' <= c && c <= 'Z') {
+          name.append(c);
+          capitalizeNext = false;
+        } else if ('0' <= c && c <= '9') {
+          name.append(c);
+          capitalizeNext = true;
+        } else {
+          capitalizeNext = true;
+        }
+      }
+      return name.toString();
+    }
+  }
+}
@@ -3,7 +3,6 @@ package name.falgout.jeffrey.proto.fieldmask.usage.processor;
 import static com.google.common.collect.ImmutableList.toImmutableList;
 import static com.google.common.collect.MoreCollectors.toOptional;
 import static java.util.stream.Collectors.toMap;
-import static name.falgout.jeffrey.proto.fieldmask.FieldMask.toFieldMask;
 
 import com.google.auto.value.AutoValue;
 import com.google.common.base.CaseFormat;
@@ -33,7 +32,6 @@ import com.sun.tools.javac.code.Symbol;
 import com.sun.tools.javac.code.Symbol.MethodSymbol;
 import com.sun.tools.javac.code.Symbol.VarSymbol;
 import com.sun.tools.javac.code.Type;
-import com.sun.tools.javac.processing.JavacProcessingEnvironment;
 import java.util.AbstractMap.SimpleImmutableEntry;
 import java.util.Collection;
 import java.util.Map;
@@ -41,7 +39,6 @@ import java.util.Map.Entry;
 import java.util.Objects;
 import java.util.Optional;
 import java.util.stream.Stream;
-import javax.annotation.processing.ProcessingEnvironment;
 import javax.lang.model.element.Element;
 import javax.lang.model.element.Name;
 import name.falgout.jeffrey.proto.ProtoDescriptor;
@@ -49,7 +46,6 @@ import name.falgout.jeffrey.proto.fieldmask.FieldMask;
 import name.falgout.jeffrey.proto.fieldmask.FieldPath;
 import name.falgout.jeffrey.proto.fieldmask.usage.RequiresFields;
 import name.falgout.jeffrey.proto.fieldmask.usage.processor.FieldUsageValidator.FieldMaskWithSource.Source;
-import name.falgout.jeffrey.proto.fieldmask.usage.processor.RequiresFieldsValidator.RequiresFieldsProcessingStep;
 
 @BugPattern(
     name = "ProtoFieldUsageValidator",
@@ -63,7 +59,7 @@ public final class FieldUsageValidator extends BugChecker implements MethodTreeM
         tree.getParameters()
             .stream()
             .map(var ->
-                getRequiredFields(ASTHelpers.getSymbol(var))
+                getRequiredFields(ASTHelpers.getSymbol(var), state)
                     .map(FieldMaskWithSource::createFromAnnotation)
                     .map(fieldMask -> new SimpleImmutableEntry<>(var.getName(), fieldMask)))
             .flatMap(Streams::stream)
@@ -77,22 +73,17 @@ public final class FieldUsageValidator extends BugChecker implements MethodTreeM
     return Description.NO_MATCH;
   }
 
-  private static Optional<FieldMask<?>> getRequiredFields(Symbol sym) {
-    RequiresFields requiresFields = sym.getAnnotation(RequiresFields.class);
-    if (requiresFields == null) {
-      return Optional.empty();
+  static Optional<FieldMask<?>> getRequiredFields(Symbol sym, VisitorState state) {
+    try {
+      return RequiresFieldsCache.instance(state.context).getRequiredFields(sym);
+    } catch (ClassNotFoundException e) {
+      throw new IllegalStateException(e);
     }
-
-    ProtoDescriptor<?> descriptor = getDescriptor(sym.asType());
-    return Optional.of(Stream.of(requiresFields.value()).collect(toFieldMask(descriptor)));
   }
 
-  private static ProtoDescriptor<?> getDescriptor(Type type) {
-    Name binaryName = type.asElement().flatName();
+  static ProtoDescriptor<?> getDescriptor(Type type, VisitorState state) {
     try {
-      Class<? extends Message> clazz =
-          Class.forName(binaryName.toString()).asSubclass(Message.class);
-      return ProtoDescriptor.create(clazz);
+      return RequiresFieldsCache.instance(state.context).getDescriptor(type);
     } catch (ClassNotFoundException e) {
       throw new IllegalStateException(e);
     }
@@ -126,7 +117,7 @@ public final class FieldUsageValidator extends BugChecker implements MethodTreeM
         VariableTree node, Map<Name, FieldMaskWithSource> fieldMasks) {
       VarSymbol variable = ASTHelpers.getSymbol(node);
       if (hasValidRequiresFields(variable)) {
-        getRequiredFields(variable)
+        getRequiredFields(variable, state)
             .map(FieldMaskWithSource::createFromAnnotation)
             .ifPresent(fieldMask -> fieldMasks.put(node.getName(), fieldMask));
       }
@@ -142,17 +133,15 @@ public final class FieldUsageValidator extends BugChecker implements MethodTreeM
      * Validates that the given {@code element} has a valid {@code @RequiresFields} annotation.
      *
      * Local variable annotations aren't checked by Annotation Processors, so we have to do it here,
-     * just in case.
+     * just in case. Each annotation is only validated once per compilation.
      */
     private boolean hasValidRequiresFields(Element element) {
       if (element.getAnnotation(RequiresFields.class) == null) {
         return false;
       }
 
-      ProcessingEnvironment processingEnv = JavacProcessingEnvironment.instance(state.context);
-      RequiresFieldsProcessingStep step = new RequiresFieldsProcessingStep(processingEnv);
       try {
-        return step.validateRequiresFields(element);
+        return RequiresFieldsCache.instance(state.context).isValid(element);
       } catch (ClassNotFoundException e) {
         throw new IllegalStateException(e);
       }
@@ -241,7 +230,7 @@ public final class FieldUsageValidator extends BugChecker implements MethodTreeM
         VarSymbol parameter = method.getParameters().get(i);
         ExpressionTree argument = node.getArguments().get(i);
 
-        Optional<FieldMask<?>> expectedFieldMask = getRequiredFields(parameter);
+        Optional<FieldMask<?>> expectedFieldMask = getRequiredFields(parameter, state);
         if (!expectedFieldMask.isPresent()) {
           continue;
         }
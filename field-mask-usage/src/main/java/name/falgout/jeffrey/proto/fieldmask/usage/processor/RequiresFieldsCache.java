@@ -0,0 +1,141 @@
+package name.falgout.jeffrey.proto.fieldmask.usage.processor;
+
+import com.google.auto.common.MoreElements;
+import com.google.auto.common.MoreTypes;
+import com.google.protobuf.Message;
+import com.sun.tools.javac.code.Symbol.ClassSymbol;
+import com.sun.tools.javac.code.Symbol.VarSymbol;
+import com.sun.tools.javac.processing.JavacProcessingEnvironment;
+import com.sun.tools.javac.util.Context;
+import com.sun.tools.javac.util.Position;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Optional;
+import javax.annotation.Nullable;
+import javax.annotation.processing.ProcessingEnvironment;
+import javax.lang.model.element.Element;
+import javax.lang.model.element.TypeElement;
+import javax.lang.model.type.TypeMirror;
+import name.falgout.jeffrey.proto.ProtoDescriptor;
+import name.falgout.jeffrey.proto.fieldmask.FieldMask;
+import name.falgout.jeffrey.proto.fieldmask.usage.RequiresFields;
+import name.falgout.jeffrey.proto.fieldmask.usage.processor.RequiresFieldsValidator.RequiresFieldsProcessingStep;
+
+/**
+ * The message descriptors, validated annotations and parsed {@code FieldMask}s of the {@code
+ * RequiresFields} annotations in a single compilation.
+ *
+ * <p>{@link RequiresFieldsValidator} and {@link FieldUsageValidator} look up the same annotations
+ * for every call and assignment they check. They share one cache per javac {@link Context}, so
+ * each message class is only loaded once, and each annotation is only validated and parsed once.
+ * A compilation only ever runs on one thread, so the cache isn't synchronized.
+ *
+ * <p>javac enters the members of a class again in every processing round, so the symbols Error
+ * Prone sees for a parameter aren't the ones the processor validated. Variables are keyed by their
+ * position in their source file, and message types by their name, which are the same in every
+ * round.
+ */
+final class RequiresFieldsCache {
+  private static final Context.Key<RequiresFieldsCache> KEY = new Context.Key<>();
+
+  static RequiresFieldsCache instance(Context context) {
+    RequiresFieldsCache cache = context.get(KEY);
+    if (cache == null) {
+      cache = new RequiresFieldsCache(JavacProcessingEnvironment.instance(context));
+      context.put(KEY, cache);
+    }
+    return cache;
+  }
+
+  /** The cache for {@code processingEnv}'s compilation, which is only shared when run by javac. */
+  static RequiresFieldsCache instance(ProcessingEnvironment processingEnv) {
+    if (processingEnv instanceof JavacProcessingEnvironment) {
+      return instance(((JavacProcessingEnvironment) processingEnv).getContext());
+    }
+    return new RequiresFieldsCache(processingEnv);
+  }
+
+  private final ProcessingEnvironment processingEnv;
+  @Nullable private RequiresFieldsProcessingStep processingStep;
+
+  private final Map<String, ProtoDescriptor<?>> descriptors = new HashMap<>();
+  private final Map<Object, Boolean> validity = new HashMap<>();
+  private final Map<Object, Optional<FieldMask<?>>> requiredFields = new HashMap<>();
+
+  private RequiresFieldsCache(ProcessingEnvironment processingEnv) {
+    this.processingEnv = processingEnv;
+  }
+
+  /** The processing step which validates annotations, and writes their constants. */
+  RequiresFieldsProcessingStep getProcessingStep() {
+    if (processingStep == null) {
+      processingStep = new RequiresFieldsProcessingStep(processingEnv, this);
+    }
+    return processingStep;
+  }
+
+  /**
+   * Returns whether the {@code @RequiresFields} annotation of {@code element} is valid. It's only
+   * validated, and any errors are only reported, the first time.
+   */
+  boolean isValid(Element element) throws ClassNotFoundException {
+    Object key = key(element);
+    Boolean valid = validity.get(key);
+    if (valid == null) {
+      valid = getProcessingStep().checkRequiresFields(element);
+      validity.put(key, valid);
+    }
+    return valid;
+  }
+
+  /**
+   * The {@code FieldMask} of {@code element}'s {@code @RequiresFields}, if it has a valid one. An
+   * invalid annotation is reported by {@link #isValid(Element)}.
+   */
+  Optional<FieldMask<?>> getRequiredFields(Element element) throws ClassNotFoundException {
+    Object key = key(element);
+    Optional<FieldMask<?>> fieldMask = requiredFields.get(key);
+    if (fieldMask == null) {
+      RequiresFields requiresFields = element.getAnnotation(RequiresFields.class);
+      fieldMask =
+          requiresFields == null || !isValid(element)
+              ? Optional.empty()
+              : Optional.of(
+                  FieldMaskConstantsWriter.createFieldMask(
+                      getDescriptor(element.asType()), Arrays.asList(requiresFields.value())));
+      requiredFields.put(key, fieldMask);
+    }
+    return fieldMask;
+  }
+
+  /** The descriptor of a message {@code type}, whose class is loaded the first time. */
+  ProtoDescriptor<?> getDescriptor(TypeMirror type) throws ClassNotFoundException {
+    TypeElement typeElement = MoreElements.asType(MoreTypes.asDeclared(type).asElement());
+    String binaryName = processingEnv.getElementUtils().getBinaryName(typeElement).toString();
+    ProtoDescriptor<?> descriptor = descriptors.get(binaryName);
+    if (descriptor == null) {
+      Class<? extends Message> clazz = Class.forName(binaryName).asSubclass(Message.class);
+      descriptor = ProtoDescriptor.create(clazz);
+      descriptors.put(binaryName, descriptor);
+    }
+    return descriptor;
+  }
+
+  /**
+   * The key of {@code element}, which is the same in every round. A variable declared in source is
+   * identified by its source file and position; anything else is its own key.
+   */
+  private static Object key(Element element) {
+    if (element instanceof VarSymbol) {
+      VarSymbol variable = (VarSymbol) element;
+      ClassSymbol outermostClass = variable.outermostClass();
+      if (outermostClass != null
+          && outermostClass.sourcefile != null
+          && variable.pos != Position.NOPOS) {
+        return Arrays.asList(outermostClass.sourcefile.toUri(), variable.pos);
+      }
+    }
+    return element;
+  }
+}
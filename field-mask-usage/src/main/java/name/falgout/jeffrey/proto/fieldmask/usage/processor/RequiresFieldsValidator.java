@@ -9,11 +9,17 @@ import com.google.auto.service.AutoService;
 import com.google.common.base.Throwables;
 import com.google.common.collect.ImmutableList;
 import com.google.common.collect.ImmutableSet;
+import com.google.common.collect.ListMultimap;
+import com.google.common.collect.MultimapBuilder;
 import com.google.common.collect.SetMultimap;
 import com.google.protobuf.Message;
-import com.google.protobuf.util.FieldMaskUtil;
+import java.io.IOException;
 import java.lang.annotation.Annotation;
 import java.util.Collection;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Optional;
 import java.util.Set;
 import java.util.stream.Stream;
 import javax.annotation.processing.ProcessingEnvironment;
@@ -22,12 +28,15 @@ import javax.lang.model.SourceVersion;
 import javax.lang.model.element.AnnotationMirror;
 import javax.lang.model.element.AnnotationValue;
 import javax.lang.model.element.Element;
-import javax.lang.model.element.Name;
+import javax.lang.model.element.ElementKind;
+import javax.lang.model.element.ExecutableElement;
 import javax.lang.model.element.TypeElement;
 import javax.lang.model.type.DeclaredType;
 import javax.lang.model.type.TypeMirror;
 import javax.tools.Diagnostic;
 import name.falgout.jeffrey.proto.ProtoDescriptor;
+import name.falgout.jeffrey.proto.fieldmask.FieldPath;
+import name.falgout.jeffrey.proto.fieldmask.usage.processor.FieldMaskConstantsWriter.RequiredFields;
 import name.falgout.jeffrey.proto.fieldmask.usage.RequiresFields;
 
 @AutoService(Processor.class)
@@ -41,16 +50,27 @@ public final class RequiresFieldsValidator extends BasicAnnotationProcessor {
 
   @Override
   protected Iterable<? extends ProcessingStep> initSteps() {
-    return ImmutableList.of(new RequiresFieldsProcessingStep(processingEnv));
+    return ImmutableList.of(RequiresFieldsCache.instance(processingEnv).getProcessingStep());
   }
 
   final static class RequiresFieldsProcessingStep implements ProcessingStep {
     private final ProcessingEnvironment processingEnv;
+    private final RequiresFieldsCache cache;
+    private final FieldMaskConstantsWriter writer;
 
     private final TypeMirror messageType;
 
-    RequiresFieldsProcessingStep(ProcessingEnvironment processingEnv) {
+    /** The valid annotated parameters of each type in the current round, by method. */
+    private final Map<TypeElement, ListMultimap<ExecutableElement, RequiredFields>> requiredFields =
+        new LinkedHashMap<>();
+    /** Types with invalid annotations, which don't get any constants. */
+    private final Set<TypeElement> invalidTypes = new HashSet<>();
+
+    /** Use {@link RequiresFieldsCache#getProcessingStep()} instead. */
+    RequiresFieldsProcessingStep(ProcessingEnvironment processingEnv, RequiresFieldsCache cache) {
       this.processingEnv = processingEnv;
+      this.cache = cache;
+      writer = new FieldMaskConstantsWriter(processingEnv.getFiler());
 
       messageType =
           processingEnv.getElementUtils().getTypeElement(Message.class.getName()).asType();
@@ -64,13 +84,52 @@ public final class RequiresFieldsValidator extends BasicAnnotationProcessor {
     @Override
     public Set<? extends Element> process(
         SetMultimap<Class<? extends Annotation>, Element> elementsByAnnotation) {
-      return Stream.of(
-          process(elementsByAnnotation, RequiresFields.class, element -> {
-            validateRequiresFields(element);
-            return true;
-          }))
-          .flatMap(Collection::stream)
-          .collect(toImmutableSet());
+      ImmutableSet<Element> deferredElements =
+          Stream.of(
+              process(elementsByAnnotation, RequiresFields.class, element -> {
+                if (!validateRequiresFields(element)) {
+                  getEnclosingType(element).ifPresent(invalidTypes::add);
+                }
+                return true;
+              }))
+              .flatMap(Collection::stream)
+              .collect(toImmutableSet());
+
+      writeFieldMaskConstants();
+      return deferredElements;
+    }
+
+    /** Writes the constants for the annotated parameters of each type in the current round. */
+    private void writeFieldMaskConstants() {
+      for (Map.Entry<TypeElement, ListMultimap<ExecutableElement, RequiredFields>> entry :
+          requiredFields.entrySet()) {
+        TypeElement type = entry.getKey();
+        if (invalidTypes.contains(type)) {
+          continue;
+        }
+
+        try {
+          writer.write(type, entry.getValue());
+        } catch (IOException e) {
+          processingEnv.getMessager().printMessage(
+              Diagnostic.Kind.ERROR,
+              "Could not write the @RequiresFields constants: " + e.getMessage(),
+              type);
+        }
+      }
+
+      requiredFields.clear();
+      invalidTypes.clear();
+    }
+
+    /** The type declaring the method of an annotated parameter. */
+    private static Optional<TypeElement> getEnclosingType(Element element) {
+      if (element.getKind() != ElementKind.PARAMETER) {
+        return Optional.empty();
+      }
+
+      Element type = element.getEnclosingElement().getEnclosingElement();
+      return MoreElements.isType(type) ? Optional.of(MoreElements.asType(type)) : Optional.empty();
     }
 
     private ImmutableSet<Element> process(
@@ -101,9 +160,43 @@ public final class RequiresFieldsValidator extends BasicAnnotationProcessor {
     }
 
     /**
+     * Validates the {@code @RequiresFields} annotation of {@code element}, and records it if it's on
+     * a parameter.
+     *
      * @return whether the {@code @RequiresFields} annotation is valid
      */
     boolean validateRequiresFields(Element element) throws ClassNotFoundException {
+      if (!cache.isValid(element)) {
+        return false;
+      }
+
+      Optional<TypeElement> enclosingType = getEnclosingType(element);
+      if (enclosingType.isPresent()) {
+        RequiredFields parameter =
+            new RequiredFields(
+                MoreElements.asVariable(element),
+                MoreElements.asType(((DeclaredType) element.asType()).asElement()),
+                cache.getRequiredFields(element).get());
+        requiredFields
+            .computeIfAbsent(
+                enclosingType.get(),
+                ignored ->
+                    MultimapBuilder.linkedHashKeys()
+                        .arrayListValues()
+                        .<ExecutableElement, RequiredFields>build())
+            .put(MoreElements.asExecutable(element.getEnclosingElement()), parameter);
+      }
+
+      return true;
+    }
+
+    /**
+     * Checks the {@code @RequiresFields} annotation of {@code element}, and reports any errors.
+     * This is only called once per element, through {@link RequiresFieldsCache#isValid(Element)}.
+     *
+     * @return whether the {@code @RequiresFields} annotation is valid
+     */
+    boolean checkRequiresFields(Element element) throws ClassNotFoundException {
       RequiresFields requiresFields = element.getAnnotation(RequiresFields.class);
       AnnotationMirror annotationMirror =
           MoreElements.getAnnotationMirror(element, RequiresFields.class).get();
@@ -128,9 +221,9 @@ public final class RequiresFieldsValidator extends BasicAnnotationProcessor {
         return false;
       }
 
-      ProtoDescriptor<?> descriptor = getDescriptor(type);
+      ProtoDescriptor<?> descriptor = cache.getDescriptor(type);
       for (String path : requiresFields.value()) {
-        if (!FieldMaskUtil.isValid(descriptor.getDescriptorForType(), path)) {
+        if (!isValidPath(descriptor, path)) {
           AnnotationValue value =
               AnnotationMirrors.getAnnotationValue(annotationMirror, "value");
           processingEnv.getMessager().printMessage(
@@ -149,13 +242,18 @@ public final class RequiresFieldsValidator extends BasicAnnotationProcessor {
       return true;
     }
 
-    private ProtoDescriptor<?> getDescriptor(TypeMirror type) throws ClassNotFoundException {
-      TypeElement typeElement = MoreElements.asType(((DeclaredType) type).asElement());
-      Name binaryName = processingEnv.getElementUtils().getBinaryName(typeElement);
-      Class<? extends Message> clazz =
-          Class.forName(binaryName.toString()).asSubclass(Message.class);
-
-      return ProtoDescriptor.create(clazz);
+    /**
+     * Whether {@code path} is a valid {@link FieldPath} of {@code descriptor}'s type. Unlike {@link
+     * com.google.protobuf.util.FieldMaskUtil#isValid}, paths can continue past repeated message
+     * fields.
+     */
+    private static boolean isValidPath(ProtoDescriptor<?> descriptor, String path) {
+      try {
+        FieldPath.create(descriptor, path);
+        return true;
+      } catch (IllegalArgumentException e) {
+        return false;
+      }
     }
   }
 
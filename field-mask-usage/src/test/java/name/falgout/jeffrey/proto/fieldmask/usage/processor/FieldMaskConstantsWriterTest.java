@@ -0,0 +1,236 @@
+package name.falgout.jeffrey.proto.fieldmask.usage.processor;
+
+import static com.google.common.truth.Truth.assertThat;
+import static com.google.testing.compile.CompilationSubject.assertThat;
+import static com.google.testing.compile.Compiler.javac;
+
+import com.google.common.collect.ImmutableList;
+import com.google.testing.compile.Compilation;
+import com.google.testing.compile.JavaFileObjects;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import javax.tools.DiagnosticCollector;
+import javax.tools.JavaCompiler;
+import javax.tools.JavaCompiler.CompilationTask;
+import javax.tools.JavaFileObject;
+import javax.tools.StandardJavaFileManager;
+import javax.tools.StandardLocation;
+import javax.tools.ToolProvider;
+import org.junit.jupiter.api.Test;
+
+class FieldMaskConstantsWriterTest {
+  private static Compilation compile(JavaFileObject... sources) {
+    return javac().withProcessors(new RequiresFieldsValidator()).compile(sources);
+  }
+
+  private static JavaFileObject source(String qualifiedName, String... lines) {
+    return JavaFileObjects.forSourceLines(qualifiedName, lines);
+  }
+
+  @Test
+  void simpleMethod() throws IOException {
+    JavaFileObject handler =
+        source(
+            "test.Handler",
+            "package test;",
+            "",
+            "import name.falgout.jeffrey.proto.fieldmask.usage.RequiresFields;",
+            "import name.falgout.jeffrey.proto.fieldmask.usage.Test.Root;",
+            "",
+            "class Handler {",
+            "  void handle(",
+            "      @RequiresFields({\"first_child.value\", \"second_child\"}) Root root) {}",
+            "}");
+    JavaFileObject caller =
+        source(
+            "test.Caller",
+            "package test;",
+            "",
+            "import name.falgout.jeffrey.proto.fieldmask.FieldMask;",
+            "import name.falgout.jeffrey.proto.fieldmask.usage.Test.Root;",
+            "",
+            "class Caller {",
+            "  FieldMask<Root> mask = Handler_RequiredFields.Handle.ROOT;",
+            "  com.google.protobuf.FieldMask proto = Handler_RequiredFields.Handle.ROOT_PROTO;",
+            "  Root projection =",
+            "      Handler_RequiredFields.Handle.projectRoot(Root.getDefaultInstance());",
+            "}");
+
+    Compilation compilation = compile(handler, caller);
+
+    assertThat(compilation).succeededWithoutWarnings();
+    JavaFileObject constants = compilation.generatedSourceFile("test.Handler_RequiredFields").get();
+    assertThat(constants.getCharContent(false).toString())
+        .contains(".addPaths(\"first_child.value\")");
+  }
+
+  @Test
+  void overloadedMethods() {
+    JavaFileObject handler =
+        source(
+            "test.Handler",
+            "package test;",
+            "",
+            "import name.falgout.jeffrey.proto.fieldmask.usage.RequiresFields;",
+            "import name.falgout.jeffrey.proto.fieldmask.usage.Test.Child;",
+            "import name.falgout.jeffrey.proto.fieldmask.usage.Test.Root;",
+            "",
+            "class Handler {",
+            "  void handle(@RequiresFields(\"first_child\") Root root) {}",
+            "",
+            "  void handle(@RequiresFields(\"value\") Child child) {}",
+            "}");
+    JavaFileObject caller =
+        source(
+            "test.Caller",
+            "package test;",
+            "",
+            "import name.falgout.jeffrey.proto.fieldmask.FieldMask;",
+            "import name.falgout.jeffrey.proto.fieldmask.usage.Test.Child;",
+            "import name.falgout.jeffrey.proto.fieldmask.usage.Test.Root;",
+            "",
+            "class Caller {",
+            "  FieldMask<Root> root = Handler_RequiredFields.Handle.ROOT;",
+            "  FieldMask<Child> child = Handler_RequiredFields.Handle2.CHILD;",
+            "}");
+
+    assertThat(compile(handler, caller)).succeededWithoutWarnings();
+  }
+
+  @Test
+  void constructor() {
+    JavaFileObject handler =
+        source(
+            "test.Handler",
+            "package test;",
+            "",
+            "import name.falgout.jeffrey.proto.fieldmask.usage.RequiresFields;",
+            "import name.falgout.jeffrey.proto.fieldmask.usage.Test.Root;",
+            "",
+            "class Handler {",
+            "  Handler(@RequiresFields(\"first_child\") Root root) {}",
+            "}");
+    JavaFileObject caller =
+        source(
+            "test.Caller",
+            "package test;",
+            "",
+            "import name.falgout.jeffrey.proto.fieldmask.FieldMask;",
+            "import name.falgout.jeffrey.proto.fieldmask.usage.Test.Root;",
+            "",
+            "class Caller {",
+            "  FieldMask<Root> root = Handler_RequiredFields.Constructor.ROOT;",
+            "}");
+
+    assertThat(compile(handler, caller)).succeededWithoutWarnings();
+  }
+
+  @Test
+  void nestedType() {
+    JavaFileObject outer =
+        source(
+            "test.Outer",
+            "package test;",
+            "",
+            "import name.falgout.jeffrey.proto.fieldmask.usage.RequiresFields;",
+            "import name.falgout.jeffrey.proto.fieldmask.usage.Test.Root;",
+            "",
+            "class Outer {",
+            "  static class Handler {",
+            "    void handle(@RequiresFields(\"first_child\") Root root) {}",
+            "  }",
+            "}");
+    JavaFileObject caller =
+        source(
+            "test.Caller",
+            "package test;",
+            "",
+            "import name.falgout.jeffrey.proto.fieldmask.FieldMask;",
+            "import name.falgout.jeffrey.proto.fieldmask.usage.Test.Root;",
+            "",
+            "class Caller {",
+            "  FieldMask<Root> root = Outer_Handler_RequiredFields.Handle.ROOT;",
+            "}");
+
+    Compilation compilation = compile(outer, caller);
+
+    assertThat(compilation).succeededWithoutWarnings();
+    assertThat(compilation).generatedSourceFile("test.Outer_Handler_RequiredFields");
+  }
+
+  @Test
+  void conflictingParameterNames() {
+    JavaFileObject handler =
+        source(
+            "test.Handler",
+            "package test;",
+            "",
+            "import name.falgout.jeffrey.proto.fieldmask.usage.RequiresFields;",
+            "import name.falgout.jeffrey.proto.fieldmask.usage.Test.Root;",
+            "",
+            "class Handler {",
+            "  void handle(",
+            "      @RequiresFields(\"first_child\") Root x,",
+            "      @RequiresFields(\"second_child\") Root xProto) {}",
+            "}");
+    JavaFileObject caller =
+        source(
+            "test.Caller",
+            "package test;",
+            "",
+            "import name.falgout.jeffrey.proto.fieldmask.FieldMask;",
+            "import name.falgout.jeffrey.proto.fieldmask.usage.Test.Root;",
+            "",
+            "class Caller {",
+            "  FieldMask<Root> x = Handler_RequiredFields.Handle.X;",
+            "  com.google.protobuf.FieldMask xProto = Handler_RequiredFields.Handle.X_PROTO;",
+            "  FieldMask<Root> xProto2 = Handler_RequiredFields.Handle.X_PROTO2;",
+            "  Root projection =",
+            "      Handler_RequiredFields.Handle.projectXProto2(Root.getDefaultInstance());",
+            "}");
+
+    assertThat(compile(handler, caller)).succeededWithoutWarnings();
+  }
+
+  @Test
+  void invalidAnnotation() throws IOException {
+    JavaFileObject handler =
+        source(
+            "test.Handler",
+            "package test;",
+            "",
+            "import name.falgout.jeffrey.proto.fieldmask.usage.RequiresFields;",
+            "import name.falgout.jeffrey.proto.fieldmask.usage.Test.Root;",
+            "",
+            "class Handler {",
+            "  void valid(@RequiresFields(\"first_child\") Root root) {}",
+            "",
+            "  void invalid(@RequiresFields(\"invalid_field\") Root root) {}",
+            "}");
+
+    // Compilation only exposes its generated files if it succeeded, so this writes them to disk.
+    Path sourceOutput = Files.createTempDirectory("generated-sources");
+    Path classOutput = Files.createTempDirectory("classes");
+    JavaCompiler compiler = ToolProvider.getSystemJavaCompiler();
+    DiagnosticCollector<JavaFileObject> diagnostics = new DiagnosticCollector<>();
+    try (StandardJavaFileManager fileManager =
+        compiler.getStandardFileManager(diagnostics, null, StandardCharsets.UTF_8)) {
+      fileManager.setLocation(
+          StandardLocation.SOURCE_OUTPUT, ImmutableList.of(sourceOutput.toFile()));
+      fileManager.setLocation(
+          StandardLocation.CLASS_OUTPUT, ImmutableList.of(classOutput.toFile()));
+      CompilationTask task =
+          compiler.getTask(null, fileManager, diagnostics, null, null, ImmutableList.of(handler));
+      task.setProcessors(ImmutableList.of(new RequiresFieldsValidator()));
+
+      assertThat(task.call()).isFalse();
+    }
+
+    assertThat(diagnostics.getDiagnostics()).hasSize(1);
+    assertThat(diagnostics.getDiagnostics().get(0).getMessage(null))
+        .contains("Invalid field path \"invalid_field\"");
+    assertThat(Files.exists(sourceOutput.resolve("test/Handler_RequiredFields.java"))).isFalse();
+  }
+}
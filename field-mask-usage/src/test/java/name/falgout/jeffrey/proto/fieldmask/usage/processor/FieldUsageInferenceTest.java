@@ -0,0 +1,89 @@
+package name.falgout.jeffrey.proto.fieldmask.usage.processor;
+
+import static com.google.common.truth.Truth.assertThat;
+
+import com.google.common.collect.ImmutableList;
+import com.google.errorprone.CompilationTestHelper;
+import com.google.protobuf.util.FieldMaskUtil;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Properties;
+import name.falgout.jeffrey.proto.fieldmask.FieldMask;
+import name.falgout.jeffrey.proto.fieldmask.FieldPath;
+import name.falgout.jeffrey.proto.fieldmask.usage.Test.Child;
+import name.falgout.jeffrey.proto.fieldmask.usage.Test.Node;
+import name.falgout.jeffrey.proto.fieldmask.usage.Test.Root;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+class FieldUsageInferenceTest {
+  private static final String ROOT = Root.class.getCanonicalName();
+  private static final String CHILD = Child.class.getCanonicalName();
+  private static final String NODE = Node.class.getCanonicalName();
+
+  private Path classOutput;
+  private CompilationTestHelper compiler;
+
+  @BeforeEach
+  void setUp() throws IOException {
+    // The inferred fields are written next to the class files, which would default to the
+    // working directory.
+    classOutput = Files.createTempDirectory("classes");
+    compiler =
+        CompilationTestHelper.newInstance(FieldUsageInference.class, getClass())
+            .setArgs(ImmutableList.of("-d", classOutput.toString()));
+  }
+
+  @Test
+  void inferredUse() {
+    compiler
+        .addSourceFile(getPath("RootUtils.java"))
+        .addSourceFile(getPath("InferredUse.java"))
+        .matchAllDiagnostics()
+        .doTest();
+  }
+
+  @Test
+  void writesInferredFields() throws IOException {
+    compiler
+        .addSourceFile(getPath("RootUtils.java"))
+        .addSourceFile(getPath("InferredUse.java"))
+        .doTest();
+
+    Properties inferredFields = new Properties();
+    try (InputStream in =
+        Files.newInputStream(
+            classOutput.resolve(getPath("InferredUse_InferredFields.properties").substring(1)))) {
+      inferredFields.load(in);
+    }
+
+    assertThat(inferredFields)
+        .containsEntry(
+            "readsSubFields(" + ROOT + ").root", "first_child.value,second_child.description");
+    assertThat(inferredFields)
+        .containsEntry("readsEverything(" + ROOT + ").root", "first_child,second_child,children");
+    assertThat(inferredFields).containsEntry("unused(" + ROOT + ").root", "");
+    assertThat(inferredFields)
+        .containsEntry(
+            "readsVariablesAssignedLater(" + ROOT + ").root", "first_child.description");
+    assertThat(inferredFields).containsEntry("readsLinkedMessages(" + NODE + ").node", "value,next");
+    assertThat(inferredFields)
+        .containsEntry(
+            "multipleParameters(" + ROOT + "," + CHILD + ",int).firstRoot",
+            "first_child.description");
+
+    String repeatedSubFields =
+        inferredFields.getProperty("readsRepeatedSubFields(" + ROOT + ").root");
+    assertThat(FieldMask.fromProto(Root.class, FieldMaskUtil.fromString(repeatedSubFields)))
+        .isEqualTo(
+            FieldMask.of(
+                FieldPath.create(Root.class, "children.value"),
+                FieldPath.create(Root.class, "children.description")));
+  }
+
+  private static String getPath(String fileName) {
+    return "/name/falgout/jeffrey/proto/fieldmask/usage/processor/" + fileName;
+  }
+}
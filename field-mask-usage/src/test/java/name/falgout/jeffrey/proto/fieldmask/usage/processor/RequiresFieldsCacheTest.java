@@ -0,0 +1,153 @@
+package name.falgout.jeffrey.proto.fieldmask.usage.processor;
+
+import static com.google.common.truth.Truth.assertThat;
+import static java.util.stream.Collectors.toList;
+
+import com.google.common.collect.ImmutableList;
+import com.google.errorprone.ErrorProneJavaCompiler;
+import com.google.errorprone.scanner.ScannerSupplier;
+import com.google.testing.compile.JavaFileObjects;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.List;
+import java.util.Locale;
+import javax.tools.Diagnostic;
+import javax.tools.DiagnosticCollector;
+import javax.tools.JavaCompiler.CompilationTask;
+import javax.tools.JavaFileObject;
+import javax.tools.StandardJavaFileManager;
+import javax.tools.StandardLocation;
+import org.junit.jupiter.api.Test;
+
+/**
+ * Runs {@link RequiresFieldsValidator} and {@link FieldUsageValidator} in the same compilation, the
+ * way they're used together, so that they share a {@link RequiresFieldsCache}.
+ */
+class RequiresFieldsCacheTest {
+  // Its constants are generated in the first round, so there's a second round.
+  private final JavaFileObject validHandler =
+      JavaFileObjects.forSourceLines(
+          "test.ValidHandler",
+          "package test;",
+          "",
+          "import name.falgout.jeffrey.proto.fieldmask.usage.RequiresFields;",
+          "import name.falgout.jeffrey.proto.fieldmask.usage.Test.Root;",
+          "",
+          "class ValidHandler {",
+          "  static void process(@RequiresFields(\"first_child\") Root root) {}",
+          "}");
+
+  @Test
+  void reportsInvalidAnnotationOnce() throws IOException {
+    JavaFileObject handler =
+        JavaFileObjects.forSourceLines(
+            "test.Handler",
+            "package test;",
+            "",
+            "import name.falgout.jeffrey.proto.fieldmask.usage.RequiresFields;",
+            "import name.falgout.jeffrey.proto.fieldmask.usage.Test.Root;",
+            "",
+            "class Handler {",
+            "  static void process(@RequiresFields(\"invalid_field\") Root root) {",
+            "    @RequiresFields(\"invalid_field\") Root local = root;",
+            "    process(local);",
+            "  }",
+            "}");
+
+    List<String> errors = compile(ImmutableList.of(), handler, validHandler);
+
+    // The processor reports the parameter in the first round. Error Prone doesn't check anything
+    // once there are errors, so the local variable isn't reported until the parameter is fixed.
+    assertThat(errors).hasSize(1);
+    assertThat(errors.get(0)).contains("Invalid field path \"invalid_field\"");
+  }
+
+  @Test
+  void checksParametersValidatedInEarlierRounds() throws IOException {
+    JavaFileObject caller =
+        JavaFileObjects.forSourceLines(
+            "test.Caller",
+            "package test;",
+            "",
+            "import name.falgout.jeffrey.proto.fieldmask.usage.RequiresFields;",
+            "import name.falgout.jeffrey.proto.fieldmask.usage.Test.Root;",
+            "",
+            "class Caller {",
+            "  void call(@RequiresFields(\"second_child\") Root root) {",
+            "    ValidHandler.process(root);",
+            "  }",
+            "}");
+
+    List<String> errors = compile(ImmutableList.of(), caller, validHandler);
+
+    assertThat(errors).hasSize(1);
+    assertThat(errors.get(0)).contains("Argument has incompatible FieldMask.");
+  }
+
+  @Test
+  void reportsInvalidAnnotationsOnceWithoutProcessor() throws IOException {
+    JavaFileObject handler =
+        JavaFileObjects.forSourceLines(
+            "test.Handler",
+            "package test;",
+            "",
+            "import name.falgout.jeffrey.proto.fieldmask.usage.RequiresFields;",
+            "import name.falgout.jeffrey.proto.fieldmask.usage.Test.Root;",
+            "",
+            "class Handler {",
+            "  static void process(@RequiresFields(\"invalid_parameter\") Root root) {}",
+            "",
+            "  void call(@RequiresFields(\"first_child\") Root root) {",
+            "    @RequiresFields(\"invalid_local\") Root local = root;",
+            "    process(local);",
+            "    process(root);",
+            "  }",
+            "}");
+
+    // Only Error Prone checks the annotations, and it looks up the parameter at every call.
+    List<String> errors = compile(ImmutableList.of("-proc:none"), handler);
+
+    assertThat(errors).hasSize(2);
+    assertThat(errors.stream().filter(error -> error.contains("\"invalid_parameter\"")).count())
+        .isEqualTo(1);
+    assertThat(errors.stream().filter(error -> error.contains("\"invalid_local\"")).count())
+        .isEqualTo(1);
+  }
+
+  /** Compiles {@code sources} with both checks, and returns the error messages. */
+  private static List<String> compile(List<String> options, JavaFileObject... sources)
+      throws IOException {
+    ErrorProneJavaCompiler compiler =
+        new ErrorProneJavaCompiler(
+            ScannerSupplier.fromBugCheckerClasses(ImmutableList.of(FieldUsageValidator.class)));
+    DiagnosticCollector<JavaFileObject> diagnostics = new DiagnosticCollector<>();
+    try (StandardJavaFileManager fileManager =
+        compiler.getStandardFileManager(diagnostics, Locale.ROOT, StandardCharsets.UTF_8)) {
+      fileManager.setLocation(
+          StandardLocation.SOURCE_OUTPUT,
+          ImmutableList.of(Files.createTempDirectory("generated-sources").toFile()));
+      fileManager.setLocation(
+          StandardLocation.CLASS_OUTPUT,
+          ImmutableList.of(Files.createTempDirectory("classes").toFile()));
+
+      CompilationTask task =
+          compiler.getTask(
+              null,
+              fileManager,
+              diagnostics,
+              options,
+              null,
+              ImmutableList.copyOf(sources));
+      task.setProcessors(ImmutableList.of(new RequiresFieldsValidator()));
+      task.call();
+    }
+
+    return diagnostics
+        .getDiagnostics()
+        .stream()
+        .filter(diagnostic -> diagnostic.getKind() == Diagnostic.Kind.ERROR)
+        .map(diagnostic -> diagnostic.getMessage(Locale.ROOT))
+        .collect(toList());
+  }
+}
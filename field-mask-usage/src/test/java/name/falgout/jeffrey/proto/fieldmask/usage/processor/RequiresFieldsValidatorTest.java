@@ -14,6 +14,8 @@ class RequiresFieldsValidatorTest {
     void test2(@RequiresFields({"first_child", "second_child"}) Root root) {}
 
     void test3(@RequiresFields({"first_child.value", "second_child"}) Root root) {}
+
+    void test4(@RequiresFields("children.value") Root root) {}
   }
 
   class InvalidFieldMasks {
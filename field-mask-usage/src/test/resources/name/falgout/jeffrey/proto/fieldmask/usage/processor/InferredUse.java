@@ -0,0 +1,99 @@
+package name.falgout.jeffrey.proto.fieldmask.usage.processor;
+
+import name.falgout.jeffrey.proto.fieldmask.usage.RequiresFields;
+import name.falgout.jeffrey.proto.fieldmask.usage.Test.Child;
+import name.falgout.jeffrey.proto.fieldmask.usage.Test.Node;
+import name.falgout.jeffrey.proto.fieldmask.usage.Test.Root;
+
+class InferredUse {
+  void readsSubFields(
+      // BUG: Diagnostic contains: Only reads first_child.value, second_child.description
+      Root root) {
+    root.getFirstChild().getValue();
+    root.getSecondChild().getDescription();
+  }
+
+  void readsWholeSubMessages(
+      // BUG: Diagnostic contains: Only reads first_child
+      Root root) {
+    System.out.println(root.getFirstChild());
+    root.hasFirstChild();
+  }
+
+  void followsLocalVariables(
+      // BUG: Diagnostic contains: Only reads first_child.value, second_child.value
+      Root root) {
+    Child child = root.getFirstChild();
+    child.getValue();
+
+    child = root.getSecondChild();
+    Child sameChild = child;
+    sameChild.getValue();
+  }
+
+  void followsAnnotatedMethods(
+      // BUG: Diagnostic contains: Only reads first_child.value, second_child
+      Root root) {
+    RootUtils.needsFirstChildValue(root);
+    System.out.println(root.getSecondChild());
+  }
+
+  void readsRepeatedSubFields(
+      // BUG: Diagnostic contains: Only reads children.description, children.value
+      Root root) {
+    root.getChildren(0).getValue();
+    root.getChildrenOrBuilder(1).getDescription();
+  }
+
+  void readsWholeRepeatedFields(
+      // BUG: Diagnostic contains: Only reads children
+      Root root) {
+    for (int i = 0; i < root.getChildrenCount(); i++) {
+      root.getChildren(i).getValue();
+    }
+  }
+
+  void readsVariablesAssignedLater(
+      // BUG: Diagnostic contains: Only reads first_child.description
+      Root root) {
+    Child previous = Child.getDefaultInstance();
+    for (int i = 0; i < 2; i++) {
+      previous.getDescription();
+      previous = root.getFirstChild();
+    }
+  }
+
+  void readsLinkedMessages(Node node) {
+    Node last = node;
+    while (last.hasNext()) {
+      last = last.getNext();
+    }
+    last.getValue();
+  }
+
+  void readsEverything(Root root) {
+    System.out.println(root);
+  }
+
+  Child returnsSubMessage(
+      // BUG: Diagnostic contains: Only reads second_child
+      Root root) {
+    return root.getSecondChild();
+  }
+
+  void unused(Root root) {}
+
+  void alreadyAnnotated(@RequiresFields("first_child") Root root) {
+    root.getFirstChild().getValue();
+  }
+
+  void multipleParameters(
+      // BUG: Diagnostic contains: Only reads first_child.description
+      Root firstRoot,
+      // BUG: Diagnostic contains: Only reads value
+      Child child,
+      int index) {
+    firstRoot.getFirstChild().getDescription();
+    System.out.println(child.getValue() + index);
+  }
+}